@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.benchmarks;
+
+import com.clothcat.hat.database.Address;
+import com.clothcat.hat.database.Address.AddressType;
+import com.clothcat.hat.database.AddressIndex;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Classifying addresses, half of them ours and half not, through the address
+ * cache and through an AddressIndex of the whole table.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassifyBenchmark {
+
+  @Param({"10000", "100000"})
+  public int addresses;
+
+  private TempDatabase db;
+  private AddressIndex index;
+  private String[] lookups;
+  private int next;
+
+  static String address(int i) {
+    // the length and alphabet of a real address
+    return String.format("H%033d", i).replace('0', 'z');
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    db = TempDatabase.open();
+    List<Address> list = new ArrayList<>(addresses);
+    AddressType[] types = AddressType.values();
+    for (int i = 0; i < addresses; i++) {
+      Address a = new Address();
+      a.setAddress(address(i));
+      a.setType(types[i % types.length]);
+      list.add(a);
+    }
+    Address.storeAll(list);
+    index = AddressIndex.load();
+    lookups = new String[addresses * 2];
+    for (int i = 0; i < lookups.length; i++) {
+      lookups[i] = address(i);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    db.close();
+  }
+
+  @Benchmark
+  public AddressType classify() {
+    return Address.classify(lookups[next++ % lookups.length]);
+  }
+
+  @Benchmark
+  public AddressType index() {
+    return index.get(lookups[next++ % lookups.length]);
+  }
+}
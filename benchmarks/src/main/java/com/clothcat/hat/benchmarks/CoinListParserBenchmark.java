@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.benchmarks;
+
+import com.clothcat.hat.rpc.CoinListParser;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing synthetic cclistcoins responses of various sizes.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoinListParserBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int coins;
+
+  private String json;
+
+  @Setup
+  public void setUp() {
+    StringBuilder sb = new StringBuilder("{\"result\":[");
+    for (int i = 0; i < coins; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"Output Hash\":\"").append(String.format("%064x", i))
+          .append("\",\"blockIndex\":").append(i % 4)
+          .append(",\"Value\":").append(i % 1000).append('.')
+          .append(String.format("%06d", i % 1000000))
+          .append(",\"Confirmations\":").append(i % 500)
+          .append(",\"Age (days)\":").append(i % 30).append(".5}");
+    }
+    json = sb.append("],\"error\":null,\"id\":1}").toString();
+  }
+
+  @Benchmark
+  public int parse(final Blackhole bh) throws IOException {
+    return CoinListParser.parse(new StringReader(json), bh::consume);
+  }
+}
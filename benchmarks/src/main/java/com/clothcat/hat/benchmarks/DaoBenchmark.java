@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.benchmarks;
+
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.Transaction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single and bulk stores and primary key lookups of transactions and heaps.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DaoBenchmark {
+
+  /**
+   * How many rows of each kind are stored before the benchmarks start
+   */
+  private static final int ROWS = 10000;
+  private static final int BULK = 1000;
+
+  private TempDatabase db;
+  private int next;
+  private int lookup;
+
+  static Transaction transaction(int i) {
+    Transaction t = new Transaction();
+    t.setTxId(String.format("%064x", i));
+    t.setTxIndex(i % 4);
+    t.setTxTimestamp(1400000000L + i);
+    t.setTxType(Transaction.TxType.RECV);
+    return t;
+  }
+
+  static CoinHeap heap(int i) {
+    CoinHeap heap = new CoinHeap();
+    heap.setBlockHash(String.format("%064x", i));
+    heap.setBlockIndex(i % 4);
+    heap.setAmount(1000000L + i);
+    heap.setConfirmations(i % 100);
+    heap.setTimeCreated(1400000000L + i);
+    heap.setStatus(CoinHeap.HeapStatus.INCOMING);
+    return heap;
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    db = TempDatabase.open();
+    List<Transaction> transactions = new ArrayList<>(ROWS);
+    List<CoinHeap> heaps = new ArrayList<>(ROWS);
+    for (int i = 0; i < ROWS; i++) {
+      transactions.add(transaction(i));
+      heaps.add(heap(i));
+    }
+    Transaction.storeAll(transactions);
+    CoinHeap.storeAll(heaps);
+    next = ROWS;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    db.close();
+  }
+
+  @Benchmark
+  public boolean storeTransaction() {
+    return transaction(next++).storeTransaction();
+  }
+
+  @Benchmark
+  public boolean[] storeAllTransactions() {
+    List<Transaction> list = new ArrayList<>(BULK);
+    for (int i = 0; i < BULK; i++) {
+      list.add(transaction(next++));
+    }
+    return Transaction.storeAll(list);
+  }
+
+  @Benchmark
+  public boolean storeHeap() {
+    return heap(next++).storeHeap();
+  }
+
+  @Benchmark
+  public boolean[] storeAllHeaps() {
+    List<CoinHeap> list = new ArrayList<>(BULK);
+    for (int i = 0; i < BULK; i++) {
+      list.add(heap(next++));
+    }
+    return CoinHeap.storeAll(list);
+  }
+
+  @Benchmark
+  public Transaction getTransaction() {
+    int i = lookup++ % ROWS;
+    return Transaction.getTransaction(String.format("%064x", i), i % 4);
+  }
+
+  @Benchmark
+  public CoinHeap getHeap() {
+    int i = lookup++ % ROWS;
+    return CoinHeap.getHeap(String.format("%064x", i), i % 4);
+  }
+}
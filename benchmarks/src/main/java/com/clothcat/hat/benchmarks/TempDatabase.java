@@ -0,0 +1,72 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.benchmarks;
+
+import com.clothcat.hat.database.DatabaseHelper;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+
+/**
+ * A throwaway SQLite database for a benchmark to run against, so nothing
+ * touches the real one and every run starts from the same place.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+class TempDatabase {
+
+  private final File dir;
+
+  private TempDatabase(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Point DatabaseHelper at a new empty database and open it.
+   */
+  static TempDatabase open() throws IOException, SQLException {
+    DatabaseHelper.shutdown();
+    File dir = Files.createTempDirectory("hat-bench").toFile();
+    System.setProperty("hat.metrics.dump_secs", "0");
+    System.setProperty(DatabaseHelper.PROP_URL, "jdbc:sqlite:"
+        + new File(dir, "HAT.db").getAbsolutePath());
+    DatabaseHelper.getInstance();
+    return new TempDatabase(dir);
+  }
+
+  /**
+   * Close the database and delete it.
+   */
+  void close() {
+    DatabaseHelper.shutdown();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+}
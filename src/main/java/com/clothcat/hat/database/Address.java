@@ -23,12 +23,16 @@
  */
 package com.clothcat.hat.database;
 
+import com.clothcat.hat.metrics.Metrics;
+import com.clothcat.hat.metrics.Timer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,9 +44,50 @@ import java.util.logging.Logger;
  */
 public class Address {
 
+  /**
+   * Set this system property to true to have the first classify() index every
+   * address (see loadIndex())
+   */
+  public static final String PROP_INDEX = "hat.address.index";
+
   private String address;
   private AddressType type;
 
+  private static final String UPSERT_SQL = Upsert.sql("ADDRESSES",
+      new String[]{"ADDRESS", "ADDRESS_TYPE"}, "ADDRESS");
+
+  private static final AddressCache CACHE = new AddressCache(
+      Integer.getInteger("hat.address.cache_size", AddressCache.DEFAULT_MAX_SIZE));
+
+  private static final LiveAddressIndex INDEX = new LiveAddressIndex();
+  private static final AtomicBoolean INDEX_TRIED
+      = new AtomicBoolean(!Boolean.getBoolean(PROP_INDEX));
+
+  private static final AddressCache.Loader LOADER = new AddressCache.Loader() {
+    @Override
+    public AddressType load(String address) {
+      return Address.load(address);
+    }
+  };
+
+  private static final BatchWriter.Binder<Address> BINDER
+      = new BatchWriter.Binder<Address>() {
+        @Override
+        public void bind(PreparedStatement ps, Address a) throws SQLException {
+          ps.setString(1, a.address);
+          Codec.setEnum(ps, 2, a.type);
+        }
+      };
+
+  private static final AddressType[] ADDRESS_TYPES = AddressType.values();
+
+  private static final Timer CLASSIFY = Metrics.timer("db.Address.classify");
+  private static final Timer LOAD = Metrics.timer("db.Address.load");
+  private static final Timer LIST = Metrics.timer("db.Address.listAddresses");
+  private static final Timer SAVE = Metrics.timer("db.Address.save");
+  private static final Timer STORE = Metrics.timer("db.Address.storeAddress");
+  private static final Timer STORE_ALL = Metrics.timer("db.Address.storeAll");
+
   /**
    * Get the single address associated with the address parameter passed
    *
@@ -51,56 +96,224 @@ public class Address {
    * if none exists.
    */
   public static Address getAddress(String address) {
-    Address addr = null;
-    try (Connection conn = new DatabaseHelper().getConnection()) {
-      PreparedStatement ps = conn.prepareStatement("SELECT * FROM ADDRESSES WHERE address=?");
-      ps.setString(1, address);
-      ResultSet rs = ps.executeQuery();
-      if (rs.next()) {
-        addr = new Address();
-        addr.setAddress(rs.getString("ADDRESS"));
-        addr.type = AddressType.valueOf(rs.getString("ADDRESS_TYPE"));
-      }
-    } catch (SQLException ex) {
-      Logger.getLogger(Address.class.getName()).log(Level.SEVERE, null, ex);
+    AddressType type = classify(address);
+    if (type == null) {
+      return null;
     }
+    Address addr = new Address();
+    addr.address = address;
+    addr.type = type;
     return addr;
   }
 
+  /**
+   * Get the type of an address. Once loadIndex() has been called this is
+   * answered from the address index, otherwise from the address cache whenever
+   * possible, so either way is cheap enough to call for every transaction.
+   *
+   * @param address The address to classify.
+   * @return its type, or null if the address isn't in the database.
+   */
+  public static AddressType classify(String address) {
+    try (Timer.Context ctx = CLASSIFY.time()) {
+      if (!INDEX_TRIED.get() && INDEX_TRIED.compareAndSet(false, true)) {
+        loadIndex();
+      }
+      if (INDEX.isLoaded()) {
+        return INDEX.get(address);
+      }
+      return CACHE.get(address, LOADER);
+    }
+  }
+
+  /**
+   * Index every address in the database, so classify() never has to query it.
+   * Worth doing at startup (or setting PROP_INDEX) when there are bursts of
+   * transactions to classify, as long as the ADDRESSES table fits comfortably
+   * in memory.
+   *
+   * @return true if the index was built
+   */
+  public static boolean loadIndex() {
+    return INDEX.load();
+  }
+
+  /**
+   * @return the cache used by getAddress() and classify()
+   */
+  public static AddressCache getCache() {
+    return CACHE;
+  }
+
+  /**
+   * @return the index used by getAddress() and classify() once loaded
+   */
+  public static LiveAddressIndex getIndex() {
+    return INDEX;
+  }
+
+  private static AddressType load(String address) {
+    try (Timer.Context ctx = LOAD.time()) {
+      AddressType type = null;
+      try (Connection conn = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = conn.prepareStatement("SELECT * FROM ADDRESSES WHERE address=?");
+        ps.setString(1, address);
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+          type = Codec.getEnum(rs, "ADDRESS_TYPE", ADDRESS_TYPES);
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(Address.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return type;
+    }
+  }
+
   /**
    * A list of all addresses we know about
    *
    * @return a List of Addresses
    */
   public static List<Address> listAddresses() {
-    List<Address> list = new ArrayList<>();
-    try (Connection conn = new DatabaseHelper().getConnection()) {
-      PreparedStatement ps = conn.prepareStatement("SELECT * FROM ADDRESSES ORDER BY ADDRESS");
-      ResultSet rs = ps.executeQuery();
-      while (rs.next()) {
-        Address addr = new Address();
-        addr.setAddress(rs.getString("ADDRESS"));
-        addr.type = AddressType.valueOf(rs.getString("ADDRESS_TYPE"));
-        list.add(addr);
+    try (Timer.Context ctx = LIST.time()) {
+      List<Address> list = new ArrayList<>();
+      try (Connection conn = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = conn.prepareStatement("SELECT * FROM ADDRESSES ORDER BY ADDRESS");
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          list.add(fromRow(rs));
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(Address.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return list;
+    }
+  }
+
+  /**
+   * A page of the addresses we know about, in address order. To walk through
+   * every address pass null to get the first page and then the last address of
+   * each page to get the next, until a page comes back short. Each page costs
+   * the same however far through the addresses it is.
+   *
+   * @param after only addresses after this one are listed (null to start at
+   * the beginning)
+   * @param limit the most addresses to return
+   * @return a List of up to limit Addresses
+   */
+  public static List<Address> listAddresses(String after, int limit) {
+    return listAddresses(after, limit, null);
+  }
+
+  /**
+   * A page of the addresses of one type, in address order. Pages work as for
+   * listAddresses(String, int).
+   *
+   * @param after only addresses after this one are listed (null to start at
+   * the beginning)
+   * @param limit the most addresses to return
+   * @param type only list addresses of this type (null for all types)
+   * @return a List of up to limit Addresses
+   */
+  public static List<Address> listAddresses(String after, int limit,
+      AddressType type) {
+    try (Timer.Context ctx = LIST.time()) {
+      List<Address> list = new ArrayList<>();
+      String sql = "SELECT * FROM ADDRESSES WHERE ADDRESS > ?"
+          + (type == null ? "" : " AND ADDRESS_TYPE=?")
+          + " ORDER BY ADDRESS LIMIT ?";
+      try (Connection conn = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = conn.prepareStatement(sql);
+        int i = 1;
+        // every address sorts after the empty string
+        ps.setString(i++, after == null ? "" : after);
+        if (type != null) {
+          Codec.setEnum(ps, i++, type);
+        }
+        ps.setInt(i, limit);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          list.add(fromRow(rs));
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(Address.class.getName()).log(Level.SEVERE, null, ex);
       }
-    } catch (SQLException ex) {
-      Logger.getLogger(Address.class.getName()).log(Level.SEVERE, null, ex);
+      return list;
     }
-    return list;
   }
 
+  private static Address fromRow(ResultSet rs) throws SQLException {
+    Address addr = new Address();
+    addr.setAddress(rs.getString("ADDRESS"));
+    addr.type = Codec.getEnum(rs, "ADDRESS_TYPE", ADDRESS_TYPES);
+    return addr;
+  }
+
+  /**
+   * Save this address, inserting it or updating the stored row as needed.
+   *
+   * @return whether it was inserted, updated, already up to date or failed
+   */
+  public SaveResult save() {
+    try (Timer.Context ctx = SAVE.time()) {
+      SaveResult reply = Upsert.save("ADDRESSES", UPSERT_SQL, this, BINDER);
+      CACHE.put(address, reply.isStored() ? type : null);
+      INDEX.put(address, reply.isStored() ? type : null);
+      return reply;
+    }
+  }
+
+  /**
+   * Store this address, updating its type if it's already stored.
+   *
+   * @return true if it was stored
+   */
   public boolean storeAddress() {
-    boolean reply = false;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      PreparedStatement ps = c.prepareStatement("INSERT INTO ADDRESSES VALUES (?, ?)");
-      ps.setString(1, address);
-      ps.setString(2, type.name());
-      ps.executeUpdate();
-      reply = true;
-    } catch (SQLException ex) {
-      Logger.getLogger(Address.class.getName()).log(Level.SEVERE, null, ex);
+    try (Timer.Context ctx = STORE.time()) {
+      boolean reply = false;
+      try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+        PreparedStatement ps = c.prepareStatement(UPSERT_SQL);
+        BINDER.bind(ps, this);
+        ps.executeUpdate();
+        reply = true;
+      } catch (SQLException ex) {
+        Logger.getLogger(Address.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      CACHE.put(address, reply ? type : null);
+      INDEX.put(address, reply ? type : null);
+      return reply;
+    }
+  }
+
+  /**
+   * Store many addresses in one database transaction, updating any
+   * which are already stored.
+   *
+   * @param addresses the addresses to store
+   * @return whether each address was stored, in iteration order
+   */
+  public static boolean[] storeAll(Collection<Address> addresses) {
+    return storeAll(addresses, BatchWriter.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Store many addresses in one database transaction, updating any
+   * which are already stored.
+   *
+   * @param addresses the addresses to store
+   * @param chunkSize how many rows to send to the database at a time
+   * @return whether each address was stored, in iteration order
+   */
+  public static boolean[] storeAll(Collection<Address> addresses, int chunkSize) {
+    try (Timer.Context ctx = STORE_ALL.time()) {
+      boolean[] reply = BatchWriter.write(UPSERT_SQL, addresses, chunkSize, BINDER);
+      int i = 0;
+      for (Address a : addresses) {
+        CACHE.put(a.address, reply[i] ? a.type : null);
+        INDEX.put(a.address, reply[i++] ? a.type : null);
+      }
+      return reply;
     }
-    return reply;
   }
 
   /**
@@ -117,6 +330,21 @@ public class Address {
     this.address = address;
   }
 
+  /**
+   * @return the type
+   */
+  public AddressType getType() {
+    return type;
+  }
+
+  /**
+   * @param type the type to set
+   */
+  public void setType(AddressType type) {
+    this.type = type;
+  }
+
+  // stored by ordinal (see Codec), so only ever add values at the end
   public static enum AddressType {
 
     /**
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.database.Address.AddressType;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of address to AddressType, so classifying the address of
+ * every incoming transaction doesn't cost a database query. The cache holds at
+ * most maxSize addresses, throwing out the least recently used beyond that.
+ * Addresses that aren't in the database are cached too (as a null type) since
+ * most addresses we see on incoming transactions won't be ours.
+ *
+ * Address keeps the cache up to date whenever it writes an address.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class AddressCache {
+
+  /**
+   * How many addresses are cached if not told otherwise (can be set with the
+   * hat.address.cache_size system property)
+   */
+  public static final int DEFAULT_MAX_SIZE = 100000;
+
+  private final Map<String, AddressType> map;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  /**
+   * Counts writes so a lookup which raced with a write doesn't cache what it
+   * read from before the write.
+   */
+  private long writes;
+
+  /**
+   * @param maxSize the most addresses to hold
+   */
+  public AddressCache(final int maxSize) {
+    // access order makes this an LRU
+    map = new LinkedHashMap<String, AddressType>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, AddressType> eldest) {
+        if (size() > maxSize) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Something that can look up an address on a cache miss.
+   */
+  static interface Loader {
+
+    /**
+     * @return the type of the address, or null if it's unknown
+     */
+    AddressType load(String address);
+  }
+
+  /**
+   * Get the type of an address, loading it on a miss.
+   *
+   * @param address the address
+   * @param loader looks up the address if it isn't cached
+   * @return its type, or null if the address isn't one we know
+   */
+  AddressType get(String address, Loader loader) {
+    long before;
+    synchronized (this) {
+      AddressType type = map.get(address);
+      if (type != null || map.containsKey(address)) {
+        hits.incrementAndGet();
+        return type;
+      }
+      before = writes;
+    }
+    misses.incrementAndGet();
+    AddressType type = loader.load(address);
+    synchronized (this) {
+      if (writes == before) {
+        map.put(address, type);
+      }
+    }
+    return type;
+  }
+
+  /**
+   * Record that an address has been written to the database.
+   *
+   * @param address the address
+   * @param type its type now, or null to just forget what was cached
+   */
+  synchronized void put(String address, AddressType type) {
+    writes++;
+    if (type == null) {
+      map.remove(address);
+    } else {
+      map.put(address, type);
+    }
+  }
+
+  /**
+   * Forget everything, eg after the ADDRESSES table has been changed behind our
+   * back.
+   */
+  public synchronized void invalidateAll() {
+    writes++;
+    map.clear();
+  }
+
+  /**
+   * @return how many addresses (known or unknown) are cached
+   */
+  public synchronized int size() {
+    return map.size();
+  }
+
+  /**
+   * @return how many lookups were answered from the cache
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return how many lookups had to go to the database
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return how many addresses have been thrown out to make room for others
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "AddressCache[size=" + size() + ", hits=" + hits + ", misses="
+        + misses + ", evictions=" + evictions + "]";
+  }
+}
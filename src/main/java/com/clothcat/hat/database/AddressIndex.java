@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.database.Address.AddressType;
+import com.clothcat.hat.metrics.Metrics;
+import com.clothcat.hat.metrics.Timer;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An immutable snapshot of the whole ADDRESSES table which answers
+ * classify() without a query or any allocation.
+ *
+ * Addresses are base58 so plain ASCII. They are kept as their bytes, one
+ * after another in a single array, and found with an open addressing hash
+ * (linear probing, at most half full) of int indexes into that. So an address
+ * costs its length plus about 20 bytes, rather than an Address, a String and a
+ * map entry each. Anything which isn't ASCII goes in an ordinary map instead,
+ * which is expected to be empty.
+ *
+ * Snapshots are never changed, so any number of threads can read one. See
+ * LiveAddressIndex for keeping one up to date.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public final class AddressIndex {
+
+  /**
+   * An index with no addresses in it
+   */
+  public static final AddressIndex EMPTY = new Builder().build();
+
+  private static final AddressType[] ADDRESS_TYPES = AddressType.values();
+
+  private static final Timer LOAD = Metrics.timer("db.AddressIndex.load");
+
+  // the bytes of every address, one after another
+  private final byte[] keys;
+  // where each address starts in keys, plus one more for where the last ends
+  private final int[] offsets;
+  // the ordinal of each address's type
+  private final byte[] types;
+  // the hash of each address, so most mismatches don't compare bytes
+  private final int[] hashes;
+  // entry + 1 for each used slot, 0 for empty
+  private final int[] slots;
+  private final int mask;
+  private final Map<String, AddressType> others;
+
+  private AddressIndex(byte[] keys, int[] offsets, byte[] types, int[] hashes,
+      int[] slots, Map<String, AddressType> others) {
+    this.keys = keys;
+    this.offsets = offsets;
+    this.types = types;
+    this.hashes = hashes;
+    this.slots = slots;
+    this.mask = slots.length - 1;
+    this.others = others;
+  }
+
+  /**
+   * Read every address in the database.
+   *
+   * @return the index, or null if the addresses couldn't be read
+   */
+  public static AddressIndex load() {
+    try (Timer.Context ctx = LOAD.time()) {
+      Builder builder = new Builder();
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        ResultSet rs = c.createStatement().executeQuery(
+            "SELECT ADDRESS, ADDRESS_TYPE FROM ADDRESSES");
+        while (rs.next()) {
+          builder.add(rs.getString(1),
+              Codec.getEnum(rs, "ADDRESS_TYPE", ADDRESS_TYPES));
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(AddressIndex.class.getName()).log(Level.SEVERE, null, ex);
+        return null;
+      }
+      return builder.build();
+    }
+  }
+
+  /**
+   * Get the type of an address.
+   *
+   * @param address the address
+   * @return its type, or null if the address isn't in the index
+   */
+  public AddressType get(String address) {
+    int hash = hash(address);
+    for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+      int entry = slots[slot] - 1;
+      if (entry < 0) {
+        // only ASCII addresses are in slots
+        return others.isEmpty() ? null : others.get(address);
+      }
+      if (hashes[entry] == hash && matches(entry, address)) {
+        return ADDRESS_TYPES[types[entry]];
+      }
+    }
+  }
+
+  /**
+   * @return how many addresses are in the index
+   */
+  public int size() {
+    return types.length + others.size();
+  }
+
+  private boolean matches(int entry, String address) {
+    int start = offsets[entry];
+    int length = address.length();
+    if (offsets[entry + 1] - start != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (keys[start + i] != address.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return a non negative hash of an address
+   */
+  private static int hash(String address) {
+    // String caches this, and it's the same sum as below for ASCII
+    return finish(address.hashCode());
+  }
+
+  private static boolean isAscii(String address) {
+    for (int i = 0; i < address.length(); i++) {
+      if (address.charAt(i) > 0x7f) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the same hash as hash(String) for the bytes of an address
+   */
+  private static int hash(byte[] bytes, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + bytes[i];
+    }
+    return finish(h);
+  }
+
+  private static int finish(int h) {
+    // String.hashCode() barely changes the low bits, which pick the slot, so
+    // mix the whole thing into them
+    h *= 0x9e3779b9;
+    h ^= h >>> 16;
+    return h & 0x7fffffff;
+  }
+
+  /**
+   * Collects addresses for a new index. Each address should only be added
+   * once.
+   */
+  static final class Builder {
+
+    private byte[] keys = new byte[1024];
+    private int[] offsets = new int[33];
+    private byte[] types = new byte[32];
+    private int size;
+    private final Map<String, AddressType> others = new HashMap<>();
+
+    /**
+     * @param address the address
+     * @param type its type (addresses without one are left out)
+     */
+    void add(String address, AddressType type) {
+      if (type == null) {
+        return;
+      }
+      if (!isAscii(address)) {
+        others.put(address, type);
+        return;
+      }
+      int start = offsets[size];
+      int end = start + address.length();
+      if (end > keys.length) {
+        keys = Arrays.copyOf(keys, Math.max(end, keys.length * 2));
+      }
+      for (int i = 0; i < address.length(); i++) {
+        keys[start + i] = (byte) address.charAt(i);
+      }
+      if (size == types.length) {
+        types = Arrays.copyOf(types, size * 2);
+        offsets = Arrays.copyOf(offsets, size * 2 + 1);
+      }
+      types[size] = (byte) type.ordinal();
+      offsets[++size] = end;
+    }
+
+    AddressIndex build() {
+      // at most half full so misses, the common case, stop quickly
+      int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+      int[] slots = new int[capacity];
+      int mask = capacity - 1;
+      int[] hashes = new int[size];
+      for (int entry = 0; entry < size; entry++) {
+        hashes[entry] = hash(keys, offsets[entry], offsets[entry + 1]);
+        int slot = hashes[entry] & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry + 1;
+      }
+      return new AddressIndex(Arrays.copyOf(keys, offsets[size]),
+          Arrays.copyOf(offsets, size + 1), Arrays.copyOf(types, size), hashes,
+          slots,
+          others.isEmpty() ? Collections.<String, AddressType>emptyMap()
+              : new HashMap<>(others));
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.metrics.Metrics;
+import com.clothcat.hat.metrics.Timer;
+import com.clothcat.hat.util.Constants;
+import com.clothcat.hat.util.HLogger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves rows we'll only ever want for history out of the live tables, so
+ * HEAPS and TRANSACTIONS only grow with what's actually going on and not with
+ * everything that has ever happened:
+ * <ul>
+ * <li>OBSOLETE heaps go to HEAPS_ARCHIVE</li>
+ * <li>transactions processed more than a while ago go to
+ * TRANSACTIONS_ARCHIVE</li>
+ * </ul>
+ * Everything else only ever looks at the live tables. To look back through
+ * history use the getHistory() methods of CoinHeap and Transaction, which
+ * look at both.
+ *
+ * Rows are moved a batch at a time, each batch in its own database
+ * transaction, so archiving a big backlog never holds the writer connection
+ * for long.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class Archiver {
+
+  /**
+   * How many rows to move in each database transaction
+   */
+  public static final String PROP_BATCH = "hat.archive.batch";
+  /**
+   * How many days after being processed a transaction is archived
+   */
+  public static final String PROP_PROCESSED_DAYS = "hat.archive.processed_days";
+
+  private static final Timer HEAPS = Metrics.timer("db.Archiver.archiveHeaps");
+  private static final Timer TRANSACTIONS
+      = Metrics.timer("db.Archiver.archiveTransactions");
+
+  private Archiver() {
+  }
+
+  /**
+   * Archive everything that's due, with the batch size and age given by the
+   * system properties.
+   *
+   * @return how many rows were archived, or -1 if archiving failed (rows moved
+   * before the failure stay moved)
+   */
+  public static int archive() {
+    int batch = Integer.getInteger(PROP_BATCH, 500);
+    long days = Long.getLong(PROP_PROCESSED_DAYS, 30);
+    long before = System.currentTimeMillis() / 1000 - days * Constants.SECS_IN_DAY;
+    int heaps = archiveHeaps(batch);
+    int transactions = archiveTransactions(before, batch);
+    if (heaps < 0 || transactions < 0) {
+      return -1;
+    }
+    HLogger.log(Level.INFO, "Archived {0} heaps and {1} transactions", heaps,
+        transactions);
+    return heaps + transactions;
+  }
+
+  /**
+   * Move every OBSOLETE heap to HEAPS_ARCHIVE.
+   *
+   * @param batchSize how many to move in each database transaction
+   * @return how many were moved, or -1 if a batch failed
+   */
+  public static int archiveHeaps(int batchSize) {
+    try (Timer.Context ctx = HEAPS.time()) {
+      // the HEAPS_STATUS index finds them without a scan
+      return move("HEAPS", "STATUS=" + HeapStatus.OBSOLETE.ordinal(), batchSize);
+    }
+  }
+
+  /**
+   * Move transactions processed before a given time to TRANSACTIONS_ARCHIVE.
+   *
+   * @param processedBefore UNIX timestamp; transactions processed earlier than
+   * this are moved. Unprocessed ones never are.
+   * @param batchSize how many to move in each database transaction
+   * @return how many were moved, or -1 if a batch failed
+   */
+  public static int archiveTransactions(long processedBefore, int batchSize) {
+    try (Timer.Context ctx = TRANSACTIONS.time()) {
+      return move("TRANSACTIONS", "PROCESSED_TIME<>0 AND PROCESSED_TIME<"
+          + processedBefore, batchSize);
+    }
+  }
+
+  private static int move(String table, String where, final int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be at least 1");
+    }
+    // both statements pick the same rows as the writer is ours throughout
+    final String pick = "SELECT rowid FROM " + table + " WHERE " + where
+        + " LIMIT " + batchSize;
+    final String copy = "INSERT OR REPLACE INTO " + table + "_ARCHIVE"
+        + " SELECT * FROM " + table + " WHERE rowid IN (" + pick + ")";
+    final String delete = "DELETE FROM " + table + " WHERE rowid IN (" + pick
+        + ")";
+    final int[] moved = new int[1];
+    int total = 0;
+    try {
+      DatabaseHelper dbh = DatabaseHelper.getInstance();
+      do {
+        boolean ok = dbh.inTransaction(() -> {
+          try (Connection c = dbh.getConnection();
+              PreparedStatement ins = c.prepareStatement(copy);
+              PreparedStatement del = c.prepareStatement(delete)) {
+            moved[0] = ins.executeUpdate();
+            return del.executeUpdate() == moved[0];
+          }
+        });
+        if (!ok) {
+          return -1;
+        }
+        total += moved[0];
+      } while (moved[0] == batchSize);
+    } catch (SQLException ex) {
+      Logger.getLogger(Archiver.class.getName()).log(Level.SEVERE, null, ex);
+      return -1;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes many rows with one statement using JDBC batches, all inside a single
+ * database transaction, so storing thousands of rows costs one sync to disk
+ * rather than one per row.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+class BatchWriter {
+
+  /**
+   * How many rows go in each JDBC batch if not told otherwise
+   */
+  static final int DEFAULT_CHUNK_SIZE = 500;
+
+  /**
+   * Sets the parameters of a statement from a row object.
+   */
+  static interface Binder<T> {
+
+    void bind(PreparedStatement ps, T row) throws SQLException;
+  }
+
+  /**
+   * Run sql once for each row.
+   *
+   * Rows are sent in batches of chunkSize. If a batch fails (eg one row breaks a
+   * constraint) it's rolled back and its rows are run one at a time so that only
+   * the bad rows fail.
+   *
+   * @param sql the statement to run
+   * @param rows the rows to bind to the statement
+   * @param chunkSize how many rows go in each JDBC batch
+   * @param binder sets the statement parameters from a row
+   * @return whether each row was written, in the order the rows were given. If
+   * the transaction as a whole fails every row is false.
+   */
+  static <T> boolean[] write(String sql, Collection<T> rows, int chunkSize,
+      Binder<T> binder) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be at least 1");
+    }
+    boolean[] reply = new boolean[rows.size()];
+    if (rows.isEmpty()) {
+      return reply;
+    }
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      boolean autoCommit = c.getAutoCommit();
+      c.setAutoCommit(false);
+      try {
+        List<T> chunk = new ArrayList<>(Math.min(chunkSize, rows.size()));
+        int start = 0;
+        for (T row : rows) {
+          chunk.add(row);
+          if (chunk.size() == chunkSize) {
+            writeChunk(c, sql, chunk, binder, reply, start);
+            start += chunk.size();
+            chunk.clear();
+          }
+        }
+        writeChunk(c, sql, chunk, binder, reply, start);
+        if (autoCommit) {
+          c.commit();
+        }
+      } catch (SQLException ex) {
+        if (autoCommit) {
+          c.rollback();
+        }
+        throw ex;
+      } finally {
+        c.setAutoCommit(autoCommit);
+      }
+    } catch (SQLException ex) {
+      Logger.getLogger(BatchWriter.class.getName()).log(Level.SEVERE, null, ex);
+      return new boolean[rows.size()];
+    }
+    return reply;
+  }
+
+  private static <T> void writeChunk(Connection c, String sql, List<T> chunk,
+      Binder<T> binder, boolean[] reply, int start) throws SQLException {
+    if (chunk.isEmpty()) {
+      return;
+    }
+    // a savepoint lets a bad chunk be undone without losing earlier chunks
+    Statement st = c.createStatement();
+    st.execute("SAVEPOINT chunk");
+    // a statement whose batch has failed can't be trusted afterwards, so each
+    // chunk (and each retry) gets its own
+    try (PreparedStatement ps = c.prepareStatement(sql)) {
+      for (T row : chunk) {
+        binder.bind(ps, row);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+      for (int i = 0; i < chunk.size(); i++) {
+        reply[start + i] = true;
+      }
+    } catch (SQLException ex) {
+      // not every driver version throws BatchUpdateException here
+      st.execute("ROLLBACK TO chunk");
+      // find out which rows are the problem
+      for (int i = 0; i < chunk.size(); i++) {
+        try (PreparedStatement ps = c.prepareStatement(sql)) {
+          binder.bind(ps, chunk.get(i));
+          ps.executeUpdate();
+          reply[start + i] = true;
+        } catch (SQLException rowEx) {
+          Logger.getLogger(BatchWriter.class.getName()).log(Level.WARNING,
+              "Row not written: " + rowEx.getMessage());
+        }
+      }
+    }
+    st.execute("RELEASE chunk");
+    st.close();
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.metrics.Metrics;
+import com.clothcat.hat.metrics.Timer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The height of the best block the wallet knows about. Heaps record the height
+ * of the block they were confirmed in and work out their confirmations from
+ * this, so a new block means one write here rather than one per heap.
+ *
+ * The height is stored in the one row CHAIN_TIP table and cached. getHeight()
+ * only ever reads the cache, so it's cheap enough for CoinHeap's getters;
+ * call load() at startup (CoinTracker does) to fill the cache from the table.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class ChainTip {
+
+  private static final Timer SET = Metrics.timer("db.ChainTip.setHeight");
+
+  // only keeps setHeight() callers in order, getHeight() never waits for it
+  private static final Object lock = new Object();
+  // -1 until loaded from the database or set
+  private static final AtomicLong height = new AtomicLong(-1);
+
+  private ChainTip() {
+  }
+
+  /**
+   * @return the height of the best block, or 0 if it isn't known (yet)
+   */
+  public static long getHeight() {
+    return Math.max(height.get(), 0);
+  }
+
+  /**
+   * Fill the cache from the database, unless it already holds a height.
+   *
+   * @return the height of the best block, or 0 if it has never been known
+   */
+  public static long load() {
+    if (height.get() < 0) {
+      long stored = read();
+      if (stored >= 0) {
+        height.compareAndSet(-1, stored);
+      }
+    }
+    return getHeight();
+  }
+
+  /**
+   * Record a new best block height. Nothing is written if it hasn't changed.
+   *
+   * @param newHeight the height, eg from getblockcount
+   * @return true if it was stored (or didn't need to be)
+   */
+  public static boolean setHeight(long newHeight) {
+    try (Timer.Context ctx = SET.time()) {
+      synchronized (lock) {
+        if (newHeight == height.get()) {
+          return true;
+        }
+        try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+          PreparedStatement ps = c.prepareStatement("INSERT INTO CHAIN_TIP "
+              + "(ID, HEIGHT, UPDATED_TIME) VALUES (0, ?, ?) ON CONFLICT (ID) "
+              + "DO UPDATE SET HEIGHT=excluded.HEIGHT, "
+              + "UPDATED_TIME=excluded.UPDATED_TIME");
+          ps.setLong(1, newHeight);
+          ps.setLong(2, System.currentTimeMillis() / 1000);
+          ps.executeUpdate();
+          height.set(newHeight);
+          return true;
+        } catch (SQLException ex) {
+          Logger.getLogger(ChainTip.class.getName()).log(Level.SEVERE, null, ex);
+          return false;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the stored height, 0 if there isn't one or -1 if it couldn't be
+   * read
+   */
+  private static long read() {
+    try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+      ResultSet rs = c.createStatement().executeQuery(
+          "SELECT HEIGHT FROM CHAIN_TIP WHERE ID=0");
+      return rs.next() ? rs.getLong(1) : 0;
+    } catch (SQLException ex) {
+      Logger.getLogger(ChainTip.class.getName()).log(Level.SEVERE, null, ex);
+      return -1;
+    }
+  }
+}
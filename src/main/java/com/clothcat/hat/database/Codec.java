@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * How hashes and enums are stored, so the DAOs don't each need to know.
+ *
+ * Transaction ids and block hashes are 64 lowercase hex characters, which are
+ * stored as the 32 bytes they stand for. That halves the size of the primary
+ * keys of HEAPS and TRANSACTIONS and of everything which indexes them. Anything
+ * else (eg made up ids in tests) is stored as text, so a hash is always
+ * stored the same way and lookups with = work either way.
+ *
+ * Enums are stored as their ordinal. So never reorder or remove enum values
+ * which are stored, only add new ones at the end.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+final class Codec {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private Codec() {
+  }
+
+  /**
+   * @param hash a transaction id or block hash
+   * @return what to store for it, a byte[] or the hash itself
+   */
+  static Object encodeHash(String hash) {
+    if (hash == null || hash.length() != 64) {
+      return hash;
+    }
+    byte[] bytes = new byte[32];
+    for (int i = 0; i < 32; i++) {
+      int hi = Character.digit(hash.charAt(2 * i), 16);
+      int lo = Character.digit(hash.charAt(2 * i + 1), 16);
+      // upper case would come back lower case, so store that as text too
+      if (hi < 0 || lo < 0 || Character.isUpperCase(hash.charAt(2 * i))
+          || Character.isUpperCase(hash.charAt(2 * i + 1))) {
+        return hash;
+      }
+      bytes[i] = (byte) (hi << 4 | lo);
+    }
+    return bytes;
+  }
+
+  /**
+   * @param stored what was stored for a hash
+   * @return the hash
+   */
+  static String decodeHash(Object stored) {
+    if (!(stored instanceof byte[])) {
+      return (String) stored;
+    }
+    byte[] bytes = (byte[]) stored;
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+      hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  static void setHash(PreparedStatement ps, int i, String hash)
+      throws SQLException {
+    Object stored = encodeHash(hash);
+    if (stored instanceof byte[]) {
+      ps.setBytes(i, (byte[]) stored);
+    } else {
+      ps.setString(i, hash);
+    }
+  }
+
+  static String getHash(ResultSet rs, String column) throws SQLException {
+    return decodeHash(rs.getObject(column));
+  }
+
+  static void setEnum(PreparedStatement ps, int i, Enum<?> e)
+      throws SQLException {
+    ps.setInt(i, e.ordinal());
+  }
+
+  /**
+   * @param rs the row
+   * @param column the column holding the enum
+   * @param values the enum's values(), which callers should keep rather than
+   * calling values() (which copies the array) for every row
+   * @return the enum, or null if the column is null
+   */
+  static <E extends Enum<E>> E getEnum(ResultSet rs, String column, E[] values)
+      throws SQLException {
+    int ordinal = rs.getInt(column);
+    return rs.wasNull() ? null : values[ordinal];
+  }
+
+  /**
+   * SQL which converts a hash column from the old hex text.
+   */
+  static String hashFromText(String column) {
+    return "CASE WHEN length(" + column + ")=64 AND " + column
+        + " NOT GLOB '*[^0-9a-f]*' THEN unhex(" + column + ") ELSE " + column
+        + " END";
+  }
+
+  /**
+   * SQL which converts an enum column from the old enum name text.
+   */
+  static String enumFromText(String column, Enum<?>[] values) {
+    StringBuilder sb = new StringBuilder("CASE ").append(column);
+    for (Enum<?> e : values) {
+      sb.append(" WHEN '").append(e.name()).append("' THEN ")
+          .append(e.ordinal());
+    }
+    return sb.append(" END").toString();
+  }
+}
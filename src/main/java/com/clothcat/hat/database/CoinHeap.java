@@ -23,10 +23,16 @@
  */
 package com.clothcat.hat.database;
 
+import com.clothcat.hat.metrics.Metrics;
+import com.clothcat.hat.metrics.Timer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,7 +43,8 @@ import java.util.logging.Logger;
  * block hash/block index pair (which is partly the transaction id). We get a
  * list of the current coin heaps using the cclistcoins rpc command. We also
  * keep stored in the database all heaps we've ever handled even after they're
- * no longer relevant.
+ * no longer relevant, though once OBSOLETE they are moved to HEAPS_ARCHIVE by
+ * Archiver and only getHistory() sees them.
  *
  * Each heap has a status which defines what it's for.
  *
@@ -45,6 +52,12 @@ import java.util.logging.Logger;
  */
 public class CoinHeap {
 
+  /**
+   * Once a heap has this many confirmations we consider it firmly entrenched
+   * in the block chain and stop tracking further confirmations.
+   */
+  public static final int MAX_CONFIRMATIONS = 100;
+
 //<editor-fold defaultstate="collapsed" desc="fields">
   /**
    * A descriptive name that can be used to see what this heap is for
@@ -57,12 +70,19 @@ public class CoinHeap {
   private long amount;
 
   /**
-   * How many confirmations the heap has (we stop tracking/caring about this
-   * once it reaches 100 as we then decide it's confirmed enough and firmly
-   * entrenched in the blockchain
+   * How many confirmations the heap had when last synced (we stop
+   * tracking/caring about this once it reaches 100 as we then decide it's
+   * confirmed enough and firmly entrenched in the blockchain). Only used until
+   * the height is known.
    */
   private int confirmations;
 
+  /**
+   * Height of the block the heap was confirmed in, or 0 if not known yet (eg
+   * it's unconfirmed). Confirmations are worked out from this and ChainTip.
+   */
+  private int height;
+
   /**
    * When the heap was created (seconds since the UNIX epoch
    */
@@ -79,7 +99,60 @@ public class CoinHeap {
   private int blockIndex;
 
   private HeapStatus status;
+
+  private static final String UPSERT_SQL = Upsert.sql("HEAPS",
+      new String[]{"NAME", "BLOCK_HASH", "BLOCK_INDEX", "AMOUNT", "CONFIRMATIONS",
+        "TIME_CREATED", "STATUS", "HEIGHT"},
+      "BLOCK_HASH", "BLOCK_INDEX");
+
+  private static final BatchWriter.Binder<CoinHeap> BINDER
+      = new BatchWriter.Binder<CoinHeap>() {
+        @Override
+        public void bind(PreparedStatement ps, CoinHeap heap) throws SQLException {
+          ps.setString(1, heap.name);
+          Codec.setHash(ps, 2, heap.blockHash);
+          ps.setInt(3, heap.blockIndex);
+          ps.setLong(4, heap.amount);
+          ps.setInt(5, heap.confirmations);
+          ps.setLong(6, heap.timeCreated);
+          Codec.setEnum(ps, 7, heap.status);
+          setHeight(ps, 8, heap.height);
+        }
+      };
+
+  private static final HeapStatus[] STATUSES = HeapStatus.values();
+
+  private static final Timer GET = Metrics.timer("db.CoinHeap.getHeap");
+  private static final Timer GET_BY_NAME = Metrics.timer("db.CoinHeap.getHeapByName");
+  private static final Timer SAVE = Metrics.timer("db.CoinHeap.save");
+  private static final Timer STORE = Metrics.timer("db.CoinHeap.storeHeap");
+  private static final Timer STORE_ALL = Metrics.timer("db.CoinHeap.storeAll");
+  private static final Timer STORE_ALL_OR_NONE = Metrics.timer("db.CoinHeap.storeAllOrNone");
+  private static final Timer LIVE = Metrics.timer("db.CoinHeap.getLiveHeaps");
+  private static final Timer HISTORY = Metrics.timer("db.CoinHeap.getHistory");
+  private static final Timer CONFIRMED = Metrics.timer("db.CoinHeap.getConfirmedHeaps");
+  private static final Timer APPLY_SYNC = Metrics.timer("db.CoinHeap.applySync");
 //</editor-fold>
+
+  public CoinHeap() {
+  }
+
+  /**
+   * Make a copy of a heap.
+   *
+   * @param other the heap to copy
+   */
+  public CoinHeap(CoinHeap other) {
+    name = other.name;
+    amount = other.amount;
+    confirmations = other.confirmations;
+    height = other.height;
+    timeCreated = other.timeCreated;
+    blockHash = other.blockHash;
+    blockIndex = other.blockIndex;
+    status = other.status;
+  }
+
   //<editor-fold defaultstate="collapsed" desc="accessors">
 
   /**
@@ -111,10 +184,16 @@ public class CoinHeap {
   }
 
   /**
-   * @return the confirmations
+   * @return the confirmations, from the height and ChainTip if the height is
+   * known, otherwise as last synced
    */
   public int getConfirmations() {
-    return confirmations;
+    long tip = ChainTip.getHeight();
+    if (height <= 0 || tip <= 0) {
+      return confirmations;
+    }
+    // a stale tip mustn't make a confirmed heap look unconfirmed
+    return (int) Math.max(1, tip - height + 1);
   }
 
   /**
@@ -124,6 +203,20 @@ public class CoinHeap {
     this.confirmations = confirmations;
   }
 
+  /**
+   * @return the height of the block the heap was confirmed in, 0 if not known
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * @param height the height to set, 0 if not known
+   */
+  public void setHeight(int height) {
+    this.height = height;
+  }
+
   /**
    * @return the timeCreated
    */
@@ -182,74 +275,289 @@ public class CoinHeap {
 //</editor-fold>
 
   public static CoinHeap getHeap(String blockHash, int blockIndex) {
-    CoinHeap heap = null;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      PreparedStatement ps = c.prepareStatement("SELECT * FROM HEAPS WHERE "
-          + "BLOCK_HASH=? AND BLOCK_INDEX=?");
-      ps.setString(1, blockHash);
-      ps.setInt(2, blockIndex);
-      ResultSet rs = ps.executeQuery();
-      if (rs.next()) {
-        heap = new CoinHeap();
-        heap.name = rs.getString("NAME");
-        heap.blockHash = rs.getString("BLOCK_HASH");
-        heap.blockIndex = rs.getInt("BLOCK_INDEX");
-        heap.amount = rs.getLong("AMOUNT");
-        heap.confirmations = rs.getInt("CONFIRMATIONS");
-        heap.timeCreated = rs.getLong("TIME_CREATED");
-        heap.status = HeapStatus.valueOf(rs.getString("STATUS"));
+    try (Timer.Context ctx = GET.time()) {
+      CoinHeap heap = null;
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = c.prepareStatement("SELECT * FROM HEAPS WHERE "
+            + "BLOCK_HASH=? AND BLOCK_INDEX=?");
+        Codec.setHash(ps, 1, blockHash);
+        ps.setInt(2, blockIndex);
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+          heap = fromRow(rs);
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
       }
-    } catch (SQLException ex) {
-      Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
+      return heap;
     }
-    return heap;
   }
 
   public static CoinHeap getHeap(String name) {
-    CoinHeap heap = null;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      PreparedStatement ps = c.prepareStatement("SELECT * FROM HEAPS WHERE "
-          + "NAME=?");
-      ps.setString(1, name);
-      ResultSet rs = ps.executeQuery();
-      if (rs.next()) {
-        heap = new CoinHeap();
-        heap.name = rs.getString("NAME");
-        heap.blockHash = rs.getString("BLOCK_HASH");
-        heap.blockIndex = rs.getInt("BLOCK_INDEX");
-        heap.amount = rs.getLong("AMOUNT");
-        heap.confirmations = rs.getInt("CONFIRMATIONS");
-        heap.timeCreated = rs.getLong("TIME_CREATED");
-        heap.status = HeapStatus.valueOf(rs.getString("STATUS"));
+    try (Timer.Context ctx = GET_BY_NAME.time()) {
+      CoinHeap heap = null;
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = c.prepareStatement("SELECT * FROM HEAPS WHERE "
+            + "NAME=?");
+        ps.setString(1, name);
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+          heap = fromRow(rs);
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return heap;
+    }
+  }
+
+  /**
+   * Save this heap, inserting it or updating the stored row as needed.
+   *
+   * @return whether it was inserted, updated, already up to date or failed
+   */
+  public SaveResult save() {
+    try (Timer.Context ctx = SAVE.time()) {
+      return Upsert.save("HEAPS", UPSERT_SQL, this, BINDER);
+    }
+  }
+
+  /**
+   * Store this heap, updating the stored row if it already exists.
+   *
+   * @return true if it was stored
+   */
+  public boolean storeHeap() {
+    try (Timer.Context ctx = STORE.time()) {
+      boolean reply = false;
+      try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+        PreparedStatement ps = c.prepareStatement(UPSERT_SQL);
+        BINDER.bind(ps, this);
+
+        ps.executeUpdate();
+        reply = true;
+      } catch (SQLException ex) {
+        Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
       }
+      return reply;
+    }
+  }
+
+  /**
+   * Store many heaps in one database transaction, updating any
+   * which are already stored.
+   *
+   * @param heaps the heaps to store
+   * @return whether each heap was stored, in iteration order
+   */
+  public static boolean[] storeAll(Collection<CoinHeap> heaps) {
+    return storeAll(heaps, BatchWriter.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Store many heaps in one database transaction, updating any
+   * which are already stored.
+   *
+   * @param heaps the heaps to store
+   * @param chunkSize how many rows to send to the database at a time
+   * @return whether each heap was stored, in iteration order
+   */
+  public static boolean[] storeAll(Collection<CoinHeap> heaps, int chunkSize) {
+    try (Timer.Context ctx = STORE_ALL.time()) {
+      return BatchWriter.write(UPSERT_SQL, heaps, chunkSize, BINDER);
+    }
+  }
+
+  /**
+   * Store several heaps in a single database transaction, so that either all
+   * of them are stored or none are. Use this rather than storeAll() when the
+   * heaps only make sense together, eg when moving them into a pool.
+   *
+   * @param heaps the heaps to store
+   * @return true if every heap was stored, false if none were
+   */
+  public static boolean storeAllOrNone(final Collection<CoinHeap> heaps) {
+    try (Timer.Context ctx = STORE_ALL_OR_NONE.time()) {
+      return DatabaseHelper.getInstance().inTransaction(() -> {
+        try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+          PreparedStatement ps = c.prepareStatement(UPSERT_SQL);
+          for (CoinHeap heap : heaps) {
+            BINDER.bind(ps, heap);
+            ps.addBatch();
+          }
+          ps.executeBatch();
+        }
+        return true;
+      });
     } catch (SQLException ex) {
       Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
+      return false;
     }
-    return heap;
   }
 
-  public boolean storeHeap() {
-    boolean reply = false;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      String INSERT_SQL = "INSERT INTO HEAPS VALUES (?, ?, ?, ?, ?, ?, ?)";
-
-      PreparedStatement ps = c.prepareStatement(INSERT_SQL);
-      ps.setString(1, name);
-      ps.setString(2, blockHash);
-      ps.setInt(3, blockIndex);
-      ps.setLong(4, amount);
-      ps.setInt(5, confirmations);
-      ps.setLong(6, timeCreated);
-      ps.setString(7, status.name());
-
-      ps.executeUpdate();
-      reply = true;
+  /**
+   * Get every heap that isn't OBSOLETE, ie everything that should currently be
+   * in the wallet.
+   *
+   * @return a List of the live heaps
+   */
+  public static List<CoinHeap> getLiveHeaps() {
+    try (Timer.Context ctx = LIVE.time()) {
+      List<CoinHeap> list = new ArrayList<>();
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = c.prepareStatement("SELECT * FROM HEAPS WHERE "
+            + "STATUS<>?");
+        Codec.setEnum(ps, 1, HeapStatus.OBSOLETE);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          list.add(fromRow(rs));
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return list;
+    }
+  }
+
+  /**
+   * Get the live heaps which have at least some number of confirmations. This
+   * is a comparison on HEIGHT, so is answered from its index, but heaps
+   * whose height isn't known yet aren't included.
+   *
+   * @param confirmations how many confirmations they must have
+   * @return the heaps
+   */
+  public static List<CoinHeap> getConfirmedHeaps(int confirmations) {
+    try (Timer.Context ctx = CONFIRMED.time()) {
+      List<CoinHeap> list = new ArrayList<>();
+      long tip = ChainTip.load();
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = c.prepareStatement("SELECT * FROM HEAPS WHERE "
+            + "HEIGHT<=? AND STATUS<>?");
+        ps.setLong(1, tip - confirmations + 1);
+        Codec.setEnum(ps, 2, HeapStatus.OBSOLETE);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          list.add(fromRow(rs));
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return list;
+    }
+  }
+
+  /**
+   * Get every heap ever stored with a name, archived or not.
+   *
+   * @param name a heap name
+   * @return the heaps, oldest first
+   */
+  public static List<CoinHeap> getHistory(String name) {
+    try (Timer.Context ctx = HISTORY.time()) {
+      List<CoinHeap> list = new ArrayList<>();
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        // a heap which came back after a re-org can be in both; the live row
+        // is the one that counts
+        PreparedStatement ps = c.prepareStatement("SELECT * FROM HEAPS "
+            + "WHERE NAME=? "
+            + "UNION ALL "
+            + "SELECT * FROM HEAPS_ARCHIVE a WHERE NAME=? AND NOT EXISTS "
+            + "(SELECT 1 FROM HEAPS h WHERE h.BLOCK_HASH=a.BLOCK_HASH "
+            + "AND h.BLOCK_INDEX=a.BLOCK_INDEX) "
+            + "ORDER BY TIME_CREATED");
+        ps.setString(1, name);
+        ps.setString(2, name);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          list.add(fromRow(rs));
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return list;
+    }
+  }
+
+  /**
+   * Write the result of comparing a wallet snapshot with the HEAPS table. All
+   * the changes are made in a single database transaction, so either all of
+   * them are applied or none are.
+   *
+   * @param inserted heaps which are new in the wallet
+   * @param confirmed heaps whose confirmations or height have changed
+   * @param obsoleted heaps which have gone from the wallet. Their status should
+   * already be OBSOLETE.
+   * @return true if the changes were written
+   */
+  public static boolean applySync(final Collection<CoinHeap> inserted,
+      final Collection<CoinHeap> confirmed, final Collection<CoinHeap> obsoleted) {
+    try (Timer.Context ctx = APPLY_SYNC.time()) {
+      return DatabaseHelper.getInstance().inTransaction(() -> {
+        try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+          // a heap we've seen before can come back after a re-org, in which
+          // case it updates the obsolete row
+          PreparedStatement ins = c.prepareStatement(UPSERT_SQL);
+          for (CoinHeap heap : inserted) {
+            BINDER.bind(ins, heap);
+            ins.addBatch();
+          }
+          ins.executeBatch();
+
+          PreparedStatement conf = c.prepareStatement("UPDATE HEAPS SET "
+              + "CONFIRMATIONS=?, HEIGHT=? WHERE BLOCK_HASH=? AND BLOCK_INDEX=?");
+          for (CoinHeap heap : confirmed) {
+            conf.setInt(1, heap.confirmations);
+            setHeight(conf, 2, heap.height);
+            Codec.setHash(conf, 3, heap.blockHash);
+            conf.setInt(4, heap.blockIndex);
+            conf.addBatch();
+          }
+          conf.executeBatch();
+
+          PreparedStatement gone = c.prepareStatement("UPDATE HEAPS SET "
+              + "STATUS=? WHERE BLOCK_HASH=? AND BLOCK_INDEX=?");
+          for (CoinHeap heap : obsoleted) {
+            Codec.setEnum(gone, 1, heap.status);
+            Codec.setHash(gone, 2, heap.blockHash);
+            gone.setInt(3, heap.blockIndex);
+            gone.addBatch();
+          }
+          gone.executeBatch();
+        }
+        return true;
+      });
     } catch (SQLException ex) {
-      Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+      Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
+      return false;
+    }
+  }
+
+  // unknown heights are stored as NULL to keep them out of the HEIGHT index
+  private static void setHeight(PreparedStatement ps, int i, int height)
+      throws SQLException {
+    if (height > 0) {
+      ps.setInt(i, height);
+    } else {
+      ps.setNull(i, Types.INTEGER);
     }
-    return reply;
   }
 
+  private static CoinHeap fromRow(ResultSet rs) throws SQLException {
+    CoinHeap heap = new CoinHeap();
+    heap.name = rs.getString("NAME");
+    heap.blockHash = Codec.getHash(rs, "BLOCK_HASH");
+    heap.blockIndex = rs.getInt("BLOCK_INDEX");
+    heap.amount = rs.getLong("AMOUNT");
+    heap.confirmations = rs.getInt("CONFIRMATIONS");
+    // NULL reads as 0, ie not known
+    heap.height = rs.getInt("HEIGHT");
+    heap.timeCreated = rs.getLong("TIME_CREATED");
+    heap.status = Codec.getEnum(rs, "STATUS", STATUSES);
+    return heap;
+  }
+
+  // stored by ordinal (see Codec), so only ever add values at the end
   public static enum HeapStatus {
 
     /**
@@ -24,157 +24,398 @@
 package com.clothcat.hat.database;
 
 import com.clothcat.hat.util.Constants;
+import com.clothcat.hat.util.HLogger;
 import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Class to encapsulate all database operations to the sqlite database.
  *
+ * There is one DatabaseHelper for the application, which holds the connections
+ * to the database open for as long as it runs: a single writer connection, and
+ * a small pool of read only connections. The database is put in WAL mode so the
+ * readers never block the writer or each other.
+ *
+ * Connections are borrowed with getConnection() (for writing) or
+ * getReadConnection() and given back by closing them, so the usual
+ * <pre>
+ * try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+ *   ...
+ * }
+ * </pre>
+ * is all that's needed. Any statements created on a borrowed connection are
+ * closed when it's given back. A thread that has borrowed the writer gets the
+ * writer again from either method until it gives it back, so nested calls work
+ * and reads see the thread's own uncommitted writes.
+ *
+ * The database and its tuning can be configured with these system properties:
+ * <ul>
+ * <li>hat.sqlite.url - jdbc url of the database (default
+ * Constants.SQLITE_JDBC_URL)</li>
+ * <li>hat.sqlite.readers - how many read connections to pool (default 4)</li>
+ * <li>hat.sqlite.synchronous - PRAGMA synchronous (default NORMAL, which is
+ * safe in WAL mode)</li>
+ * <li>hat.sqlite.cache_size - PRAGMA cache_size (default -16000, ie 16MB)</li>
+ * <li>hat.sqlite.mmap_size - PRAGMA mmap_size (default 64MB)</li>
+ * <li>hat.sqlite.temp_store - PRAGMA temp_store (default MEMORY)</li>
+ * </ul>
+ *
  * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
  */
 public class DatabaseHelper {
 
-  private Connection connection;
+  public static final String PROP_URL = "hat.sqlite.url";
+  public static final String PROP_READERS = "hat.sqlite.readers";
+  public static final String PROP_SYNCHRONOUS = "hat.sqlite.synchronous";
+  public static final String PROP_CACHE_SIZE = "hat.sqlite.cache_size";
+  public static final String PROP_MMAP_SIZE = "hat.sqlite.mmap_size";
+  public static final String PROP_TEMP_STORE = "hat.sqlite.temp_store";
+
+  /**
+   * How long (ms) a connection waits on a lock held by another before failing
+   */
+  private static final int BUSY_TIMEOUT = 10000;
+
+  private static DatabaseHelper instance;
+
+  private final String url;
+  private final BlockingQueue<Connection> writer = new ArrayBlockingQueue<>(1);
+  private final BlockingQueue<Connection> readers;
+  private final List<Connection> all = new ArrayList<>();
+  private final ThreadLocal<Borrowed> heldWriter = new ThreadLocal<>();
+
+  private DatabaseHelper() throws SQLException {
+    url = System.getProperty(PROP_URL, Constants.SQLITE_JDBC_URL);
+    int readerCount = Integer.getInteger(PROP_READERS, 4);
+    readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+    try {
+      Class.forName("org.sqlite.JDBC");
+    } catch (ClassNotFoundException ex) {
+      Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
+    }
+    // make sure the directory exists in case the database needs to be created
+    if (url.startsWith("jdbc:sqlite:") && !url.contains(":memory:")) {
+      File parent = new File(url.substring("jdbc:sqlite:".length())).getParentFile();
+      if (parent != null) {
+        parent.mkdirs();
+      }
+    }
+    try {
+      writer.add(open(false));
+      for (int i = 0; i < Math.max(1, readerCount); i++) {
+        readers.add(open(true));
+      }
+    } catch (SQLException ex) {
+      closeAll();
+      throw ex;
+    }
+  }
+
+  /**
+   * @return the DatabaseHelper, opening the database (and bringing its schema
+   * up to date) the first time it's called
+   * @throws SQLException if the database can't be opened or migrated
+   */
+  public static synchronized DatabaseHelper getInstance() throws SQLException {
+    if (instance == null) {
+      DatabaseHelper dbh = new DatabaseHelper();
+      try (Connection c = dbh.getConnection()) {
+        new SchemaMigrator().migrate(c);
+      } catch (SQLException ex) {
+        dbh.closeAll();
+        throw ex;
+      }
+      instance = dbh;
+      HLogger.log(Level.INFO, "Opened database " + instance.url);
+    }
+    return instance;
+  }
 
   /**
+   * Close every connection to the database. The next getInstance() will open
+   * it again, re-reading the configuration.
+   */
+  public static synchronized void shutdown() {
+    if (instance != null) {
+      instance.closeAll();
+      instance = null;
+    }
+  }
+
+  private Connection open(boolean readOnly) throws SQLException {
+    Connection c = DriverManager.getConnection(url);
+    all.add(c);
+    try (Statement st = c.createStatement()) {
+      st.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT);
+      if (!readOnly) {
+        // WAL is persistent, so only the writer needs to ask for it
+        st.execute("PRAGMA journal_mode=WAL");
+      }
+      st.execute("PRAGMA synchronous=" + pragma(PROP_SYNCHRONOUS, "NORMAL"));
+      st.execute("PRAGMA cache_size=" + pragma(PROP_CACHE_SIZE, "-16000"));
+      st.execute("PRAGMA mmap_size=" + pragma(PROP_MMAP_SIZE,
+          Long.toString(64L * Constants.MEBIBYTES)));
+      st.execute("PRAGMA temp_store=" + pragma(PROP_TEMP_STORE, "MEMORY"));
+      if (readOnly) {
+        st.execute("PRAGMA query_only=1");
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Pragma values go straight into the SQL so only allow plain words and
+   * numbers through.
+   */
+  private static String pragma(String property, String def) {
+    String value = System.getProperty(property, def).trim();
+    if (!value.matches("-?[A-Za-z0-9_]+")) {
+      throw new IllegalArgumentException("Bad value for " + property + ": " + value);
+    }
+    return value;
+  }
+
+  private synchronized void closeAll() {
+    for (Connection c : all) {
+      try {
+        c.close();
+      } catch (SQLException ex) {
+        Logger.getLogger(DatabaseHelper.class.getName()).log(Level.WARNING, null, ex);
+      }
+    }
+    all.clear();
+    writer.clear();
+    readers.clear();
+  }
+
+  /**
+   * Borrow the writer connection, waiting until it's free. Close it to give it
+   * back.
+   *
    * @return the connection
    * @throws java.sql.SQLException if there's a problem getting the connection
    */
   public Connection getConnection() throws SQLException {
-    if (connection == null || connection.isClosed()) {
-      // make sure the direcftory exists in case the database needs to be created
-      File f = new File(Constants.SQLITE_DIRECTORY);
-      f.mkdirs();
-      try {
-        Class.forName("org.sqlite.JDBC");
-      } catch (ClassNotFoundException ex) {
-        Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
-      }
-      connection = DriverManager.getConnection(Constants.SQLITE_JDBC_URL);
+    Borrowed held = heldWriter.get();
+    if (held != null) {
+      held.depth++;
+      return held.proxy;
     }
-    return connection;
+    Borrowed b = new Borrowed(take(writer), writer);
+    heldWriter.set(b);
+    return b.proxy;
   }
 
-  public boolean tableExists(String tableName) {
-    String sql = "SELECT name FROM sqlite_master WHERE type='table' AND name='" + tableName + "'";
+  /**
+   * Run some work in a single database transaction on the writer connection.
+   * If this thread is already in a transaction the work joins it, inside a
+   * savepoint, so it's still all or nothing.
+   *
+   * @param work what to do. It must use getConnection() (or the DAO methods,
+   * which do) so that it runs on the same connection.
+   * @return true if the work returned true and was committed, false if it
+   * returned false or failed and was rolled back
+   */
+  public boolean inTransaction(Work work) {
     boolean reply = false;
     try (Connection c = getConnection()) {
+      boolean autoCommit = c.getAutoCommit();
       Statement st = c.createStatement();
-      st.executeQuery(sql);
-      ResultSet rs = st.executeQuery(sql);
-      if (rs.next()) {
-        reply = rs.getString(1).equalsIgnoreCase(tableName);
+      if (autoCommit) {
+        c.setAutoCommit(false);
+      } else {
+        st.execute("SAVEPOINT work");
+      }
+      try {
+        reply = work.run();
+      } catch (SQLException | RuntimeException ex) {
+        Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
+        reply = false;
+      } finally {
+        if (autoCommit) {
+          if (reply) {
+            c.commit();
+          } else {
+            c.rollback();
+          }
+          c.setAutoCommit(true);
+        } else {
+          if (!reply) {
+            st.execute("ROLLBACK TO work");
+          }
+          st.execute("RELEASE work");
+        }
       }
     } catch (SQLException ex) {
       Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
+      reply = false;
     }
     return reply;
   }
 
   /**
-   * Create the POOLS table
+   * Borrow a read only connection, waiting until one is free. Close it to give
+   * it back.
+   *
+   * @return the connection (which is the writer if this thread has already
+   * borrowed it)
+   * @throws java.sql.SQLException if there's a problem getting the connection
    */
-  public void createPoolsTable() {
-    String sql = "CREATE TABLE IF NOT EXISTS POOLS ("
-        + "    NAME TEXT,"
-        + "    TYPE TEXT,"
-        + "    FILL_AMOUNT INTEGER,"
-        + "    MINT_AMOUNT INTEGER,"
-        + "    BONUS_AMOUNT INTEGER,"
-        + "    PRIMARY KEY (NAME)"
-        + ")";
-    if (!tableExists("POOLS")) {
-      try (Connection c = getConnection()) {
-        Statement st = c.createStatement();
-        st.executeUpdate(sql);
-      } catch (SQLException ex) {
-        Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
-      }
+  public Connection getReadConnection() throws SQLException {
+    Borrowed held = heldWriter.get();
+    if (held != null) {
+      held.depth++;
+      return held.proxy;
+    }
+    return new Borrowed(take(readers), readers).proxy;
+  }
+
+  private static Connection take(BlockingQueue<Connection> pool) throws SQLException {
+    try {
+      return pool.take();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a database connection", ex);
     }
   }
 
   /**
-   * Create the HEAPS table
+   * A connection on loan from one of the pools. The proxy handed out passes
+   * everything through to the real connection except close(), which gives the
+   * connection back.
    */
-  public void createHeapsTable() {
-    String sql = "CREATE TABLE IF NOT EXISTS HEAPS ("
-        + "    NAME TEXT,"
-        + "    BLOCK_HASH TEXT,"
-        + "    BLOCK_INDEX INTEGER,"
-        + "    AMOUNT INTEGER,"
-        + "    CONFIRMATIONS INTEGER,"
-        + "    TIME_CREATED INTEGER,"
-        + "    STATUS TEXT,"
-        + "    PRIMARY KEY (BLOCK_HASH, BLOCK_INDEX)"
-        + ")";
-    if (!tableExists("HEAPS")) {
-      try (Connection c = getConnection()) {
-        Statement st = c.createStatement();
-        st.executeUpdate(sql);
+  private class Borrowed implements InvocationHandler {
+
+    private final Connection connection;
+    private final BlockingQueue<Connection> pool;
+    private final Connection proxy;
+    private final List<Statement> statements = new ArrayList<>();
+    private int depth = 1;
+    private boolean returned;
+
+    Borrowed(Connection connection, BlockingQueue<Connection> pool) {
+      this.connection = connection;
+      this.pool = pool;
+      this.proxy = (Connection) Proxy.newProxyInstance(
+          Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+      switch (method.getName()) {
+        case "close":
+          release();
+          return null;
+        case "isClosed":
+          return returned;
+        case "equals":
+          return p == args[0];
+        case "hashCode":
+          return System.identityHashCode(p);
+        default:
+          if (returned) {
+            throw new SQLException("Connection has been given back to the pool");
+          }
+      }
+      Object reply;
+      try {
+        reply = method.invoke(connection, args);
+      } catch (InvocationTargetException ex) {
+        throw ex.getCause();
+      }
+      if (reply instanceof Statement) {
+        statements.add((Statement) reply);
+      }
+      return reply;
+    }
+
+    private void release() {
+      if (returned || --depth > 0) {
+        return;
+      }
+      returned = true;
+      for (Statement st : statements) {
+        try {
+          st.close();
+        } catch (SQLException ex) {
+          Logger.getLogger(DatabaseHelper.class.getName()).log(Level.WARNING, null, ex);
+        }
+      }
+      statements.clear();
+      try {
+        // don't let an unfinished transaction leak to the next borrower
+        if (!connection.getAutoCommit()) {
+          connection.rollback();
+          connection.setAutoCommit(true);
+        }
       } catch (SQLException ex) {
         Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
       }
+      if (pool == writer) {
+        heldWriter.remove();
+      }
+      pool.add(connection);
     }
   }
 
-  /**
-   * Create the ADDRESSES table
-   */
-  public void createAdressesTable() {
-    String sql = "CREATE TABLE IF NOT EXISTS ADDRESSES ("
-        + "    ADDRESS TEXT,"
-        + "    ADDRESS_TYPE TEXT,"
-        + "    PRIMARY KEY (ADDRESS)"
-        + ")";
-    if (!tableExists("ADDRESSES")) {
-      try (Connection c = getConnection()) {
-        Statement st = c.createStatement();
-        st.executeUpdate(sql);
-      } catch (SQLException ex) {
-        Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
+  public boolean tableExists(String tableName) {
+    String sql = "SELECT name FROM sqlite_master WHERE type='table' AND name='" + tableName + "'";
+    boolean reply = false;
+    try (Connection c = getReadConnection()) {
+      Statement st = c.createStatement();
+      ResultSet rs = st.executeQuery(sql);
+      if (rs.next()) {
+        reply = rs.getString(1).equalsIgnoreCase(tableName);
       }
+    } catch (SQLException ex) {
+      Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
     }
+    return reply;
   }
 
   /**
-   * Create the TRANSACTIONS table
+   * @return the schema version the database is at
    */
-  public void createTransactionsTable() {
-    String sql = "CREATE TABLE IF NOT EXISTS TRANSACTIONS ("
-        + "    TX_ID TEXT,"
-        + "    TX_INDEX INTEGER,"
-        + "    TX_TIMESTAMP INTEGER,"
-        + "    TX_TYPE TEXT,"
-        + "    PROCESSED_TIME INTEGER,"
-        + "    PRIMARY KEY (TX_ID, TX_INDEX)"
-        + ")";
-    if (!tableExists("TRANSACTIONS")) {
-      try (Connection c = getConnection()) {
-        Statement st = c.createStatement();
-        st.executeUpdate(sql);
-      } catch (SQLException ex) {
-        Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
-      }
+  public int getSchemaVersion() {
+    int reply = 0;
+    try (Connection c = getReadConnection()) {
+      reply = SchemaMigrator.getVersion(c.createStatement());
+    } catch (SQLException ex) {
+      Logger.getLogger(DatabaseHelper.class.getName()).log(Level.SEVERE, null, ex);
     }
+    return reply;
   }
 
-  public static void main(String[] args) {
-    DatabaseHelper dbh = new DatabaseHelper();
-    System.out.println("POOLS::" + dbh.tableExists("POOLS"));
-    System.out.println("HEAPS::" + dbh.tableExists("HEAPS"));
-    System.out.println("ADDRESSES::" + dbh.tableExists("ADDRESSES"));
-    System.out.println("TRANSACTIONS::" + dbh.tableExists("TRANSACTIONS"));
-    System.out.println("DOESNOTEXIST::" + dbh.tableExists("DOESNOTEXIST"));
-    dbh.createPoolsTable();
-    dbh.createHeapsTable();
-    dbh.createAdressesTable();
-    dbh.createTransactionsTable();
+  /**
+   * Database work to be done in a transaction by inTransaction().
+   */
+  public static interface Work {
+
+    /**
+     * @return true to commit, false to roll back
+     * @throws SQLException to roll back
+     */
+    boolean run() throws SQLException;
+  }
+
+  public static void main(String[] args) throws SQLException {
+    DatabaseHelper dbh = DatabaseHelper.getInstance();
+    System.out.println("Schema version::" + dbh.getSchemaVersion()
+        + " (latest " + SchemaMigrator.getLatestVersion() + ")");
     System.out.println("POOLS::" + dbh.tableExists("POOLS"));
     System.out.println("HEAPS::" + dbh.tableExists("HEAPS"));
     System.out.println("ADDRESSES::" + dbh.tableExists("ADDRESSES"));
@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.database.Address.AddressType;
+import com.clothcat.hat.util.HLogger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Keeps an AddressIndex of the ADDRESSES table up to date as addresses are
+ * written, without readers ever waiting for it.
+ *
+ * Writes go into a small map of recent changes which is looked at before the
+ * index, and each one asks for a new index to be built. That happens on a
+ * background thread from the database, and the new index is swapped in once
+ * it's ready. The recent changes it includes are then dropped. Only one build
+ * is waiting at a time, so a burst of writes costs one or two rebuilds.
+ *
+ * Nothing is indexed until load() is called, and until then get() answers
+ * null for everything.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class LiveAddressIndex {
+
+  private volatile AddressIndex index;
+  // writes are recorded from here on, even before the first index is ready
+  private volatile boolean started;
+  private final Map<String, AddressType> recent = new ConcurrentHashMap<>();
+  private final AtomicBoolean rebuildWanted = new AtomicBoolean();
+  private final AtomicInteger rebuilds = new AtomicInteger();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      r -> {
+        Thread t = new Thread(r, "address-index");
+        t.setDaemon(true);
+        return t;
+      });
+
+  /**
+   * Build the index from the database, waiting for it.
+   *
+   * @return true if it was built
+   */
+  public boolean load() {
+    started = true;
+    try {
+      return executor.submit(this::rebuild).get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException ex) {
+      HLogger.log(Level.SEVERE, "Couldn't build the address index", ex);
+      return false;
+    }
+  }
+
+  /**
+   * @return true once the index has been built
+   */
+  public boolean isLoaded() {
+    return index != null;
+  }
+
+  /**
+   * Get the type of an address.
+   *
+   * @param address the address
+   * @return its type, or null if the address isn't one we know
+   */
+  public AddressType get(String address) {
+    AddressType type = recent.get(address);
+    if (type != null) {
+      return type;
+    }
+    AddressIndex current = index;
+    return current == null ? null : current.get(address);
+  }
+
+  /**
+   * Record that an address has been written to the database, and have the
+   * index rebuilt to include it.
+   *
+   * @param address the address
+   * @param type its type now, or null if it's not known what was stored
+   */
+  void put(String address, AddressType type) {
+    if (!started) {
+      return;
+    }
+    if (type == null) {
+      recent.remove(address);
+    } else {
+      recent.put(address, type);
+    }
+    requestRebuild();
+  }
+
+  /**
+   * Have the index rebuilt in the background, eg after the ADDRESSES table
+   * has been changed behind our back.
+   *
+   * @return the rebuild, or null if one was already waiting to start
+   */
+  public Future<Boolean> requestRebuild() {
+    if (!rebuildWanted.compareAndSet(false, true)) {
+      return null;
+    }
+    return executor.submit(this::rebuild);
+  }
+
+  /**
+   * @return how many times the index has been built
+   */
+  public int getRebuilds() {
+    return rebuilds.get();
+  }
+
+  /**
+   * @return how many addresses are in the current index
+   */
+  public int size() {
+    AddressIndex current = index;
+    return current == null ? 0 : current.size();
+  }
+
+  private boolean rebuild() {
+    // writes from now on need another rebuild
+    rebuildWanted.set(false);
+    Map<String, AddressType> included = new HashMap<>(recent);
+    AddressIndex built = AddressIndex.load();
+    if (built == null) {
+      return false;
+    }
+    index = built;
+    rebuilds.incrementAndGet();
+    // unless it's been written again meanwhile
+    for (Map.Entry<String, AddressType> e : included.entrySet()) {
+      recent.remove(e.getKey(), e.getValue());
+    }
+    HLogger.log(Level.FINE, () -> "Address index rebuilt with "
+        + built.size() + " addresses");
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return "LiveAddressIndex[size=" + size() + ", recent=" + recent.size()
+        + ", rebuilds=" + rebuilds + "]";
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * One step in the evolution of the database schema. Migrations are numbered
+ * from 1 and are applied in order, each exactly once, by SchemaMigrator.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+abstract class Migration {
+
+  private final int version;
+  private final String description;
+
+  Migration(int version, String description) {
+    this.version = version;
+    this.description = description;
+  }
+
+  /**
+   * A migration which just runs some SQL statements in order.
+   */
+  static Migration of(int version, String description, final String... sql) {
+    return new Migration(version, description) {
+      @Override
+      void apply(Statement st) throws SQLException {
+        for (String s : sql) {
+          st.executeUpdate(s);
+        }
+      }
+    };
+  }
+
+  /**
+   * Make the changes. This runs inside a transaction which is rolled back if
+   * it throws.
+   *
+   * @param st a statement on the writer connection
+   * @throws SQLException if the migration fails
+   */
+  abstract void apply(Statement st) throws SQLException;
+
+  /**
+   * @return true if the database should be vacuumed once this has been
+   * applied, eg because it rewrote whole tables
+   */
+  boolean isVacuumAfter() {
+    return false;
+  }
+
+  /**
+   * @return the schema version the database is at once this has been applied
+   */
+  int getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the description
+   */
+  String getDescription() {
+    return description;
+  }
+}
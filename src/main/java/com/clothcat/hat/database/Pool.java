@@ -23,10 +23,13 @@
  */
 package com.clothcat.hat.database;
 
+import com.clothcat.hat.metrics.Metrics;
+import com.clothcat.hat.metrics.Timer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +45,29 @@ public class Pool {
   private long fillAmount;
   private long mintAmount;
   private long bonusAmount;
+
+  private static final String UPSERT_SQL = Upsert.sql("POOLS",
+      new String[]{"NAME", "TYPE", "FILL_AMOUNT", "MINT_AMOUNT", "BONUS_AMOUNT"},
+      "NAME");
+
+  private static final BatchWriter.Binder<Pool> BINDER
+      = new BatchWriter.Binder<Pool>() {
+        @Override
+        public void bind(PreparedStatement ps, Pool p) throws SQLException {
+          ps.setString(1, p.name);
+          Codec.setEnum(ps, 2, p.type);
+          ps.setLong(3, p.fillAmount);
+          ps.setLong(4, p.mintAmount);
+          ps.setLong(5, p.bonusAmount);
+        }
+      };
+
+  private static final PoolType[] POOL_TYPES = PoolType.values();
+
+  private static final Timer GET = Metrics.timer("db.Pool.getPool");
+  private static final Timer SAVE = Metrics.timer("db.Pool.save");
+  private static final Timer STORE = Metrics.timer("db.Pool.storePool");
+  private static final Timer STORE_ALL = Metrics.timer("db.Pool.storeAll");
 //</editor-fold>
 //<editor-fold defaultstate="collapsed" desc="accessors">
 
@@ -117,46 +143,86 @@ public class Pool {
 //</editor-fold>
 
   public static Pool getPool(String poolName) {
-    Pool p = null;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      PreparedStatement ps = c.prepareStatement("SELECT * FROM POOLS WHERE "
-          + "NAME=?");
-      ps.setString(1, poolName);
-      ResultSet rs = ps.executeQuery();
-      if (rs.next()) {
-        p = new Pool();
-        p.name = rs.getString("NAME");
-        p.setType(PoolType.valueOf(rs.getString("TYPE")));
-        p.setFillAmount(rs.getLong("FILL_AMOUNT"));
-        p.setMintAmount(rs.getLong("MINT_AMOUNT"));
-        p.setBonusAmount(rs.getLong("BONUS_AMOUNT"));
+    try (Timer.Context ctx = GET.time()) {
+      Pool p = null;
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = c.prepareStatement("SELECT * FROM POOLS WHERE "
+            + "NAME=?");
+        ps.setString(1, poolName);
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+          p = new Pool();
+          p.name = rs.getString("NAME");
+          p.setType(Codec.getEnum(rs, "TYPE", POOL_TYPES));
+          p.setFillAmount(rs.getLong("FILL_AMOUNT"));
+          p.setMintAmount(rs.getLong("MINT_AMOUNT"));
+          p.setBonusAmount(rs.getLong("BONUS_AMOUNT"));
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
       }
-    } catch (SQLException ex) {
-      Logger.getLogger(CoinHeap.class.getName()).log(Level.SEVERE, null, ex);
+      return p;
     }
-    return p;
   }
 
+  /**
+   * Save this pool, inserting it or updating the stored row as needed.
+   *
+   * @return whether it was inserted, updated, already up to date or failed
+   */
+  public SaveResult save() {
+    try (Timer.Context ctx = SAVE.time()) {
+      return Upsert.save("POOLS", UPSERT_SQL, this, BINDER);
+    }
+  }
+
+  /**
+   * Store this pool, updating the stored row if it already exists.
+   *
+   * @return true if it was stored
+   */
   public boolean storePool() {
-    boolean reply = false;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      String INSERT_SQL = "INSERT INTO POOLS VALUES (?, ?, ?, ?, ?)";
-
-      PreparedStatement ps = c.prepareStatement(INSERT_SQL);
-      ps.setString(1, name);
-      ps.setString(2, type.name());
-      ps.setLong(3, fillAmount);
-      ps.setLong(4, mintAmount);
-      ps.setLong(5, bonusAmount);
-
-      ps.executeUpdate();
-      reply = true;
-    } catch (SQLException ex) {
-      Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+    try (Timer.Context ctx = STORE.time()) {
+      boolean reply = false;
+      try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+        PreparedStatement ps = c.prepareStatement(UPSERT_SQL);
+        BINDER.bind(ps, this);
+
+        ps.executeUpdate();
+        reply = true;
+      } catch (SQLException ex) {
+        Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return reply;
+    }
+  }
+
+  /**
+   * Store many pools in one database transaction, updating any
+   * which are already stored.
+   *
+   * @param pools the pools to store
+   * @return whether each pool was stored, in iteration order
+   */
+  public static boolean[] storeAll(Collection<Pool> pools) {
+    return storeAll(pools, BatchWriter.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Store many pools in one database transaction, updating any
+   * which are already stored.
+   *
+   * @param pools the pools to store
+   * @param chunkSize how many rows to send to the database at a time
+   * @return whether each pool was stored, in iteration order
+   */
+  public static boolean[] storeAll(Collection<Pool> pools, int chunkSize) {
+    try (Timer.Context ctx = STORE_ALL.time()) {
+      return BatchWriter.write(UPSERT_SQL, pools, chunkSize, BINDER);
     }
-    return reply;
   }
 
+  // stored by ordinal (see Codec), so only ever add values at the end
   public static enum PoolType {
 
     FLOAT,
@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+/**
+ * What happened when an object was saved to the database.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public enum SaveResult {
+
+  /**
+   * There was no row for it so one was inserted
+   */
+  INSERTED,
+  /**
+   * The existing row had different values and was updated
+   */
+  UPDATED,
+  /**
+   * The existing row already held the same values so nothing was written
+   */
+  UNCHANGED,
+  /**
+   * The save failed
+   */
+  FAILED;
+
+  /**
+   * @return true unless the save failed
+   */
+  public boolean isStored() {
+    return this != FAILED;
+  }
+}
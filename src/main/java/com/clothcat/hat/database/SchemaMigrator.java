@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.util.HLogger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Level;
+
+/**
+ * Brings the database schema up to date. The version the database is at is
+ * recorded in the SCHEMA_VERSION table, and any migrations newer than that are
+ * applied in order, each in its own transaction. This runs whenever the
+ * database is opened, so an existing database is upgraded in place.
+ *
+ * To change the schema add a new Migration to the end of MIGRATIONS (and keep
+ * the files in src/sql up to date); never edit one that has been released.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class SchemaMigrator {
+
+  private static final Migration[] MIGRATIONS = new Migration[]{
+    // databases made before there were migrations already have some or all
+    // of these tables, hence IF NOT EXISTS
+    Migration.of(1, "Create tables",
+        "CREATE TABLE IF NOT EXISTS POOLS ("
+        + "    NAME TEXT,"
+        + "    TYPE TEXT,"
+        + "    FILL_AMOUNT INTEGER,"
+        + "    MINT_AMOUNT INTEGER,"
+        + "    BONUS_AMOUNT INTEGER,"
+        + "    PRIMARY KEY (NAME)"
+        + ")",
+        "CREATE TABLE IF NOT EXISTS HEAPS ("
+        + "    NAME TEXT,"
+        + "    BLOCK_HASH TEXT,"
+        + "    BLOCK_INDEX INTEGER,"
+        + "    AMOUNT INTEGER,"
+        + "    CONFIRMATIONS INTEGER,"
+        + "    TIME_CREATED INTEGER,"
+        + "    STATUS TEXT,"
+        + "    PRIMARY KEY (BLOCK_HASH, BLOCK_INDEX)"
+        + ")",
+        "CREATE TABLE IF NOT EXISTS ADDRESSES ("
+        + "    ADDRESS TEXT,"
+        + "    ADDRESS_TYPE TEXT,"
+        + "    PRIMARY KEY (ADDRESS)"
+        + ")",
+        "CREATE TABLE IF NOT EXISTS TRANSACTIONS ("
+        + "    TX_ID TEXT,"
+        + "    TX_INDEX INTEGER,"
+        + "    TX_TIMESTAMP INTEGER,"
+        + "    TX_TYPE TEXT,"
+        + "    PROCESSED_TIME INTEGER,"
+        + "    PRIMARY KEY (TX_ID, TX_INDEX)"
+        + ")"),
+    // the partial index only covers unprocessed rows, so it stays small
+    // however many transactions have been processed. Queries must say
+    // PROCESSED_TIME=0 literally for SQLite to use it.
+    Migration.of(2, "Add indexes for unprocessed transactions and heap lookups",
+        "CREATE INDEX IF NOT EXISTS TRANSACTIONS_UNPROCESSED"
+        + " ON TRANSACTIONS (TX_TIMESTAMP) WHERE PROCESSED_TIME=0",
+        "CREATE INDEX IF NOT EXISTS HEAPS_NAME ON HEAPS (NAME)",
+        "CREATE INDEX IF NOT EXISTS HEAPS_STATUS ON HEAPS (STATUS, TIME_CREATED)"),
+    Migration.of(3, "Add index for paging through addresses by type",
+        "CREATE INDEX IF NOT EXISTS ADDRESSES_TYPE ON ADDRESSES (ADDRESS_TYPE, ADDRESS)"),
+    Migration.of(4, "Record the address of each transaction",
+        "ALTER TABLE TRANSACTIONS ADD COLUMN ADDRESS TEXT"),
+    // see Codec. The tables have to be rebuilt as a TEXT column would turn the
+    // enum ordinals back into text.
+    new Migration(5, "Store hashes as blobs and enums as ordinals") {
+      @Override
+      void apply(Statement st) throws SQLException {
+        rebuild(st, "POOLS", "NAME TEXT, TYPE INTEGER, FILL_AMOUNT INTEGER,"
+            + " MINT_AMOUNT INTEGER, BONUS_AMOUNT INTEGER, PRIMARY KEY (NAME)",
+            "NAME, " + Codec.enumFromText("TYPE", Pool.PoolType.values())
+            + ", FILL_AMOUNT, MINT_AMOUNT, BONUS_AMOUNT");
+        rebuild(st, "HEAPS", "NAME TEXT, BLOCK_HASH BLOB, BLOCK_INDEX INTEGER,"
+            + " AMOUNT INTEGER, CONFIRMATIONS INTEGER, TIME_CREATED INTEGER,"
+            + " STATUS INTEGER, PRIMARY KEY (BLOCK_HASH, BLOCK_INDEX)",
+            "NAME, " + Codec.hashFromText("BLOCK_HASH") + ", BLOCK_INDEX, AMOUNT,"
+            + " CONFIRMATIONS, TIME_CREATED, "
+            + Codec.enumFromText("STATUS", CoinHeap.HeapStatus.values()));
+        rebuild(st, "ADDRESSES", "ADDRESS TEXT, ADDRESS_TYPE INTEGER,"
+            + " PRIMARY KEY (ADDRESS)",
+            "ADDRESS, " + Codec.enumFromText("ADDRESS_TYPE",
+                Address.AddressType.values()));
+        rebuild(st, "TRANSACTIONS", "TX_ID BLOB, TX_INDEX INTEGER,"
+            + " TX_TIMESTAMP INTEGER, TX_TYPE INTEGER, PROCESSED_TIME INTEGER,"
+            + " ADDRESS TEXT, PRIMARY KEY (TX_ID, TX_INDEX)",
+            Codec.hashFromText("TX_ID") + ", TX_INDEX, TX_TIMESTAMP, "
+            + Codec.enumFromText("TX_TYPE", Transaction.TxType.values())
+            + ", PROCESSED_TIME, ADDRESS");
+        // dropping the old tables dropped their indexes
+        st.executeUpdate("CREATE INDEX TRANSACTIONS_UNPROCESSED"
+            + " ON TRANSACTIONS (TX_TIMESTAMP) WHERE PROCESSED_TIME=0");
+        st.executeUpdate("CREATE INDEX HEAPS_NAME ON HEAPS (NAME)");
+        st.executeUpdate("CREATE INDEX HEAPS_STATUS ON HEAPS (STATUS, TIME_CREATED)");
+        st.executeUpdate("CREATE INDEX ADDRESSES_TYPE ON ADDRESSES (ADDRESS_TYPE, ADDRESS)");
+      }
+
+      @Override
+      boolean isVacuumAfter() {
+        return true;
+      }
+    },
+    // see Archiver. The archive tables match the live ones column for column
+    // so history queries can UNION ALL them.
+    Migration.of(6, "Add archive tables for old heaps and transactions",
+        "CREATE TABLE HEAPS_ARCHIVE (NAME TEXT, BLOCK_HASH BLOB,"
+        + " BLOCK_INDEX INTEGER, AMOUNT INTEGER, CONFIRMATIONS INTEGER,"
+        + " TIME_CREATED INTEGER, STATUS INTEGER,"
+        + " PRIMARY KEY (BLOCK_HASH, BLOCK_INDEX))",
+        "CREATE TABLE TRANSACTIONS_ARCHIVE (TX_ID BLOB, TX_INDEX INTEGER,"
+        + " TX_TIMESTAMP INTEGER, TX_TYPE INTEGER, PROCESSED_TIME INTEGER,"
+        + " ADDRESS TEXT, PRIMARY KEY (TX_ID, TX_INDEX))",
+        "CREATE INDEX HEAPS_ARCHIVE_NAME ON HEAPS_ARCHIVE (NAME)",
+        "CREATE INDEX TRANSACTIONS_ADDRESS ON TRANSACTIONS (ADDRESS)",
+        "CREATE INDEX TRANSACTIONS_ARCHIVE_ADDRESS"
+        + " ON TRANSACTIONS_ARCHIVE (ADDRESS)"),
+    // see ChainTip. HEIGHT is NULL until known and filled in by the next sync.
+    Migration.of(7, "Derive confirmations from block heights",
+        "ALTER TABLE HEAPS ADD COLUMN HEIGHT INTEGER",
+        "ALTER TABLE HEAPS_ARCHIVE ADD COLUMN HEIGHT INTEGER",
+        "CREATE INDEX HEAPS_HEIGHT ON HEAPS (HEIGHT)",
+        "CREATE TABLE CHAIN_TIP (ID INTEGER PRIMARY KEY CHECK (ID=0),"
+        + " HEIGHT INTEGER, UPDATED_TIME INTEGER)"),
+  };
+
+  private static void rebuild(Statement st, String table, String columns,
+      String select) throws SQLException {
+    st.executeUpdate("CREATE TABLE " + table + "_NEW (" + columns + ")");
+    st.executeUpdate("INSERT INTO " + table + "_NEW SELECT " + select
+        + " FROM " + table);
+    st.executeUpdate("DROP TABLE " + table);
+    st.executeUpdate("ALTER TABLE " + table + "_NEW RENAME TO " + table);
+  }
+
+  /**
+   * @return the schema version this code expects
+   */
+  public static int getLatestVersion() {
+    return MIGRATIONS[MIGRATIONS.length - 1].getVersion();
+  }
+
+  /**
+   * Apply every migration the database hasn't had yet.
+   *
+   * @param c the writer connection
+   * @return the schema version the database is now at
+   * @throws SQLException if a migration fails. Migrations before it stay
+   * applied.
+   */
+  public int migrate(Connection c) throws SQLException {
+    int version;
+    try (Statement st = c.createStatement()) {
+      st.executeUpdate("CREATE TABLE IF NOT EXISTS SCHEMA_VERSION ("
+          + "    VERSION INTEGER,"
+          + "    DESCRIPTION TEXT,"
+          + "    APPLIED_TIME INTEGER,"
+          + "    PRIMARY KEY (VERSION)"
+          + ")");
+      version = getVersion(st);
+    }
+    boolean vacuum = false;
+    for (Migration m : MIGRATIONS) {
+      if (m.getVersion() <= version) {
+        continue;
+      }
+      HLogger.log(Level.INFO, "Migrating database to version " + m.getVersion()
+          + ": " + m.getDescription());
+      boolean autoCommit = c.getAutoCommit();
+      c.setAutoCommit(false);
+      try (Statement st = c.createStatement();
+          PreparedStatement ps = c.prepareStatement(
+              "INSERT INTO SCHEMA_VERSION VALUES (?, ?, ?)")) {
+        m.apply(st);
+        ps.setInt(1, m.getVersion());
+        ps.setString(2, m.getDescription());
+        ps.setLong(3, System.currentTimeMillis() / 1000);
+        ps.executeUpdate();
+        c.commit();
+        version = m.getVersion();
+        vacuum |= m.isVacuumAfter();
+      } catch (SQLException ex) {
+        c.rollback();
+        throw ex;
+      } finally {
+        c.setAutoCommit(autoCommit);
+      }
+    }
+    if (vacuum) {
+      // VACUUM can't be run inside a transaction
+      HLogger.log(Level.INFO, "Compacting database");
+      try (Statement st = c.createStatement()) {
+        st.executeUpdate("VACUUM");
+      }
+    }
+    return version;
+  }
+
+  /**
+   * @param st a statement on any connection to the database
+   * @return the schema version the database is at (0 for a new database)
+   * @throws SQLException if the version can't be read
+   */
+  static int getVersion(Statement st) throws SQLException {
+    try (ResultSet rs = st.executeQuery("SELECT MAX(VERSION) FROM SCHEMA_VERSION")) {
+      return rs.next() ? rs.getInt(1) : 0;
+    }
+  }
+}
@@ -23,11 +23,15 @@
  */
 package com.clothcat.hat.database;
 
+import com.clothcat.hat.metrics.Metrics;
+import com.clothcat.hat.metrics.Timer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -44,6 +48,50 @@ public class Transaction {
   private long txTimestamp;
   private TxType txType;
   private long processedTime = 0;
+  private String address;
+
+  /**
+   * Batch size used when reading unprocessed transactions if not told otherwise
+   */
+  public static final int DEFAULT_FETCH_SIZE = 1000;
+
+  private static final String UPSERT_SQL = Upsert.sql("TRANSACTIONS",
+      new String[]{"TX_ID", "TX_INDEX", "TX_TIMESTAMP", "TX_TYPE", "PROCESSED_TIME",
+        "ADDRESS"},
+      "TX_ID", "TX_INDEX");
+
+  // same columns in the same order as UPSERT_SQL so BINDER fits both. An
+  // archived transaction has been processed, so isn't new either.
+  private static final String INSERT_NEW_SQL = "INSERT OR IGNORE INTO "
+      + "TRANSACTIONS (TX_ID, TX_INDEX, TX_TIMESTAMP, TX_TYPE, PROCESSED_TIME, "
+      + "ADDRESS) SELECT ?1, ?2, ?3, ?4, ?5, ?6 WHERE NOT EXISTS "
+      + "(SELECT 1 FROM TRANSACTIONS_ARCHIVE WHERE TX_ID=?1 AND TX_INDEX=?2)";
+
+  private static final BatchWriter.Binder<Transaction> BINDER
+      = new BatchWriter.Binder<Transaction>() {
+        @Override
+        public void bind(PreparedStatement ps, Transaction t) throws SQLException {
+          Codec.setHash(ps, 1, t.txId);
+          ps.setInt(2, t.txIndex);
+          ps.setLong(3, t.txTimestamp);
+          Codec.setEnum(ps, 4, t.txType);
+          ps.setLong(5, t.processedTime);
+          ps.setString(6, t.address);
+        }
+      };
+
+  private static final TxType[] TX_TYPES = TxType.values();
+
+  private static final Timer SAVE = Metrics.timer("db.Transaction.save");
+  private static final Timer STORE = Metrics.timer("db.Transaction.storeTransaction");
+  private static final Timer STORE_ALL = Metrics.timer("db.Transaction.storeAll");
+  private static final Timer STORE_NEW = Metrics.timer("db.Transaction.storeAllNew");
+  private static final Timer DELETE = Metrics.timer("db.Transaction.deleteTransaction");
+  private static final Timer UNPROCESSED = Metrics.timer("db.Transaction.getUnprocessed");
+  private static final Timer FOR_EACH = Metrics.timer("db.Transaction.forEachUnprocessed");
+  private static final Timer MARK = Metrics.timer("db.Transaction.markProcessed");
+  private static final Timer GET = Metrics.timer("db.Transaction.getTransaction");
+  private static final Timer HISTORY = Metrics.timer("db.Transaction.getHistory");
 
   /**
    * @return the txId
@@ -115,71 +163,226 @@ public class Transaction {
     this.processedTime = processedTime;
   }
 
+  /**
+   * @return the wallet address the transaction was to or from, or null if
+   * not known
+   */
+  public String getAddress() {
+    return address;
+  }
+
+  /**
+   * @param address the address to set
+   */
+  public void setAddress(String address) {
+    this.address = address;
+  }
+
+  /**
+   * Save this transaction, inserting it or updating the stored row as needed.
+   *
+   * @return whether it was inserted, updated, already up to date or failed
+   */
+  public SaveResult save() {
+    try (Timer.Context ctx = SAVE.time()) {
+      return Upsert.save("TRANSACTIONS", UPSERT_SQL, this, BINDER);
+    }
+  }
+
+  /**
+   * Store this transaction, updating the stored row if it already exists.
+   *
+   * @return true if it was stored
+   */
   public boolean storeTransaction() {
-    boolean reply = false;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      String INSERT_SQL = "INSERT INTO TRANSACTIONS VALUES (?, ?, ?, ?, ?)";
-
-      PreparedStatement ps = c.prepareStatement(INSERT_SQL);
-      ps.setString(1, txId);
-      ps.setInt(2, txIndex);
-      ps.setLong(3, txTimestamp);
-      ps.setString(4, txType.toString());
-      ps.setLong(5, processedTime);
-
-      ps.executeUpdate();
-      reply = true;
-    } catch (SQLException ex) {
-      Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+    try (Timer.Context ctx = STORE.time()) {
+      boolean reply = false;
+      try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+        PreparedStatement ps = c.prepareStatement(UPSERT_SQL);
+        BINDER.bind(ps, this);
+
+        ps.executeUpdate();
+        reply = true;
+      } catch (SQLException ex) {
+        Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return reply;
+    }
+  }
+
+  /**
+   * Store many transactions in one database transaction, updating any
+   * which are already stored.
+   *
+   * @param transactions the transactions to store
+   * @return whether each transaction was stored, in iteration order
+   */
+  public static boolean[] storeAll(Collection<Transaction> transactions) {
+    return storeAll(transactions, BatchWriter.DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Store many transactions in one database transaction, updating any
+   * which are already stored.
+   *
+   * @param transactions the transactions to store
+   * @param chunkSize how many rows to send to the database at a time
+   * @return whether each transaction was stored, in iteration order
+   */
+  public static boolean[] storeAll(Collection<Transaction> transactions,
+      int chunkSize) {
+    try (Timer.Context ctx = STORE_ALL.time()) {
+      return BatchWriter.write(UPSERT_SQL, transactions, chunkSize, BINDER);
+    }
+  }
+
+  /**
+   * Store many transactions in one database transaction, leaving any which
+   * are already stored as they are. Use this for transactions the wallet may
+   * report more than once, so one which has already been processed isn't made
+   * unprocessed again.
+   *
+   * @param transactions the transactions to store
+   * @return whether each transaction was stored or already there, in
+   * iteration order
+   */
+  public static boolean[] storeAllNew(Collection<Transaction> transactions) {
+    try (Timer.Context ctx = STORE_NEW.time()) {
+      return BatchWriter.write(INSERT_NEW_SQL, transactions,
+          BatchWriter.DEFAULT_CHUNK_SIZE, BINDER);
     }
-    return reply;
   }
 
   public static boolean deleteTransaction(String txId, int txIndex) {
-    boolean reply = false;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      String DELETE_SQL = "DELETE FROM TRANSACTIONS WHERE TX_ID=? AND TX_INDEX=?";
-
-      PreparedStatement ps = c.prepareStatement(DELETE_SQL);
-      ps.setString(1, txId);
-      ps.setInt(2, txIndex);
-
-      ps.executeUpdate();
-      reply = true;
-    } catch (SQLException ex) {
-      Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+    try (Timer.Context ctx = DELETE.time()) {
+      boolean reply = false;
+      try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+        String DELETE_SQL = "DELETE FROM TRANSACTIONS WHERE TX_ID=? AND TX_INDEX=?";
+
+        PreparedStatement ps = c.prepareStatement(DELETE_SQL);
+        Codec.setHash(ps, 1, txId);
+        ps.setInt(2, txIndex);
+
+        ps.executeUpdate();
+        reply = true;
+      } catch (SQLException ex) {
+        Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return reply;
     }
-    return reply;
   }
 
   /**
    * Get a list of any transactions in the database that haven't been processed
    * yet. A transaction is considered unprocessed if it's processed_time is 0.
    *
+   * This holds them all in memory at once, so after a long outage prefer
+   * forEachUnprocessed().
+   *
    * @return A List&lt;Transaction&gt; of any unprocessed transactions.
    */
   public static List<Transaction> getUnprocessed() {
-    List<Transaction> list = new ArrayList<>();
-
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      String SQL = "SELECT * "
-          + "FROM TRANSACTIONS "
-          + "WHERE PROCESSED_TIME=0 "
-          + "ORDER BY TX_TIMESTAMP ASC";
-      ResultSet rs = c.createStatement().executeQuery(SQL);
-      while (rs.next()) {
-        Transaction trans = new Transaction();
-        trans.txId = rs.getString("TX_ID");
-        trans.txIndex = rs.getInt("TX_INDEX");
-        trans.txTimestamp = rs.getLong("TX_TIMESTAMP");
-        trans.txType = TxType.valueOf(rs.getString("TX_TYPE"));
-        trans.processedTime = rs.getLong("PROCESSED_TIME");
-        list.add(trans);
+    try (Timer.Context ctx = UNPROCESSED.time()) {
+      final List<Transaction> list = new ArrayList<>();
+      forEachUnprocessed(DEFAULT_FETCH_SIZE, new BatchHandler() {
+        @Override
+        public boolean handle(List<Transaction> batch) {
+          list.addAll(batch);
+          return true;
+        }
+      });
+      return list;
+    }
+  }
+
+  /**
+   * Stream the unprocessed transactions, oldest first, a batch at a time. Only
+   * one batch is held in memory, however many transactions are waiting.
+   *
+   * The rows are read from a snapshot of the database taken when this is
+   * called, so the handler is free to mark each batch processed (with
+   * markProcessed) as it goes. If it stops part way the rest are simply picked
+   * up by the next call. Don't call this while holding the writer connection
+   * as the read then can't be kept apart from the handler's writes.
+   *
+   * @param batchSize how many transactions to hand over at a time (which is
+   * also the JDBC fetch size)
+   * @param handler given each batch in turn
+   * @return how many transactions were handed to the handler
+   */
+  public static int forEachUnprocessed(int batchSize, BatchHandler handler) {
+    try (Timer.Context ctx = FOR_EACH.time()) {
+      if (batchSize < 1) {
+        throw new IllegalArgumentException("batchSize must be at least 1");
+      }
+      int count = 0;
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        // PROCESSED_TIME=0 must be literal to use the partial index
+        String SQL = "SELECT * "
+            + "FROM TRANSACTIONS "
+            + "WHERE PROCESSED_TIME=0 "
+            + "ORDER BY TX_TIMESTAMP ASC";
+        // the statement reads from one snapshot until it's finished with
+        Statement st = c.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+            ResultSet.CONCUR_READ_ONLY);
+        st.setFetchSize(batchSize);
+        ResultSet rs = st.executeQuery(SQL);
+        List<Transaction> batch = new ArrayList<>(batchSize);
+        boolean more = true;
+        while (more && rs.next()) {
+          batch.add(fromRow(rs));
+          if (batch.size() == batchSize) {
+            count += batch.size();
+            more = handler.handle(batch);
+            batch = new ArrayList<>(batchSize);
+          }
+        }
+        if (more && !batch.isEmpty()) {
+          count += batch.size();
+          handler.handle(batch);
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return count;
+    }
+  }
+
+  /**
+   * Mark transactions as processed, all in one database transaction.
+   *
+   * @param transactions the transactions which have been processed
+   * @param processedTime when they were processed (UNIX timestamp, not 0)
+   * @return whether each transaction was marked, in iteration order
+   */
+  public static boolean[] markProcessed(Collection<Transaction> transactions,
+      final long processedTime) {
+    try (Timer.Context ctx = MARK.time()) {
+      for (Transaction t : transactions) {
+        t.processedTime = processedTime;
       }
-    } catch (SQLException ex) {
-      Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+      return BatchWriter.write("UPDATE TRANSACTIONS SET PROCESSED_TIME=? "
+          + "WHERE TX_ID=? AND TX_INDEX=?", transactions,
+          BatchWriter.DEFAULT_CHUNK_SIZE, new BatchWriter.Binder<Transaction>() {
+            @Override
+            public void bind(PreparedStatement ps, Transaction t) throws SQLException {
+              ps.setLong(1, processedTime);
+              Codec.setHash(ps, 2, t.txId);
+              ps.setInt(3, t.txIndex);
+            }
+          });
     }
-    return list;
+  }
+
+  private static Transaction fromRow(ResultSet rs) throws SQLException {
+    Transaction trans = new Transaction();
+    trans.txId = Codec.getHash(rs, "TX_ID");
+    trans.txIndex = rs.getInt("TX_INDEX");
+    trans.txTimestamp = rs.getLong("TX_TIMESTAMP");
+    trans.txType = Codec.getEnum(rs, "TX_TYPE", TX_TYPES);
+    trans.processedTime = rs.getLong("PROCESSED_TIME");
+    trans.address = rs.getString("ADDRESS");
+    return trans;
   }
 
   /**
@@ -192,27 +395,65 @@ public class Transaction {
    * database or null if not stored.
    */
   public static Transaction getTransaction(String txId, int txIndex) {
-    Transaction transaction = null;
-    try (Connection c = new DatabaseHelper().getConnection()) {
-      PreparedStatement ps = c.prepareStatement("SELECT * FROM TRANSACTIONS WHERE "
-          + "TX_ID=? AND TX_INDEX=?");
-      ps.setString(1, txId);
-      ps.setInt(2, txIndex);
-      ResultSet rs = ps.executeQuery();
-      if (rs.next()) {
-        transaction = new Transaction();
-        transaction.txId = rs.getString("TX_ID");
-        transaction.txIndex = rs.getInt("TX_INDEX");
-        transaction.txTimestamp = rs.getLong("TX_TIMESTAMP");
-        transaction.txType = TxType.valueOf(rs.getString("TX_TYPE"));
-        transaction.processedTime = rs.getLong("PROCESSED_TIME");
+    try (Timer.Context ctx = GET.time()) {
+      Transaction transaction = null;
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = c.prepareStatement("SELECT * FROM TRANSACTIONS WHERE "
+            + "TX_ID=? AND TX_INDEX=?");
+        Codec.setHash(ps, 1, txId);
+        ps.setInt(2, txIndex);
+        ResultSet rs = ps.executeQuery();
+        if (rs.next()) {
+          transaction = fromRow(rs);
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
       }
-    } catch (SQLException ex) {
-      Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+      return transaction;
     }
-    return transaction;
   }
 
+  /**
+   * Get every transaction ever stored for an address, archived or not.
+   *
+   * @param address a wallet address
+   * @return the transactions, oldest first
+   */
+  public static List<Transaction> getHistory(String address) {
+    try (Timer.Context ctx = HISTORY.time()) {
+      List<Transaction> list = new ArrayList<>();
+      try (Connection c = DatabaseHelper.getInstance().getReadConnection()) {
+        PreparedStatement ps = c.prepareStatement("SELECT * FROM TRANSACTIONS "
+            + "WHERE ADDRESS=? "
+            + "UNION ALL "
+            + "SELECT * FROM TRANSACTIONS_ARCHIVE WHERE ADDRESS=? "
+            + "ORDER BY TX_TIMESTAMP");
+        ps.setString(1, address);
+        ps.setString(2, address);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+          list.add(fromRow(rs));
+        }
+      } catch (SQLException ex) {
+        Logger.getLogger(Transaction.class.getName()).log(Level.SEVERE, null, ex);
+      }
+      return list;
+    }
+  }
+
+  /**
+   * Receives unprocessed transactions from forEachUnprocessed.
+   */
+  public static interface BatchHandler {
+
+    /**
+     * @param batch the next transactions, oldest first
+     * @return true to carry on, false to stop after this batch
+     */
+    boolean handle(List<Transaction> batch);
+  }
+
+  // stored by ordinal (see Codec), so only ever add values at the end
   public static enum TxType {
 
     SEND, RECV, MINT, MOVE;
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds and runs the single statement "insert or update if changed" SQL used
+ * by the store methods, so storing a row that's already there is neither an
+ * error nor a wasted write.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+class Upsert {
+
+  /**
+   * Build an upsert for a table.
+   *
+   * @param table the table name
+   * @param columns every column, in the order the parameters are bound
+   * @param keys the primary key columns
+   * @return SQL which inserts the row, or if a row with the same key exists
+   * updates it only if one of the other columns differs.
+   */
+  static String sql(String table, String[] columns, String... keys) {
+    List<String> keyList = Arrays.asList(keys);
+    StringBuilder cols = new StringBuilder();
+    StringBuilder params = new StringBuilder();
+    StringBuilder set = new StringBuilder();
+    StringBuilder changed = new StringBuilder();
+    for (String col : columns) {
+      cols.append(cols.length() == 0 ? "" : ", ").append(col);
+      params.append(params.length() == 0 ? "?" : ", ?");
+      if (!keyList.contains(col)) {
+        set.append(set.length() == 0 ? "" : ", ")
+            .append(col).append("=excluded.").append(col);
+        changed.append(changed.length() == 0 ? "" : " OR ")
+            .append(col).append(" IS NOT excluded.").append(col);
+      }
+    }
+    StringBuilder key = new StringBuilder();
+    for (String col : keys) {
+      key.append(key.length() == 0 ? "" : ", ").append(col);
+    }
+    return "INSERT INTO " + table + " (" + cols + ") VALUES (" + params + ")"
+        + " ON CONFLICT (" + key + ") DO UPDATE SET " + set
+        + " WHERE " + changed;
+  }
+
+  /**
+   * Upsert one row and work out what happened.
+   *
+   * The upsert returns the rowid of the row it inserted or updated (nothing if
+   * the row was unchanged), and a new row always gets a rowid above the
+   * largest one in the table when it was inserted. So reading that first, in
+   * the same transaction, tells an insert from an update whatever else the
+   * connection has inserted into other tables. (SQLite only picks a lower
+   * rowid once the largest possible one has been used.)
+   *
+   * @param table the table sql upserts into
+   * @param sql upsert SQL from sql()
+   * @param row the row to save
+   * @param binder binds the row to the statement
+   * @return what was done
+   */
+  static <T> SaveResult save(final String table, final String sql, final T row,
+      final BatchWriter.Binder<T> binder) {
+    final SaveResult[] reply = {SaveResult.FAILED};
+    try {
+      DatabaseHelper.getInstance().inTransaction(() -> {
+        try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+          long max = maxRowid(c, table);
+          PreparedStatement ps = c.prepareStatement(sql + " RETURNING rowid");
+          binder.bind(ps, row);
+          try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) {
+              reply[0] = SaveResult.UNCHANGED;
+            } else {
+              reply[0] = rs.getLong(1) > max ? SaveResult.INSERTED
+                  : SaveResult.UPDATED;
+            }
+          }
+        }
+        return true;
+      });
+    } catch (SQLException ex) {
+      Logger.getLogger(Upsert.class.getName()).log(Level.SEVERE, null, ex);
+    }
+    return reply[0];
+  }
+
+  private static long maxRowid(Connection c, String table) throws SQLException {
+    try (Statement st = c.createStatement();
+        ResultSet rs = st.executeQuery("SELECT max(rowid) FROM " + table)) {
+      // 0 for an empty table, since rowids start at 1
+      return rs.next() ? rs.getLong(1) : 0;
+    }
+  }
+}
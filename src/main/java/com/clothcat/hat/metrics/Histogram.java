@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free histogram of non-negative values (eg latencies in ns), in the
+ * style of HdrHistogram: buckets are exact below 64 and above that each power
+ * of two is split into 32, so any value is recorded to within about 3% using
+ * a fixed ~15KB however many values are recorded or how big they are.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class Histogram {
+
+  private static final int SUB_BITS = 6;
+  private static final int HALF = 1 << (SUB_BITS - 1);
+  private static final int BUCKETS = (63 - SUB_BITS + 1) * HALF + 2 * HALF;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * @param value the value to record. Negative values are recorded as 0.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(index(value));
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  static int index(long value) {
+    int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value)
+        - (SUB_BITS - 1));
+    return shift * HALF + (int) (value >>> shift);
+  }
+
+  /**
+   * @return the highest value that lands in the same bucket as index
+   */
+  static long highest(int index) {
+    if (index < 2 * HALF) {
+      return index;
+    }
+    int shift = index / HALF - 1;
+    long top = index - shift * HALF;
+    return ((top + 1) << shift) - 1;
+  }
+
+  /**
+   * @return a consistent enough copy of the current state to work out
+   * percentiles from
+   */
+  public Snapshot snapshot() {
+    long[] c = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      c[i] = counts.get(i);
+      n += c[i];
+    }
+    return new Snapshot(c, n, sum.sum(), max.get());
+  }
+
+  /**
+   * The state of a histogram at a moment in time.
+   */
+  public static class Snapshot {
+
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * @return how many values have been recorded
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the mean value, or 0 if nothing has been recorded
+     */
+    public double getMean() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value at that percentile (to within the bucket size)
+     */
+    public long getPercentile(double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(percentile / 100 * count);
+      rank = Math.max(1, Math.min(count, rank));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(highest(i), max);
+        }
+      }
+      return max;
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.metrics;
+
+import com.clothcat.hat.util.Constants;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Where the application's timers and counters live. Each one is created the
+ * first time it's asked for and registered with JMX as
+ * com.clothcat.hat:type=Timer,name=... (or type=Counter) so they can be
+ * watched with jconsole or similar.
+ *
+ * Every hat.metrics.dump_secs seconds (default 60, 0 to turn it off) a
+ * snapshot of all of them is also written to Constants.FILE_BASE/metrics.txt.
+ *
+ * Names are dotted, eg db.CoinHeap.getHeap or rpc.cclistcoins.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class Metrics {
+
+  public static final String PROP_DUMP_SECS = "hat.metrics.dump_secs";
+  public static final String DUMP_FILE = Constants.FILE_BASE + "metrics.txt";
+
+  private static final ConcurrentMap<String, Timer> timers
+      = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Counter> counters
+      = new ConcurrentHashMap<>();
+  private static ScheduledExecutorService dumper;
+
+  private Metrics() {
+  }
+
+  /**
+   * @param name the timer's name
+   * @return the timer, created if need be
+   */
+  public static Timer timer(String name) {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      Timer created = new Timer();
+      timer = timers.putIfAbsent(name, created);
+      if (timer == null) {
+        timer = created;
+        register("Timer", name, created);
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * @param name the counter's name
+   * @return the counter, created if need be
+   */
+  public static Counter counter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      Counter created = new Counter();
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) {
+        counter = created;
+        register("Counter", name, created);
+      }
+    }
+    return counter;
+  }
+
+  private static void register(String type, String name, Object bean) {
+    startDumper();
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(bean, new ObjectName("com.clothcat.hat:type="
+          + type + ",name=" + ObjectName.quote(name)));
+    } catch (JMException | RuntimeException ex) {
+      Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, null, ex);
+    }
+  }
+
+  private static synchronized void startDumper() {
+    long secs = Long.getLong(PROP_DUMP_SECS, 60);
+    if (dumper != null || secs <= 0) {
+      return;
+    }
+    dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "Metrics-dump");
+      t.setDaemon(true);
+      return t;
+    });
+    dumper.scheduleAtFixedRate(() -> {
+      try {
+        dump(new File(DUMP_FILE));
+      } catch (IOException | RuntimeException ex) {
+        Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, null, ex);
+      }
+    }, secs, secs, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Write a snapshot of every timer and counter to a file, replacing it.
+   *
+   * @param file where to write it
+   * @throws IOException if it can't be written
+   */
+  public static void dump(File file) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+    try (PrintWriter out = new PrintWriter(tmp, StandardCharsets.UTF_8.name())) {
+      write(out);
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Write a snapshot of every timer and counter, one per line. Times are in
+   * milliseconds.
+   *
+   * @param out where to write it
+   */
+  public static void write(PrintWriter out) {
+    out.println("# " + new Date());
+    out.printf("%-40s %10s %10s %10s %10s %10s %10s%n", "timer", "count",
+        "mean", "p50", "p90", "p99", "max");
+    for (Map.Entry<String, Timer> e : new TreeMap<>(timers).entrySet()) {
+      Histogram.Snapshot s = e.getValue().snapshot();
+      out.printf("%-40s %10d %10.3f %10.3f %10.3f %10.3f %10.3f%n", e.getKey(),
+          s.getCount(), s.getMean() / 1e6, s.getPercentile(50) / 1e6,
+          s.getPercentile(90) / 1e6, s.getPercentile(99) / 1e6,
+          s.getMax() / 1e6);
+    }
+    out.printf("%-40s %10s%n", "counter", "count");
+    for (Map.Entry<String, Counter> e : new TreeMap<>(counters).entrySet()) {
+      out.printf("%-40s %10d%n", e.getKey(), e.getValue().getCount());
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.metrics;
+
+/**
+ * Times how long something takes, keeping the times in a Histogram. Use it
+ * with try-with-resources:
+ * <pre>
+ * try (Timer.Context t = TIMER.time()) {
+ *   ...
+ * }
+ * </pre>
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class Timer implements TimerMXBean {
+
+  private static final double NANOS_IN_MILLI = 1000000.0;
+
+  private final Histogram histogram = new Histogram();
+
+  /**
+   * @return a context which records the time until it's closed
+   */
+  public Context time() {
+    return new Context(this, System.nanoTime());
+  }
+
+  /**
+   * @param nanos how long something took
+   */
+  public void record(long nanos) {
+    histogram.record(nanos);
+  }
+
+  /**
+   * @return the recorded times, in nanoseconds
+   */
+  public Histogram.Snapshot snapshot() {
+    return histogram.snapshot();
+  }
+
+  @Override
+  public long getCount() {
+    return snapshot().getCount();
+  }
+
+  @Override
+  public double getMeanMillis() {
+    return snapshot().getMean() / NANOS_IN_MILLI;
+  }
+
+  @Override
+  public double get50thPercentileMillis() {
+    return snapshot().getPercentile(50) / NANOS_IN_MILLI;
+  }
+
+  @Override
+  public double get90thPercentileMillis() {
+    return snapshot().getPercentile(90) / NANOS_IN_MILLI;
+  }
+
+  @Override
+  public double get99thPercentileMillis() {
+    return snapshot().getPercentile(99) / NANOS_IN_MILLI;
+  }
+
+  @Override
+  public double getMaxMillis() {
+    return snapshot().getMax() / NANOS_IN_MILLI;
+  }
+
+  /**
+   * One timing in progress.
+   */
+  public static class Context implements AutoCloseable {
+
+    private final Timer timer;
+    private final long start;
+
+    Context(Timer timer, long start) {
+      this.timer = timer;
+      this.start = start;
+    }
+
+    /**
+     * Stop timing and record the time.
+     */
+    @Override
+    public void close() {
+      timer.record(System.nanoTime() - start);
+    }
+  }
+}
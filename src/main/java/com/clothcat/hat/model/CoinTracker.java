@@ -23,14 +23,348 @@
  */
 package com.clothcat.hat.model;
 
+import com.clothcat.hat.database.ChainTip;
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.DatabaseHelper;
+import com.clothcat.hat.rpc.RpcHelper;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * Keeps track of what coins in the wallet are, where they have come from and
- * what they are currently assigned to. his is done by storing them in the
- * database in various tables -- primarily in the COIN_TRACK table, but that
- * merely is an index which will point to other tables.
+ * what they are currently assigned to. Every live (non OBSOLETE) heap in the
+ * HEAPS table is held in memory here, indexed by status and by name, along
+ * with a running total of the amount and number of heaps in each status, so
+ * questions like "how much is POOL_STAKING right now" don't need to go to the
+ * database at all.
+ *
+ * Changes go to the HEAPS table first and are only applied to the index once
+ * they've been written, so the two always agree. For that to hold every change
+ * to a heap must be made through the tracker (or followed by reload()).
+ *
+ * The tracker keeps its own copies of the heaps: the heaps it returns can be
+ * changed freely and handed back to update().
  *
  * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
  */
 public class CoinTracker {
-  
+
+  private final Map<String, CoinHeap> byKey = new HashMap<>();
+  private final Map<HeapStatus, Map<String, CoinHeap>> byStatus
+      = new EnumMap<>(HeapStatus.class);
+  private final Map<String, Map<String, CoinHeap>> byName = new HashMap<>();
+  private final long[] amounts = new long[HeapStatus.values().length];
+  private final int[] counts = new int[HeapStatus.values().length];
+
+  private CoinTracker() {
+    for (HeapStatus status : HeapStatus.values()) {
+      byStatus.put(status, new LinkedHashMap<String, CoinHeap>());
+    }
+  }
+
+  /**
+   * @return a tracker holding every live heap in the database
+   */
+  public static CoinTracker load() {
+    CoinTracker tracker = new CoinTracker();
+    tracker.reload();
+    return tracker;
+  }
+
+  /**
+   * Throw away the index and rebuild it from the HEAPS table.
+   */
+  public synchronized void reload() {
+    // so the heaps' confirmations are right from the start
+    ChainTip.load();
+    byKey.clear();
+    byName.clear();
+    for (Map<String, CoinHeap> m : byStatus.values()) {
+      m.clear();
+    }
+    Arrays.fill(amounts, 0);
+    Arrays.fill(counts, 0);
+    for (CoinHeap heap : CoinHeap.getLiveHeaps()) {
+      index(heap);
+    }
+  }
+
+  /**
+   * @param status a heap status
+   * @return the total amount (uHyp) in heaps with that status
+   */
+  public synchronized long getAmount(HeapStatus status) {
+    return amounts[status.ordinal()];
+  }
+
+  /**
+   * @param status a heap status
+   * @return how many heaps have that status
+   */
+  public synchronized int getCount(HeapStatus status) {
+    return counts[status.ordinal()];
+  }
+
+  /**
+   * @return how many live heaps are being tracked
+   */
+  public synchronized int size() {
+    return byKey.size();
+  }
+
+  /**
+   * @param status a heap status
+   * @return copies of the heaps with that status
+   */
+  public synchronized List<CoinHeap> getHeaps(HeapStatus status) {
+    return copies(byStatus.get(status).values());
+  }
+
+  /**
+   * @param name a heap name
+   * @return copies of the live heaps with that name
+   */
+  public synchronized List<CoinHeap> getHeaps(String name) {
+    Map<String, CoinHeap> m = byName.get(name);
+    return m == null ? new ArrayList<CoinHeap>() : copies(m.values());
+  }
+
+  /**
+   * @param blockHash output hash
+   * @param blockIndex output index
+   * @return a copy of the heap, or null if it's not a live heap
+   */
+  public synchronized CoinHeap getHeap(String blockHash, int blockIndex) {
+    CoinHeap heap = byKey.get(key(blockHash, blockIndex));
+    return heap == null ? null : new CoinHeap(heap);
+  }
+
+  /**
+   * Store a changed (or new) heap and update the index to match. A heap made
+   * OBSOLETE is dropped from the index.
+   *
+   * @param heap the heap as it should now be
+   * @return true if it was stored
+   */
+  public boolean update(CoinHeap heap) {
+    return updateAll(Collections.singletonList(heap));
+  }
+
+  /**
+   * Store several changed heaps in one database transaction and update the
+   * index to match.
+   *
+   * @param heaps the heaps as they should now be
+   * @return true if all of them were stored. Any which weren't are left as
+   * they were in the index.
+   */
+  public synchronized boolean updateAll(Collection<CoinHeap> heaps) {
+    boolean[] stored = CoinHeap.storeAll(heaps);
+    boolean reply = true;
+    int i = 0;
+    for (CoinHeap heap : heaps) {
+      if (stored[i++]) {
+        unindex(key(heap.getBlockHash(), heap.getBlockIndex()));
+        index(new CoinHeap(heap));
+      } else {
+        reply = false;
+      }
+    }
+    return reply;
+  }
+
+  /**
+   * Store several changed heaps in one database transaction, all or nothing,
+   * and update the index to match.
+   *
+   * @param heaps the heaps as they should now be
+   * @return true if they were all stored, false if none were (and the index is
+   * unchanged)
+   */
+  public synchronized boolean updateAllOrNone(Collection<CoinHeap> heaps) {
+    if (!CoinHeap.storeAllOrNone(heaps)) {
+      return false;
+    }
+    reindex(heaps);
+    return true;
+  }
+
+  /**
+   * Store several changed heaps and do some other database work, all in one
+   * database transaction, and update the index to match. Use this when the
+   * heap changes must only be kept if the other work is too (and vice versa).
+   *
+   * @param heaps the heaps as they should now be
+   * @param also the other work
+   * @return true if the heaps were stored and the work succeeded, false if
+   * neither were done (and the index is unchanged)
+   */
+  public synchronized boolean updateAllOrNone(final Collection<CoinHeap> heaps,
+      final DatabaseHelper.Work also) {
+    boolean done = false;
+    try {
+      done = DatabaseHelper.getInstance().inTransaction(
+          () -> CoinHeap.storeAllOrNone(heaps) && also.run());
+    } catch (SQLException ex) {
+      Logger.getLogger(CoinTracker.class.getName()).log(Level.SEVERE, null, ex);
+    }
+    if (done) {
+      reindex(heaps);
+    }
+    return done;
+  }
+
+  private void reindex(Collection<CoinHeap> heaps) {
+    for (CoinHeap heap : heaps) {
+      unindex(key(heap.getBlockHash(), heap.getBlockIndex()));
+      index(new CoinHeap(heap));
+    }
+  }
+
+  /**
+   * Bring the HEAPS table and the index up to date with the wallet.
+   *
+   * @param rpc used to list the coins in the wallet
+   * @return what changed, or null if the sync failed
+   */
+  public synchronized HeapSync.Result sync(RpcHelper rpc) {
+    return sync(rpc, false);
+  }
+
+  /**
+   * Bring the HEAPS table and the index up to date with the wallet.
+   *
+   * @param rpc used to list the coins in the wallet
+   * @param force true to believe an empty wallet (see HeapSync)
+   * @return what changed, or null if the sync failed
+   */
+  public synchronized HeapSync.Result sync(RpcHelper rpc, boolean force) {
+    HeapSync.Result result = HeapSync.sync(rpc, force);
+    apply(result);
+    return result;
+  }
+
+  /**
+   * Bring the HEAPS table and the index up to date with a wallet snapshot.
+   *
+   * @param snapshot every heap currently in the wallet
+   * @return what changed, or null if the sync failed
+   */
+  public synchronized HeapSync.Result sync(Collection<CoinHeap> snapshot) {
+    HeapSync.Result result = HeapSync.sync(snapshot);
+    apply(result);
+    return result;
+  }
+
+  /**
+   * Bring the HEAPS table and the index up to date with just the outputs of
+   * some wallet transactions.
+   *
+   * @param rpc used to look up the transactions
+   * @param txIds the transactions which have changed
+   * @return what changed, or null if the sync failed and a full sync is needed
+   */
+  public synchronized HeapSync.Result sync(RpcHelper rpc,
+      Collection<String> txIds) {
+    HeapSync.Result result = HeapSync.sync(rpc, txIds, this);
+    apply(result);
+    return result;
+  }
+
+  /**
+   * @return the transactions which have outputs without a height yet (and
+   * fewer than CoinHeap.MAX_CONFIRMATIONS), whose confirmations can only be
+   * found by asking the wallet. Those with a height follow ChainTip.
+   */
+  public synchronized Set<String> getUnsettledTxIds() {
+    Set<String> txIds = new LinkedHashSet<>();
+    for (CoinHeap heap : byKey.values()) {
+      if (heap.getHeight() == 0
+          && heap.getConfirmations() < CoinHeap.MAX_CONFIRMATIONS) {
+        txIds.add(heap.getBlockHash());
+      }
+    }
+    return txIds;
+  }
+
+  private void apply(HeapSync.Result result) {
+    if (result == null) {
+      return;
+    }
+    for (CoinHeap heap : result.getInserted()) {
+      unindex(key(heap.getBlockHash(), heap.getBlockIndex()));
+      index(new CoinHeap(heap));
+    }
+    for (CoinHeap heap : result.getConfirmed()) {
+      CoinHeap mine = byKey.get(key(heap.getBlockHash(), heap.getBlockIndex()));
+      if (mine != null) {
+        mine.setConfirmations(heap.getConfirmations());
+        mine.setHeight(heap.getHeight());
+      }
+    }
+    for (CoinHeap heap : result.getObsoleted()) {
+      unindex(key(heap.getBlockHash(), heap.getBlockIndex()));
+    }
+  }
+
+  private void index(CoinHeap heap) {
+    if (heap.getStatus() == HeapStatus.OBSOLETE) {
+      return;
+    }
+    String key = key(heap.getBlockHash(), heap.getBlockIndex());
+    byKey.put(key, heap);
+    byStatus.get(heap.getStatus()).put(key, heap);
+    if (heap.getName() != null) {
+      Map<String, CoinHeap> m = byName.get(heap.getName());
+      if (m == null) {
+        m = new LinkedHashMap<>();
+        byName.put(heap.getName(), m);
+      }
+      m.put(key, heap);
+    }
+    amounts[heap.getStatus().ordinal()] += heap.getAmount();
+    counts[heap.getStatus().ordinal()]++;
+  }
+
+  private void unindex(String key) {
+    CoinHeap heap = byKey.remove(key);
+    if (heap == null) {
+      return;
+    }
+    byStatus.get(heap.getStatus()).remove(key);
+    if (heap.getName() != null) {
+      Map<String, CoinHeap> m = byName.get(heap.getName());
+      m.remove(key);
+      if (m.isEmpty()) {
+        byName.remove(heap.getName());
+      }
+    }
+    amounts[heap.getStatus().ordinal()] -= heap.getAmount();
+    counts[heap.getStatus().ordinal()]--;
+  }
+
+  private static List<CoinHeap> copies(Collection<CoinHeap> heaps) {
+    List<CoinHeap> list = new ArrayList<>(heaps.size());
+    for (CoinHeap heap : heaps) {
+      list.add(new CoinHeap(heap));
+    }
+    return list;
+  }
+
+  private static String key(String blockHash, int blockIndex) {
+    return blockHash + ":" + blockIndex;
+  }
 }
@@ -0,0 +1,253 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.util.Constants;
+import com.clothcat.hat.util.HLogger;
+import com.clothcat.hat.util.TimingWheel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Moves pool heaps on through their lifecycle when they become due, rather
+ * than looking at every heap on every poll:
+ * <ul>
+ * <li>*_FILLING heaps become *_MATURING once they have
+ * Constants.MATURING_CONFIRMATIONS confirmations</li>
+ * <li>*_MATURING heaps become *_STAKING once they are
+ * Constants.STAKE_MIN_AGE old</li>
+ * </ul>
+ * Each heap waits on a timing wheel, one keyed on block height for
+ * confirmations and one keyed on time (in minutes) for age, so a tick only
+ * looks at heaps which are actually due. Minting depends on the wallet, not
+ * the clock, so isn't handled here.
+ *
+ * The tracker is the source of truth. A heap coming off a wheel is checked
+ * against it and skipped if it has moved on in the meantime, or scheduled
+ * again if it doesn't have the confirmations yet, so heaps never need to be
+ * taken off the wheels. Whoever changes a heap's status (eg
+ * PoolFiller) should hand it to schedule() so it waits for its next step.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class HeapScheduler {
+
+  private static final Map<HeapStatus, HeapStatus> MATURING
+      = new EnumMap<>(HeapStatus.class);
+  private static final Map<HeapStatus, HeapStatus> STAKING
+      = new EnumMap<>(HeapStatus.class);
+
+  static {
+    String[] pools = {"POOL", "BONUS", "LOTTERY", "ENDOWMENT"};
+    for (String pool : pools) {
+      MATURING.put(HeapStatus.valueOf(pool + "_FILLING"),
+          HeapStatus.valueOf(pool + "_MATURING"));
+      STAKING.put(HeapStatus.valueOf(pool + "_MATURING"),
+          HeapStatus.valueOf(pool + "_STAKING"));
+    }
+  }
+
+  private final CoinTracker tracker;
+  // 64 slots a wheel; 4 wheels of minutes is ~30 years, of blocks is plenty
+  private final TimingWheel<Key> byTime;
+  private final TimingWheel<Key> byHeight;
+  private final List<Key> thisMinute = new ArrayList<>();
+  private long height;
+
+  /**
+   * Create a scheduler and schedule every heap the tracker holds.
+   *
+   * @param tracker holds the heaps and stores their changes
+   * @param now the current time (UNIX timestamp)
+   * @param height the current block height
+   */
+  public HeapScheduler(CoinTracker tracker, long now, long height) {
+    this.tracker = tracker;
+    this.height = height;
+    this.byTime = new TimingWheel<>(minutes(now), 6, 4);
+    this.byHeight = new TimingWheel<>(height, 6, 4);
+    for (HeapStatus status : MATURING.keySet()) {
+      schedule(tracker.getHeaps(status));
+    }
+    for (HeapStatus status : STAKING.keySet()) {
+      schedule(tracker.getHeaps(status));
+    }
+  }
+
+  /**
+   * Wait for the next step of a heap which has changed status. Heaps in other
+   * states are ignored.
+   *
+   * @param heap the heap as it is now
+   */
+  public synchronized void schedule(CoinHeap heap) {
+    Key key = new Key(heap);
+    if (MATURING.containsKey(heap.getStatus())) {
+      if (heap.getHeight() > 0) {
+        byHeight.schedule(key,
+            heap.getHeight() + Constants.MATURING_CONFIRMATIONS - 1);
+      } else {
+        int wanted = Constants.MATURING_CONFIRMATIONS - heap.getConfirmations();
+        byHeight.schedule(key, height + Math.max(wanted, 0));
+      }
+    } else if (STAKING.containsKey(heap.getStatus())) {
+      byTime.schedule(key, minutes(heap.getTimeCreated()
+          + Constants.STAKE_MIN_AGE));
+    }
+  }
+
+  /**
+   * @param heaps heaps which have changed status
+   */
+  public synchronized void schedule(Collection<CoinHeap> heaps) {
+    for (CoinHeap heap : heaps) {
+      schedule(heap);
+    }
+  }
+
+  /**
+   * @return how many heaps are waiting for their next step
+   */
+  public synchronized int size() {
+    return byTime.size() + byHeight.size() + thisMinute.size();
+  }
+
+  /**
+   * Move on every heap which has become due, storing the changes in one
+   * batch. Heaps which start maturing are scheduled to start staking.
+   *
+   * @param now the current time (UNIX timestamp)
+   * @param height the current block height
+   * @return the heaps which were moved on, or null if they couldn't be stored
+   * (in which case they are tried again next tick)
+   */
+  public synchronized List<CoinHeap> tick(long now, long height) {
+    this.height = Math.max(this.height, height);
+    // a heap scheduled more than once only needs moving on once
+    Set<Key> dueHeight = new LinkedHashSet<>(byHeight.advance(this.height));
+    Set<Key> dueTime = new LinkedHashSet<>(thisMinute);
+    thisMinute.clear();
+    dueTime.addAll(byTime.advance(minutes(now)));
+    List<CoinHeap> changed = new ArrayList<>();
+    List<Key> keys = new ArrayList<>();
+    for (Key key : dueHeight) {
+      CoinHeap heap = tracker.getHeap(key.blockHash, key.blockIndex);
+      if (heap == null || !MATURING.containsKey(heap.getStatus())) {
+        continue;
+      }
+      if (confirmations(heap) >= Constants.MATURING_CONFIRMATIONS) {
+        heap.setStatus(MATURING.get(heap.getStatus()));
+        changed.add(heap);
+        keys.add(key);
+      } else {
+        // scheduled on an estimate which the chain hasn't caught up with, or
+        // moved to a later block since
+        schedule(heap);
+      }
+    }
+    for (Key key : dueTime) {
+      CoinHeap heap = tracker.getHeap(key.blockHash, key.blockIndex);
+      if (heap == null || !STAKING.containsKey(heap.getStatus())) {
+        continue;
+      }
+      if (heap.getTimeCreated() + Constants.STAKE_MIN_AGE <= now) {
+        heap.setStatus(STAKING.get(heap.getStatus()));
+        changed.add(heap);
+        keys.add(key);
+      } else {
+        // due later in this minute, the wheel's already been past it
+        thisMinute.add(key);
+      }
+    }
+    if (changed.isEmpty()) {
+      return changed;
+    }
+    if (!tracker.updateAllOrNone(changed)) {
+      HLogger.log(Level.WARNING, "Couldn't store " + changed.size()
+          + " heap transitions, will retry");
+      for (int i = 0; i < keys.size(); i++) {
+        if (MATURING.containsValue(changed.get(i).getStatus())) {
+          byHeight.schedule(keys.get(i), this.height);
+        } else {
+          byTime.schedule(keys.get(i), minutes(now));
+        }
+      }
+      return null;
+    }
+    for (CoinHeap heap : changed) {
+      schedule(heap);
+    }
+    HLogger.log(Level.FINE, () -> "Moved on " + changed.size() + " heaps");
+    return changed;
+  }
+
+  /**
+   * @param heap a heap
+   * @return its confirmations at the current height if it's been placed in a
+   * block, otherwise as last synced
+   */
+  private long confirmations(CoinHeap heap) {
+    if (heap.getHeight() > 0) {
+      return height - heap.getHeight() + 1;
+    }
+    return heap.getConfirmations();
+  }
+
+  private static long minutes(long time) {
+    return time / Constants.SECS_IN_MINUTE;
+  }
+
+  private static class Key {
+
+    private final String blockHash;
+    private final int blockIndex;
+
+    Key(CoinHeap heap) {
+      this.blockHash = heap.getBlockHash();
+      this.blockIndex = heap.getBlockIndex();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return blockIndex == k.blockIndex && blockHash.equals(k.blockHash);
+    }
+
+    @Override
+    public int hashCode() {
+      return blockHash.hashCode() * 31 + blockIndex;
+    }
+  }
+}
@@ -0,0 +1,448 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.ChainTip;
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.DatabaseHelper;
+import com.clothcat.hat.database.Transaction;
+import com.clothcat.hat.database.Transaction.TxType;
+import com.clothcat.hat.rpc.CoinListParser;
+import com.clothcat.hat.rpc.RpcHelper;
+import com.clothcat.hat.rpc.RpcResponse;
+import com.clothcat.hat.util.Constants;
+import com.clothcat.hat.util.HLogger;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Brings the HEAPS table up to date with what's in the wallet. The latest
+ * cclistcoins snapshot is compared with the live heaps in the table by output
+ * hash and index and only the differences are written:
+ * <ul>
+ * <li>heaps new to the wallet are inserted with status INCOMING</li>
+ * <li>heaps which have been confirmed get the height of their block, from
+ * which their confirmations follow as ChainTip moves on. Heaps which don't
+ * have a height yet have their confirmations updated instead (until they
+ * reach CoinHeap.MAX_CONFIRMATIONS after which we stop caring)</li>
+ * <li>heaps which have gone from the wallet are marked OBSOLETE</li>
+ * </ul>
+ * All of it goes to the database in one transaction. A snapshot with no
+ * heaps at all while there are live ones is refused unless the caller forces
+ * it, since that's much more likely to be the wallet still loading than every
+ * coin having been spent.
+ *
+ * Heights are worked out from the wallet's confirmations and the chain tip,
+ * which is read before and after the wallet is. If a block was found in
+ * between the confirmations could be from either side of it, so no heights
+ * or confirmations are changed that time. New heaps are stored without a
+ * height. The block's notification will cause another sync anyway.
+ *
+ * When the wallet tells us which transactions have changed (see
+ * NotifyListener) only the outputs of those transactions need looking at;
+ * sync(RpcHelper, Collection, CoinTracker) does that with a batch of
+ * gettransaction calls instead of reading the whole wallet. It can find new
+ * heaps and heights but not which heaps a transaction spends, since
+ * gettransaction doesn't list inputs, so a transaction which sends coins
+ * makes it give up and ask for a full sync instead.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class HeapSync implements CoinListParser.Handler {
+
+  private static final BigDecimal uH_IN_HYP = BigDecimal.valueOf(Constants.uH_IN_HYP);
+
+  private Map<String, CoinHeap> live;
+  private long tip;
+  private int seen;
+  private final List<CoinHeap> inserted = new ArrayList<>();
+  private final List<CoinHeap> confirmed = new ArrayList<>();
+  private final List<CoinHeap> obsoleted = new ArrayList<>();
+
+  private HeapSync() {
+  }
+
+  /**
+   * Sync the HEAPS table with the wallet by streaming cclistcoins.
+   *
+   * @param rpc used to run cclistcoins
+   * @return what changed, or null if cclistcoins failed, listed no heaps
+   * while there are live ones or the changes could not be written (in which
+   * case the table is left untouched).
+   */
+  public static Result sync(RpcHelper rpc) {
+    return sync(rpc, false);
+  }
+
+  /**
+   * Sync the HEAPS table with the wallet by streaming cclistcoins.
+   *
+   * @param rpc used to run cclistcoins
+   * @param force true to believe an empty wallet, obsoleting every live heap
+   * @return what changed, or null if cclistcoins failed, listed no heaps
+   * while there are live ones (unless forced) or the changes could not be
+   * written (in which case the table is left untouched).
+   */
+  public static Result sync(RpcHelper rpc, boolean force) {
+    HeapSync sync = new HeapSync();
+    sync.begin(updateTip(rpc));
+    if (rpc.cclistcoins(sync) < 0) {
+      HLogger.log(Level.WARNING, "cclistcoins failed, not syncing heaps");
+      return null;
+    }
+    if (tipMoved(rpc, sync.tip)) {
+      unplace(sync.inserted, sync.confirmed);
+    }
+    return sync.finish(force);
+  }
+
+  /**
+   * Sync the HEAPS table with a wallet snapshot.
+   *
+   * @param snapshot every heap currently in the wallet
+   * @return what changed, or null if the snapshot is empty while there are
+   * live heaps or the changes could not be written
+   */
+  public static Result sync(Collection<CoinHeap> snapshot) {
+    return sync(snapshot, false);
+  }
+
+  /**
+   * Sync the HEAPS table with a wallet snapshot.
+   *
+   * @param snapshot every heap currently in the wallet
+   * @param force true to believe an empty snapshot, obsoleting every live heap
+   * @return what changed, or null if the snapshot is empty while there are
+   * live heaps (unless forced) or the changes could not be written
+   */
+  public static Result sync(Collection<CoinHeap> snapshot, boolean force) {
+    HeapSync sync = new HeapSync();
+    sync.begin(ChainTip.load());
+    for (CoinHeap heap : snapshot) {
+      sync.handle(heap);
+    }
+    return sync.finish(force);
+  }
+
+  /**
+   * Sync only the outputs of some wallet transactions. Each receive (or
+   * stake) output becomes a heap, inserted with status INCOMING if it's new or
+   * with its confirmations updated if not, and is recorded as an unprocessed
+   * transaction if it hasn't been seen before. A transaction which sends
+   * coins spends heaps we can't identify from here, so one of those means a
+   * full sync is needed.
+   *
+   * @param rpc used to run gettransaction
+   * @param txIds the transactions to look at
+   * @param tracker used to find the heaps we already have
+   * @return what changed, or null if the daemon's replies couldn't be used,
+   * a transaction spent coins or the changes could not be written (in which
+   * case a full sync is needed)
+   */
+  public static Result sync(RpcHelper rpc, Collection<String> txIds,
+      CoinTracker tracker) {
+    List<CoinHeap> inserted = new ArrayList<>();
+    List<CoinHeap> confirmed = new ArrayList<>();
+    final List<Transaction> seen = new ArrayList<>();
+    long now = System.currentTimeMillis() / 1000;
+    long tip = updateTip(rpc);
+    for (RpcResponse response : rpc.gettransactions(txIds)) {
+      if (response.isError()) {
+        // most likely not a wallet transaction, so nothing of ours
+        HLogger.log(Level.WARNING, "gettransaction {0} failed: {1}",
+            response.getRequest().getParams()[0], response.getError());
+        continue;
+      }
+      JsonObject tx = response.getResultJson().getAsJsonObject();
+      String txId = tx.get("txid").getAsString();
+      int confirmations = tx.has("confirmations")
+          ? tx.get("confirmations").getAsInt() : 0;
+      long time = tx.has("time") ? tx.get("time").getAsLong() : now;
+      if (!tx.has("details")) {
+        continue;
+      }
+      for (JsonElement e : tx.getAsJsonArray("details")) {
+        if (e.getAsJsonObject().get("category").getAsString().equals("send")) {
+          HLogger.log(Level.FINE, "{0} spends heaps, needs a full sync", txId);
+          return null;
+        }
+      }
+      for (JsonElement e : tx.getAsJsonArray("details")) {
+        JsonObject detail = e.getAsJsonObject();
+        String category = detail.get("category").getAsString();
+        TxType type = category.equals("receive") ? TxType.RECV
+            : category.equals("generate") || category.equals("immature")
+            ? TxType.MINT : null;
+        if (type == null) {
+          continue;
+        }
+        if (!detail.has("vout")) {
+          HLogger.log(Level.WARNING, "gettransaction {0} doesn''t give output "
+              + "indexes, can''t sync it on its own", txId);
+          return null;
+        }
+        CoinHeap heap = new CoinHeap();
+        heap.setBlockHash(txId);
+        heap.setBlockIndex(detail.get("vout").getAsInt());
+        heap.setAmount(detail.get("amount").getAsBigDecimal()
+            .multiply(uH_IN_HYP).longValue());
+        heap.setConfirmations(confirmations);
+        heap.setTimeCreated(time);
+        place(heap, tip);
+        CoinHeap stored = tracker.getHeap(txId, heap.getBlockIndex());
+        if (stored == null) {
+          heap.setStatus(HeapStatus.INCOMING);
+          inserted.add(heap);
+        } else if (confirm(stored, heap)) {
+          confirmed.add(stored);
+        }
+        Transaction t = new Transaction();
+        t.setTxId(txId);
+        t.setTxIndex(heap.getBlockIndex());
+        t.setTxTimestamp(time);
+        t.setTxType(type);
+        t.setAddress(detail.has("address")
+            ? detail.get("address").getAsString() : null);
+        seen.add(t);
+      }
+    }
+    if (tipMoved(rpc, tip)) {
+      unplace(inserted, confirmed);
+    }
+    final Result result = new Result(inserted, confirmed,
+        new ArrayList<CoinHeap>());
+    if (seen.isEmpty()) {
+      return result;
+    }
+    boolean written = false;
+    try {
+      written = DatabaseHelper.getInstance().inTransaction(() -> {
+        if (!CoinHeap.applySync(result.getInserted(), result.getConfirmed(),
+            result.getObsoleted())) {
+          return false;
+        }
+        for (boolean stored : Transaction.storeAllNew(seen)) {
+          if (!stored) {
+            return false;
+          }
+        }
+        return true;
+      });
+    } catch (SQLException ex) {
+      HLogger.log(Level.SEVERE, "Couldn't write transaction sync", ex);
+    }
+    if (!written) {
+      return null;
+    }
+    HLogger.log(Level.FINE, () -> "Synced " + txIds.size() + " transactions: "
+        + result);
+    return result;
+  }
+
+  private void begin(long tip) {
+    this.tip = tip;
+    List<CoinHeap> heaps = CoinHeap.getLiveHeaps();
+    live = new HashMap<>(heaps.size() * 2);
+    for (CoinHeap heap : heaps) {
+      live.put(key(heap), heap);
+    }
+  }
+
+  /**
+   * Compare one heap from the snapshot with what we have stored.
+   */
+  @Override
+  public void handle(CoinHeap heap) {
+    seen++;
+    place(heap, tip);
+    CoinHeap stored = live.remove(key(heap));
+    if (stored == null) {
+      if (heap.getStatus() == null) {
+        heap.setStatus(HeapStatus.INCOMING);
+      }
+      inserted.add(heap);
+    } else if (confirm(stored, heap)) {
+      confirmed.add(stored);
+    }
+  }
+
+  private Result finish(boolean force) {
+    if (seen == 0 && !live.isEmpty() && !force) {
+      HLogger.log(Level.WARNING, "Wallet listed no heaps but " + live.size()
+          + " are live, not syncing heaps");
+      return null;
+    }
+    // whatever is left wasn't in the wallet any more
+    for (CoinHeap heap : live.values()) {
+      heap.setStatus(HeapStatus.OBSOLETE);
+      obsoleted.add(heap);
+    }
+    live = null;
+    Result result = new Result(inserted, confirmed, obsoleted);
+    if (result.isEmpty()) {
+      return result;
+    }
+    if (!CoinHeap.applySync(inserted, confirmed, obsoleted)) {
+      return null;
+    }
+    HLogger.log(Level.FINE, () -> "Synced heaps: " + result);
+    return result;
+  }
+
+  /**
+   * Fetch the chain tip and record it.
+   *
+   * @return the tip, or the last one known if it couldn't be fetched
+   */
+  private static long updateTip(RpcHelper rpc) {
+    long height = rpc.getblockcount();
+    if (height > 0) {
+      ChainTip.setHeight(height);
+      return height;
+    }
+    return ChainTip.load();
+  }
+
+  /**
+   * Fetch the chain tip again after reading the wallet.
+   *
+   * @param tip the tip before reading the wallet
+   * @return true if a block was found meanwhile
+   */
+  private static boolean tipMoved(RpcHelper rpc, long tip) {
+    long height = rpc.getblockcount();
+    if (height <= 0 || height == tip) {
+      return false;
+    }
+    ChainTip.setHeight(height);
+    HLogger.log(Level.FINE, "Block {0} found while syncing, leaving heights "
+        + "for next time", height);
+    return true;
+  }
+
+  /**
+   * Forget the heights worked out from a tip which has since moved.
+   */
+  private static void unplace(List<CoinHeap> inserted,
+      List<CoinHeap> confirmed) {
+    for (CoinHeap heap : inserted) {
+      heap.setHeight(0);
+    }
+    confirmed.clear();
+  }
+
+  /**
+   * Work out the height of a heap fresh from the wallet from its
+   * confirmations.
+   */
+  private static void place(CoinHeap heap, long tip) {
+    if (heap.getHeight() == 0 && heap.getConfirmations() > 0 && tip > 0) {
+      heap.setHeight((int) (tip - heap.getConfirmations() + 1));
+    }
+  }
+
+  /**
+   * Bring a stored heap's height and confirmations into line with the wallet.
+   *
+   * @return true if it needs writing
+   */
+  private static boolean confirm(CoinHeap stored, CoinHeap heap) {
+    // with a height, confirmations look after themselves unless it moves (eg
+    // in a re-org)
+    boolean changed = stored.getHeight() != heap.getHeight()
+        || (heap.getHeight() == 0
+        && stored.getConfirmations() < CoinHeap.MAX_CONFIRMATIONS
+        && stored.getConfirmations() != heap.getConfirmations());
+    if (changed) {
+      stored.setHeight(heap.getHeight());
+      stored.setConfirmations(heap.getConfirmations());
+    }
+    return changed;
+  }
+
+  private static String key(CoinHeap heap) {
+    return heap.getBlockHash() + ":" + heap.getBlockIndex();
+  }
+
+  /**
+   * What a sync changed.
+   */
+  public static class Result {
+
+    private final List<CoinHeap> inserted;
+    private final List<CoinHeap> confirmed;
+    private final List<CoinHeap> obsoleted;
+
+    Result(List<CoinHeap> inserted, List<CoinHeap> confirmed,
+        List<CoinHeap> obsoleted) {
+      this.inserted = Collections.unmodifiableList(inserted);
+      this.confirmed = Collections.unmodifiableList(confirmed);
+      this.obsoleted = Collections.unmodifiableList(obsoleted);
+    }
+
+    /**
+     * @return heaps which were new in the wallet
+     */
+    public List<CoinHeap> getInserted() {
+      return inserted;
+    }
+
+    /**
+     * @return heaps whose confirmations were updated
+     */
+    public List<CoinHeap> getConfirmed() {
+      return confirmed;
+    }
+
+    /**
+     * @return heaps which had gone from the wallet and are now OBSOLETE
+     */
+    public List<CoinHeap> getObsoleted() {
+      return obsoleted;
+    }
+
+    /**
+     * @return true if nothing changed
+     */
+    public boolean isEmpty() {
+      return inserted.isEmpty() && confirmed.isEmpty() && obsoleted.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+      return inserted.size() + " inserted, " + confirmed.size()
+          + " confirmations updated, " + obsoleted.size() + " obsoleted";
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.ChainTip;
+import com.clothcat.hat.rpc.RpcHelper;
+import com.clothcat.hat.util.HLogger;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Listens on a loopback socket for the wallet daemon's notifications, so new
+ * coins are found as soon as they arrive rather than at the next poll. Run
+ * the daemon with something like
+ * <pre>
+ * -walletnotify="sh -c 'echo tx %s | nc 127.0.0.1 18777'"
+ * -blocknotify="sh -c 'echo block %s | nc 127.0.0.1 18777'"
+ * </pre>
+ * Each line is "tx &lt;txid&gt;" or "block &lt;hash&gt;" (a bare txid is taken as
+ * a tx).
+ *
+ * Notifications come in bursts, eg one per output of a big send or one per
+ * block while the daemon catches up, so they aren't acted on straight away.
+ * The first one of a burst starts a short wait, and everything which arrives
+ * meanwhile is handled by one sync:
+ * <ul>
+ * <li>each notified transaction is looked at on its own with a batch of
+ * gettransaction calls (see HeapSync)</li>
+ * <li>a new block moves ChainTip on, which is all most heaps need for their
+ * confirmations. Only the transactions of heaps without a height yet are
+ * looked at again</li>
+ * </ul>
+ * The targeted sync can't tell which heaps a transaction spends, so for a
+ * spend, or if it fails, a full sync is done instead.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class NotifyListener implements Closeable {
+
+  /**
+   * Loopback port to listen on
+   */
+  public static final String PROP_PORT = "hat.notify.port";
+  /**
+   * How long (ms) to wait for a burst of notifications to finish
+   */
+  public static final String PROP_COALESCE_MS = "hat.notify.coalesce_ms";
+  public static final int DEFAULT_PORT = 18777;
+  public static final long DEFAULT_COALESCE_MS = 250;
+
+  private final CoinTracker tracker;
+  private final RpcHelper rpc;
+  private final Runnable afterSync;
+  private final long coalesceMillis;
+  private final ServerSocket server;
+  private final Thread acceptor;
+  private final Thread syncer;
+  private final AtomicInteger syncs = new AtomicInteger();
+  // guarded by this
+  private final Set<String> txIds = new LinkedHashSet<>();
+  private boolean newBlock;
+  private volatile boolean closed;
+
+  /**
+   * Listen on the port and with the wait given by the system properties.
+   *
+   * @param tracker the heaps to keep up to date
+   * @param rpc used to look up what changed
+   * @param afterSync run after each sync, eg to process any new transactions,
+   * or null
+   * @throws IOException if the port can't be listened on
+   */
+  public NotifyListener(CoinTracker tracker, RpcHelper rpc, Runnable afterSync)
+      throws IOException {
+    this(tracker, rpc, afterSync, Integer.getInteger(PROP_PORT, DEFAULT_PORT),
+        Long.getLong(PROP_COALESCE_MS, DEFAULT_COALESCE_MS));
+  }
+
+  /**
+   * @param tracker the heaps to keep up to date
+   * @param rpc used to look up what changed
+   * @param afterSync run after each sync, eg to process any new transactions,
+   * or null
+   * @param port loopback port to listen on, 0 for any free port
+   * @param coalesceMillis how long to wait for a burst of notifications to
+   * finish
+   * @throws IOException if the port can't be listened on
+   */
+  public NotifyListener(CoinTracker tracker, RpcHelper rpc, Runnable afterSync,
+      int port, long coalesceMillis) throws IOException {
+    this.tracker = tracker;
+    this.rpc = rpc;
+    this.afterSync = afterSync;
+    this.coalesceMillis = coalesceMillis;
+    server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    acceptor = new Thread(this::accept, "NotifyListener-accept");
+    acceptor.setDaemon(true);
+    syncer = new Thread(this::syncLoop, "NotifyListener-sync");
+    syncer.setDaemon(true);
+    acceptor.start();
+    syncer.start();
+  }
+
+  /**
+   * @return the port being listened on
+   */
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * @return how many syncs have been done
+   */
+  int getSyncs() {
+    return syncs.get();
+  }
+
+  /**
+   * Stop listening. A sync already under way is allowed to finish.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      server.close();
+    } catch (IOException ex) {
+      HLogger.log(Level.WARNING, "Couldn't close notify socket", ex);
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  private void accept() {
+    while (!closed) {
+      try (Socket s = server.accept()) {
+        // the hooks write a line and go, so don't let one which doesn't hold
+        // everything else up
+        s.setSoTimeout(1000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            s.getInputStream(), StandardCharsets.US_ASCII));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+          received(line);
+        }
+      } catch (IOException ex) {
+        if (!closed) {
+          HLogger.log(Level.WARNING, "Error reading notification", ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Queue one notification.
+   *
+   * @param line "tx &lt;txid&gt;", "block &lt;hash&gt;" or a bare txid
+   */
+  void received(String line) {
+    String[] words = line.trim().split("\\s+");
+    if (words.length == 1 && !words[0].isEmpty()) {
+      words = new String[]{"tx", words[0]};
+    }
+    synchronized (this) {
+      if (words.length == 2 && words[0].equals("tx")) {
+        txIds.add(words[1]);
+      } else if (words.length == 2 && words[0].equals("block")) {
+        newBlock = true;
+      } else {
+        HLogger.log(Level.WARNING, "Ignoring notification {0}", line);
+        return;
+      }
+      notifyAll();
+    }
+  }
+
+  private void syncLoop() {
+    try {
+      while (!closed) {
+        synchronized (this) {
+          while (txIds.isEmpty() && !newBlock && !closed) {
+            wait();
+          }
+        }
+        // let the rest of the burst arrive
+        Thread.sleep(coalesceMillis);
+        Set<String> changed;
+        boolean block;
+        synchronized (this) {
+          changed = new LinkedHashSet<>(txIds);
+          txIds.clear();
+          block = newBlock;
+          newBlock = false;
+        }
+        if (!closed) {
+          sync(changed, block);
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void sync(Set<String> changed, boolean block) {
+    try {
+      if (block) {
+        long height = rpc.getblockcount();
+        if (height > 0) {
+          ChainTip.setHeight(height);
+        }
+        changed.addAll(tracker.getUnsettledTxIds());
+      }
+      if (!changed.isEmpty() && tracker.sync(rpc, changed) == null) {
+        HLogger.log(Level.INFO, "Targeted sync wasn't enough, syncing "
+            + "everything");
+        tracker.sync(rpc);
+      }
+      syncs.incrementAndGet();
+      if (afterSync != null) {
+        afterSync.run();
+      }
+    } catch (RuntimeException ex) {
+      HLogger.log(Level.SEVERE, "Notified sync failed", ex);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.Pool;
+import com.clothcat.hat.util.HLogger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Assigns unallocated (FLOAT and INCOMING) heaps to a pool which is filling,
+ * choosing a set whose total comes as close to the pool's fillAmount as
+ * possible without falling short, using as few heaps as it can.
+ *
+ * Finding the best set exactly is the subset-sum problem, which is far too
+ * slow with thousands of heaps, so this uses a greedy heuristic instead. The
+ * candidates are sorted largest first and each heap which still fits under
+ * the target is taken (first fit decreasing). At every step the heaps taken
+ * so far topped up with the smallest heap that covers the gap make a complete
+ * answer (at the first step that's just the smallest single heap covering the
+ * target) and the one which overshoots least, then uses fewest heaps, wins.
+ * Any heap it no longer needs is then dropped again. All of this is
+ * O(n log n) in the number of candidates.
+ *
+ * If the candidates don't add up to the target they are all assigned and the
+ * pool carries on filling.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class PoolFiller {
+
+  private static final Comparator<CoinHeap> LARGEST_FIRST
+      = new Comparator<CoinHeap>() {
+        @Override
+        public int compare(CoinHeap a, CoinHeap b) {
+          return Long.compare(b.getAmount(), a.getAmount());
+        }
+      };
+
+  private PoolFiller() {
+  }
+
+  /**
+   * Top up a pool from the unallocated heaps. The chosen heaps are given the
+   * pool's name and its FILLING status in a single database transaction.
+   *
+   * @param tracker the heaps to choose from and where the changes are made
+   * @param pool the pool to fill. Must not be a FLOAT pool.
+   * @return the heaps assigned to the pool, empty if it was already full or
+   * there was nothing to assign, or null if they couldn't be stored.
+   */
+  public static List<CoinHeap> fill(CoinTracker tracker, Pool pool) {
+    HeapStatus filling = fillingStatus(pool.getType());
+    // nothing else may change the tracker between choosing and storing
+    synchronized (tracker) {
+      long target = pool.getFillAmount();
+      for (CoinHeap heap : tracker.getHeaps(pool.getName())) {
+        if (heap.getStatus() == filling) {
+          target -= heap.getAmount();
+        }
+      }
+      List<CoinHeap> chosen = new ArrayList<>();
+      if (target <= 0) {
+        return chosen;
+      }
+      List<CoinHeap> candidates = tracker.getHeaps(HeapStatus.FLOAT);
+      candidates.addAll(tracker.getHeaps(HeapStatus.INCOMING));
+      chosen = choose(candidates, target);
+      if (chosen.isEmpty()) {
+        return chosen;
+      }
+      for (CoinHeap heap : chosen) {
+        heap.setName(pool.getName());
+        heap.setStatus(filling);
+      }
+      if (!tracker.updateAllOrNone(chosen)) {
+        HLogger.log(Level.WARNING, "Couldn't assign heaps to pool "
+            + pool.getName());
+        return null;
+      }
+      HLogger.log(Level.FINE, "Assigned " + chosen.size() + " heaps ("
+          + total(chosen) + ") to pool " + pool.getName() + " needing "
+          + target);
+      return chosen;
+    }
+  }
+
+  /**
+   * Choose heaps adding up to at least target with as little overshoot as
+   * possible.
+   *
+   * @param candidates the heaps to choose from
+   * @param target the amount wanted, more than 0
+   * @return the chosen heaps, or every candidate if they don't reach target
+   */
+  static List<CoinHeap> choose(Collection<CoinHeap> candidates, long target) {
+    CoinHeap[] sorted = candidates.toArray(new CoinHeap[candidates.size()]);
+    Arrays.sort(sorted, LARGEST_FIRST);
+    if (total(Arrays.asList(sorted)) <= target) {
+      return new ArrayList<>(Arrays.asList(sorted));
+    }
+
+    // First fit decreasing. Before each step what's been taken so far plus
+    // the smallest heap covering the gap is a complete answer, so remember
+    // the best of those. Anything skipped earlier didn't fit, so covers the
+    // gap too, and is smaller than anything skipped before it.
+    boolean[] taken = new boolean[sorted.length];
+    long sum = 0;
+    int count = 0;
+    int skipped = -1;
+    long bestOver = Long.MAX_VALUE;
+    int bestCount = 0;
+    int bestStep = -1;
+    int bestTop = -1;
+    for (int i = 0; i <= sorted.length; i++) {
+      int top = smallestCovering(sorted, i, target - sum);
+      if (top < 0) {
+        top = skipped;
+      }
+      if (top >= 0) {
+        long over = sum + sorted[top].getAmount() - target;
+        if (over < bestOver || (over == bestOver && count + 1 < bestCount)) {
+          bestOver = over;
+          bestCount = count + 1;
+          bestStep = i;
+          bestTop = top;
+        }
+      }
+      if (i == sorted.length || bestOver == 0) {
+        break;
+      }
+      if (sum + sorted[i].getAmount() <= target) {
+        taken[i] = true;
+        sum += sorted[i].getAmount();
+        count++;
+        if (sum == target) {
+          bestStep = i + 1;
+          bestTop = -1;
+          break;
+        }
+      } else {
+        skipped = i;
+      }
+    }
+
+    // what had been taken by the best step, plus its top up
+    boolean[] best = new boolean[sorted.length];
+    sum = 0;
+    for (int i = 0; i < bestStep; i++) {
+      if (taken[i]) {
+        best[i] = true;
+        sum += sorted[i].getAmount();
+      }
+    }
+    if (bestTop >= 0) {
+      best[bestTop] = true;
+      sum += sorted[bestTop].getAmount();
+    }
+    // drop anything we no longer need, smallest first
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      if (best[i] && sum - sorted[i].getAmount() >= target) {
+        best[i] = false;
+        sum -= sorted[i].getAmount();
+      }
+    }
+
+    List<CoinHeap> chosen = new ArrayList<>();
+    for (int i = 0; i < sorted.length; i++) {
+      if (best[i]) {
+        chosen.add(sorted[i]);
+      }
+    }
+    return chosen;
+  }
+
+  /**
+   * @return the index of the smallest heap from index from onwards with at
+   * least amount in it, or -1 if there isn't one
+   */
+  private static int smallestCovering(CoinHeap[] sorted, int from,
+      long amount) {
+    // sorted is largest first so find the last index with enough in it
+    int lo = from;
+    int hi = sorted.length - 1;
+    int last = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted[mid].getAmount() >= amount) {
+        last = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return last;
+  }
+
+  private static long total(Collection<CoinHeap> heaps) {
+    long total = 0;
+    for (CoinHeap heap : heaps) {
+      total += heap.getAmount();
+    }
+    return total;
+  }
+
+  private static HeapStatus fillingStatus(Pool.PoolType type) {
+    switch (type) {
+      case POOL:
+        return HeapStatus.POOL_FILLING;
+      case BONUS:
+        return HeapStatus.BONUS_FILLING;
+      case LOTTERY:
+        return HeapStatus.LOTTERY_FILLING;
+      case ENDOWMENT:
+        return HeapStatus.ENDOWMENT_FILLING;
+      default:
+        throw new IllegalArgumentException("Can't fill a " + type + " pool");
+    }
+  }
+}
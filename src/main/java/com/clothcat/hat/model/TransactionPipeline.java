@@ -0,0 +1,445 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.Address;
+import com.clothcat.hat.database.Address.AddressType;
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.Transaction;
+import com.clothcat.hat.database.Transaction.TxType;
+import com.clothcat.hat.util.HLogger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+/**
+ * Works through the unprocessed transactions in four stages, each on its own
+ * thread and each handing batches to the next through a small bounded queue:
+ * <ol>
+ * <li>ingest - optionally fetch and store new transactions, then read the
+ * unprocessed ones, oldest first</li>
+ * <li>classify - look up the type of each transaction's address</li>
+ * <li>effects - work out what each transaction does to the heaps</li>
+ * <li>commit - store the changed heaps and mark the batch processed, in one
+ * database transaction</li>
+ * </ol>
+ * So waiting on the wallet, looking things up and writing to the database all
+ * overlap, and because the queues are bounded a slow stage holds the ones
+ * before it back rather than letting batches pile up in memory.
+ *
+ * The effects stage is itself split into lanes. Each batch is divided up by
+ * address, always sending the same address to the same lane, and each lane
+ * runs on its own thread working through its share of each batch in turn. So
+ * transactions for one address are applied in timestamp order, and different
+ * addresses are applied in parallel, which lets catching up on a backlog use
+ * every core. There is still only one commit stage writing to the database,
+ * taking each batch once all its lanes are done.
+ *
+ * The effects stage can run a batch or two ahead of the commit stage, so it
+ * sees heaps through a view which overlays the changes still waiting to be
+ * committed on the tracker. If a batch fails at any stage the batches before
+ * it are still committed and everything after it is dropped; those
+ * transactions are still unprocessed in the database and are picked up by the
+ * next run.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class TransactionPipeline {
+
+  /**
+   * Names an INCOMING heap after the address it was received on, once the
+   * address is known, so it can be picked up for the right pool or investor.
+   */
+  public static final Effects NAME_INCOMING = new Effects() {
+    @Override
+    public void apply(Transaction tx, AddressType type, Heaps heaps) {
+      if (tx.getTxType() != TxType.RECV || type == null
+          || type == AddressType.UNKNOWN) {
+        return;
+      }
+      CoinHeap heap = heaps.get(tx.getTxId(), tx.getTxIndex());
+      if (heap != null && heap.getStatus() == HeapStatus.INCOMING
+          && !tx.getAddress().equals(heap.getName())) {
+        heap.setName(tx.getAddress());
+        heaps.put(heap);
+      }
+    }
+  };
+
+  private static final Batch POISON = new Batch(null);
+
+  private final CoinTracker tracker;
+  private final Effects effects;
+  private final int batchSize;
+  private final int queueDepth;
+  private final int lanes;
+  // heaps changed by the effects stage which aren't committed yet
+  private final Map<String, CoinHeap> pending = new ConcurrentHashMap<>();
+  private volatile boolean failed;
+
+  /**
+   * A pipeline applying effects in a single lane.
+   *
+   * @param tracker the heaps the transactions affect
+   * @param effects works out what each transaction does to the heaps
+   * @param batchSize how many transactions to move through at a time
+   * @param queueDepth how many batches may wait between two stages
+   */
+  public TransactionPipeline(CoinTracker tracker, Effects effects,
+      int batchSize, int queueDepth) {
+    this(tracker, effects, batchSize, queueDepth, 1);
+  }
+
+  /**
+   * @param tracker the heaps the transactions affect
+   * @param effects works out what each transaction does to the heaps
+   * @param batchSize how many transactions to move through at a time
+   * @param queueDepth how many batches may wait between two stages
+   * @param lanes how many lanes to apply effects in, eg
+   * Runtime.getRuntime().availableProcessors()
+   */
+  public TransactionPipeline(CoinTracker tracker, Effects effects,
+      int batchSize, int queueDepth, int lanes) {
+    if (batchSize < 1 || queueDepth < 1 || lanes < 1) {
+      throw new IllegalArgumentException(
+          "batchSize, queueDepth and lanes must be at least 1");
+    }
+    this.tracker = tracker;
+    this.effects = effects;
+    this.batchSize = batchSize;
+    this.queueDepth = queueDepth;
+    this.lanes = lanes;
+  }
+
+  /**
+   * Process every transaction which is currently unprocessed.
+   *
+   * @return how many transactions were processed, or -1 if a batch failed
+   * (those before it were still processed)
+   */
+  public int process() {
+    return process(null);
+  }
+
+  /**
+   * Fetch new transactions, store them as unprocessed, then process every
+   * transaction which is unprocessed.
+   *
+   * @param source where to fetch new transactions from, or null to just work
+   * through those already stored
+   * @return how many transactions were processed, or -1 if storing the new
+   * transactions or a batch failed
+   */
+  public synchronized int process(final Source source) {
+    failed = false;
+    pending.clear();
+    final BlockingQueue<Batch> toClassify = new ArrayBlockingQueue<>(queueDepth);
+    final BlockingQueue<Batch> toApply = new ArrayBlockingQueue<>(queueDepth);
+    final BlockingQueue<Batch> toCommit = new ArrayBlockingQueue<>(queueDepth);
+    ExecutorService ingest = Executors.newSingleThreadExecutor(named("ingest"));
+    ExecutorService classify = Executors.newSingleThreadExecutor(named("classify"));
+    ExecutorService apply = Executors.newSingleThreadExecutor(named("effects"));
+    ExecutorService commit = Executors.newSingleThreadExecutor(named("commit"));
+    final ExecutorService[] lane = new ExecutorService[lanes];
+    for (int i = 0; i < lanes; i++) {
+      lane[i] = Executors.newSingleThreadExecutor(named("lane" + i));
+    }
+    try {
+      ingest.submit(() -> {
+        ingest(source, toClassify);
+        return null;
+      });
+      classify.submit(() -> {
+        stage(toClassify, toApply, this::classify);
+        return null;
+      });
+      apply.submit(() -> {
+        stage(toApply, toCommit, batch -> apply(batch, lane));
+        return null;
+      });
+      Future<Integer> committed = commit.submit(() -> commit(toCommit));
+      int count = committed.get();
+      return failed ? -1 : count;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      failed = true;
+      return -1;
+    } catch (ExecutionException ex) {
+      HLogger.log(Level.SEVERE, "Transaction pipeline failed", ex.getCause());
+      failed = true;
+      return -1;
+    } finally {
+      ingest.shutdownNow();
+      classify.shutdownNow();
+      apply.shutdownNow();
+      commit.shutdownNow();
+      for (ExecutorService e : lane) {
+        e.shutdownNow();
+      }
+    }
+  }
+
+  private void ingest(Source source, final BlockingQueue<Batch> out)
+      throws InterruptedException {
+    try {
+      if (source != null) {
+        List<Transaction> fresh = source.fetch();
+        if (fresh == null) {
+          failed = true;
+        } else {
+          // the source may hand back transactions already processed, which
+          // must stay processed
+          for (boolean stored : Transaction.storeAllNew(fresh)) {
+            failed |= !stored;
+          }
+        }
+      }
+      if (!failed) {
+        Transaction.forEachUnprocessed(batchSize, batch -> {
+          try {
+            out.put(new Batch(batch));
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+          return !failed;
+        });
+      }
+    } finally {
+      out.put(POISON);
+    }
+  }
+
+  private void stage(BlockingQueue<Batch> in, BlockingQueue<Batch> out,
+      Step step) throws InterruptedException {
+    try {
+      for (Batch batch = in.take(); batch != POISON; batch = in.take()) {
+        // once a commit has failed there's no point doing any more work, but
+        // keep taking so the stages before don't block
+        if (!failed) {
+          try {
+            step.run(batch);
+            out.put(batch);
+          } catch (RuntimeException ex) {
+            HLogger.log(Level.SEVERE, "Transaction pipeline stage failed", ex);
+            failed = true;
+          }
+        }
+      }
+    } finally {
+      out.put(POISON);
+    }
+  }
+
+  private void classify(Batch batch) {
+    batch.types = new ArrayList<>(batch.transactions.size());
+    for (Transaction tx : batch.transactions) {
+      batch.types.add(tx.getAddress() == null ? null
+          : Address.classify(tx.getAddress()));
+    }
+  }
+
+  private void apply(Batch batch, ExecutorService[] lane) {
+    List<List<Integer>> shares = new ArrayList<>(lanes);
+    for (int i = 0; i < lanes; i++) {
+      shares.add(new ArrayList<Integer>());
+    }
+    for (int i = 0; i < batch.transactions.size(); i++) {
+      shares.get(lane(batch.transactions.get(i).getAddress())).add(i);
+    }
+    batch.lanes = new ArrayList<>(lanes);
+    for (int i = 0; i < lanes; i++) {
+      final List<Integer> share = shares.get(i);
+      if (!share.isEmpty()) {
+        batch.lanes.add(lane[i].submit(() -> {
+          Heaps heaps = new Heaps();
+          for (int j : share) {
+            effects.apply(batch.transactions.get(j), batch.types.get(j), heaps);
+          }
+          return heaps.changed;
+        }));
+      }
+    }
+  }
+
+  /**
+   * @param address a transaction's address
+   * @return which lane its effects are applied in
+   */
+  int lane(String address) {
+    return address == null ? 0 : (address.hashCode() & 0x7fffffff) % lanes;
+  }
+
+  private int commit(BlockingQueue<Batch> in) throws InterruptedException {
+    int count = 0;
+    // a failure further up only stops the batches after it, which never get
+    // here, so anything that does arrive is committed until one fails
+    boolean stopped = false;
+    for (Batch batch = in.take(); batch != POISON; batch = in.take()) {
+      if (stopped) {
+        continue;
+      }
+      final List<Transaction> txs = batch.transactions;
+      final long now = System.currentTimeMillis() / 1000;
+      Map<String, CoinHeap> changed = new LinkedHashMap<>();
+      try {
+        for (Future<Map<String, CoinHeap>> f : batch.lanes) {
+          changed.putAll(f.get());
+        }
+      } catch (ExecutionException ex) {
+        HLogger.log(Level.SEVERE, "Transaction pipeline lane failed", ex.getCause());
+        stopped = true;
+        failed = true;
+        continue;
+      }
+      boolean done = tracker.updateAllOrNone(changed.values(), () -> {
+        for (boolean marked : Transaction.markProcessed(txs, now)) {
+          if (!marked) {
+            return false;
+          }
+        }
+        return true;
+      });
+      if (done) {
+        count += txs.size();
+        for (Map.Entry<String, CoinHeap> e : changed.entrySet()) {
+          pending.remove(e.getKey(), e.getValue());
+        }
+      } else {
+        for (Transaction tx : txs) {
+          tx.setProcessedTime(0);
+        }
+        HLogger.log(Level.SEVERE, "Failed to commit a batch of {0} transactions",
+            txs.size());
+        stopped = true;
+        failed = true;
+      }
+    }
+    return count;
+  }
+
+  private static ThreadFactory named(final String stage) {
+    return r -> {
+      Thread t = new Thread(r, "TransactionPipeline-" + stage);
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  private static String key(String blockHash, int blockIndex) {
+    return blockHash + ":" + blockIndex;
+  }
+
+  /**
+   * Works out what a transaction does to the heaps.
+   */
+  public static interface Effects {
+
+    /**
+     * Called for each transaction in turn. Those for any one address are
+     * passed oldest first, on one thread, but different addresses may be
+     * passed at the same time on different threads, so this must only change
+     * heaps belonging to the transaction's own address.
+     *
+     * @param tx the transaction
+     * @param type the type of its address, or null if the address isn't known
+     * @param heaps the heaps, as they will be once everything before this
+     * transaction is committed. Changed heaps must be handed back to put().
+     */
+    void apply(Transaction tx, AddressType type, Heaps heaps);
+  }
+
+  /**
+   * Fetches new transactions for the ingest stage.
+   */
+  public static interface Source {
+
+    /**
+     * @return the new transactions, with PROCESSED_TIME 0, or null if they
+     * couldn't be fetched. Any which are already stored are left as they
+     * are.
+     */
+    List<Transaction> fetch();
+  }
+
+  /**
+   * The effects stage's view of the heaps: the tracker, overlaid with changes
+   * which haven't been committed yet.
+   */
+  public final class Heaps {
+
+    private final Map<String, CoinHeap> changed = new LinkedHashMap<>();
+
+    private Heaps() {
+    }
+
+    /**
+     * @param blockHash output hash
+     * @param blockIndex output index
+     * @return a copy of the heap, or null if it's not a live heap
+     */
+    public CoinHeap get(String blockHash, int blockIndex) {
+      CoinHeap heap = pending.get(key(blockHash, blockIndex));
+      return heap == null ? tracker.getHeap(blockHash, blockIndex)
+          : new CoinHeap(heap);
+    }
+
+    /**
+     * @param heap a heap as it should be once this batch is committed
+     */
+    public void put(CoinHeap heap) {
+      CoinHeap copy = new CoinHeap(heap);
+      String k = key(heap.getBlockHash(), heap.getBlockIndex());
+      changed.put(k, copy);
+      pending.put(k, copy);
+    }
+  }
+
+  private static interface Step {
+
+    void run(Batch batch);
+  }
+
+  private static class Batch {
+
+    final List<Transaction> transactions;
+    List<AddressType> types;
+    List<Future<Map<String, CoinHeap>>> lanes;
+
+    Batch(List<Transaction> transactions) {
+      this.transactions = transactions;
+    }
+  }
+}
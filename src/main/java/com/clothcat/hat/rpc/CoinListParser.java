@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.rpc;
+
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.util.Constants;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+
+/**
+ * Parses the output of cclistcoins a coin at a time, handing each one over as a
+ * CoinHeap as soon as it has been read. Nothing but the current coin is ever
+ * held in memory, so this copes with wallets of any size.
+ *
+ * Each coin in the cclistcoins output looks like
+ * <pre>
+ * {"Address" : "...", "Output Hash" : "...", "blockIndex" : 0,
+ *  "Value" : 1.234567, "Confirmations" : 10, "Age (days)" : 1.5, ...}
+ * </pre>
+ * Fields we don't use are skipped.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class CoinListParser {
+
+  /**
+   * Receives the heaps as they are parsed.
+   */
+  public static interface Handler {
+
+    /**
+     * @param heap a heap read from cclistcoins. Its status is not set.
+     */
+    void handle(CoinHeap heap);
+  }
+
+  private static final BigDecimal uH_IN_HYP = BigDecimal.valueOf(Constants.uH_IN_HYP);
+  private static final BigDecimal SECS_IN_DAY = BigDecimal.valueOf(Constants.SECS_IN_DAY);
+
+  /**
+   * Parse cclistcoins output. This can be either the bare array the command
+   * line prints or a JSON-RPC response object with the array as its result.
+   *
+   * @param in the cclistcoins output
+   * @param handler given each heap as it's read
+   * @return the number of heaps read
+   * @throws IOException if the output can't be read or isn't valid JSON, or is
+   * a JSON-RPC error or has no list of coins (in which case the handler may
+   * have seen some of the heaps)
+   */
+  public static int parse(Reader in, Handler handler) throws IOException {
+    JsonReader reader = new JsonReader(in);
+    long now = System.currentTimeMillis() / 1000;
+    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+      int count = -1;
+      String error = null;
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (name.equals("result") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+          count = readCoins(reader, handler, now);
+        } else if (name.equals("error") && reader.peek() != JsonToken.NULL) {
+          error = readError(reader);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (error != null) {
+        throw new IOException("cclistcoins failed: " + error);
+      }
+      if (count < 0) {
+        throw new IOException("cclistcoins returned no list of coins");
+      }
+      return count;
+    }
+    return readCoins(reader, handler, now);
+  }
+
+  /**
+   * @return the code and message of a JSON-RPC error
+   */
+  private static String readError(JsonReader reader) throws IOException {
+    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+      if (reader.peek() == JsonToken.STRING
+          || reader.peek() == JsonToken.NUMBER) {
+        return reader.nextString();
+      }
+      reader.skipValue();
+      return "unknown error";
+    }
+    String code = null;
+    String message = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (name.equals("code") && reader.peek() == JsonToken.NUMBER) {
+        code = reader.nextString();
+      } else if (name.equals("message") && reader.peek() == JsonToken.STRING) {
+        message = reader.nextString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return code + " " + message;
+  }
+
+  private static int readCoins(JsonReader reader, Handler handler, long now)
+      throws IOException {
+    int count = 0;
+    reader.beginArray();
+    while (reader.hasNext()) {
+      handler.handle(readCoin(reader, now));
+      count++;
+    }
+    reader.endArray();
+    return count;
+  }
+
+  private static CoinHeap readCoin(JsonReader reader, long now) throws IOException {
+    CoinHeap heap = new CoinHeap();
+    heap.setTimeCreated(now);
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+      switch (name) {
+        case "Output Hash":
+          heap.setBlockHash(reader.nextString());
+          break;
+        case "blockIndex":
+          heap.setBlockIndex(reader.nextInt());
+          break;
+        case "Value":
+          // nextString gives the number exactly as written, so no rounding
+          // errors creep in on the way to uHyp
+          heap.setAmount(new BigDecimal(reader.nextString())
+              .multiply(uH_IN_HYP).longValue());
+          break;
+        case "Confirmations":
+          heap.setConfirmations(reader.nextInt());
+          break;
+        case "Age (days)":
+          heap.setTimeCreated(now - new BigDecimal(reader.nextString())
+              .multiply(SECS_IN_DAY).longValue());
+          break;
+        default:
+          reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return heap;
+  }
+}
@@ -0,0 +1,366 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.rpc;
+
+import com.clothcat.hat.util.HLogger;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RpcBackend which talks JSON-RPC over HTTP directly to the daemon's rpcport
+ * rather than starting a new process for every command.
+ *
+ * Connections are HTTP/1.1 keep-alive, so the underlying sockets are kept open
+ * between calls and reused. At most maxConnections calls are in flight at once
+ * (callers beyond that wait for a slot) which also bounds how many sockets are
+ * ever opened to the daemon, since the daemon only has a handful of rpc
+ * threads anyway.
+ *
+ * Idle sockets are kept in the JVM's keep-alive cache, which holds up to
+ * http.maxConnections (default 5) per host. With more than that many
+ * connections some sockets are closed rather than reused after a busy spell,
+ * so to avoid that start the JVM with -Dhttp.maxConnections set at least as
+ * high. It's read once, so setting it later does nothing.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class HttpRpcBackend implements RpcBackend {
+
+  /**
+   * How many connections we keep to the daemon if not told otherwise. This
+   * matches the default number of rpc threads in the daemon.
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS = 4;
+  /**
+   * How long (ms) to wait for a connection or a response before giving up.
+   */
+  public static final int DEFAULT_TIMEOUT = 30000;
+  /**
+   * How many requests go in one batch POST if not told otherwise.
+   */
+  public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+  private final URL url;
+  private final String authorization;
+  private final Semaphore connections;
+  private final int timeout;
+  private final AtomicLong nextId = new AtomicLong();
+  private final Gson gson = new Gson();
+  private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+  /**
+   * @param host the host the daemon is listening on (normally 127.0.0.1)
+   * @param port the daemon's rpcport
+   * @param user the daemon's rpcuser
+   * @param password the daemon's rpcpassword
+   */
+  public HttpRpcBackend(String host, int port, String user, String password) {
+    this(host, port, user, password, DEFAULT_MAX_CONNECTIONS, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * @param host the host the daemon is listening on (normally 127.0.0.1)
+   * @param port the daemon's rpcport
+   * @param user the daemon's rpcuser
+   * @param password the daemon's rpcpassword
+   * @param maxConnections the most connections to hold open to the daemon
+   * @param timeout connect and read timeout in milliseconds
+   */
+  public HttpRpcBackend(String host, int port, String user, String password,
+      int maxConnections, int timeout) {
+    try {
+      this.url = new URL("http", host, port, "/");
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Bad rpc host: " + host, ex);
+    }
+    this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+        (user + ":" + password).getBytes(StandardCharsets.UTF_8));
+    this.connections = new Semaphore(maxConnections, true);
+    this.timeout = timeout;
+  }
+
+  /**
+   * Build a backend from the rpcuser/rpcpassword in the daemon's conf file.
+   *
+   * @param conf the HyperStake.conf the daemon is started with
+   * @param port the daemon's rpcport
+   * @return a backend talking to the daemon on localhost
+   * @throws IOException if the conf file cannot be read
+   */
+  public static HttpRpcBackend fromConf(File conf, int port) throws IOException {
+    Properties p = new Properties();
+    try (InputStream in = new FileInputStream(conf)) {
+      p.load(in);
+    }
+    return new HttpRpcBackend("127.0.0.1", port, p.getProperty("rpcuser", ""),
+        p.getProperty("rpcpassword", ""));
+  }
+
+  @Override
+  public String call(String method, Object... params) {
+    return batch(Collections.singletonList(new RpcRequest(method, params)))
+        .get(0).getResult();
+  }
+
+  /**
+   * Sends the requests as JSON-RPC batches (a JSON array of requests in one
+   * POST) of at most maxBatchSize requests each.
+   */
+  @Override
+  public List<RpcResponse> batch(List<RpcRequest> requests) {
+    List<RpcResponse> responses = new ArrayList<>(requests.size());
+    for (int from = 0; from < requests.size(); from += maxBatchSize) {
+      List<RpcRequest> chunk = requests.subList(from,
+          Math.min(requests.size(), from + maxBatchSize));
+      responses.addAll(sendChunk(chunk));
+    }
+    return responses;
+  }
+
+  private List<RpcResponse> sendChunk(List<RpcRequest> chunk) {
+    // ids let us match responses to requests since the daemon is free to
+    // answer a batch in any order
+    Map<Long, RpcRequest> byId = new LinkedHashMap<>();
+    JsonArray payload = new JsonArray();
+    for (RpcRequest request : chunk) {
+      long id = nextId.incrementAndGet();
+      byId.put(id, request);
+      payload.add(toJson(id, request));
+    }
+
+    Map<Long, RpcResponse> answers = new HashMap<>();
+    String failure = "no response";
+    // a single request is sent bare as some daemons don't accept batches
+    String body = post(chunk.size() == 1
+        ? payload.get(0).toString() : payload.toString());
+    if (body != null) {
+      try {
+        JsonElement parsed = new JsonParser().parse(body);
+        JsonArray array;
+        if (parsed.isJsonArray()) {
+          array = parsed.getAsJsonArray();
+        } else {
+          array = new JsonArray();
+          array.add(parsed);
+        }
+        for (JsonElement e : array) {
+          JsonObject response = e.getAsJsonObject();
+          RpcRequest request = byId.get(response.get("id").getAsLong());
+          if (request == null) {
+            continue;
+          }
+          JsonElement error = response.get("error");
+          if (error != null && !error.isJsonNull()) {
+            HLogger.log(Level.WARNING, "RPC error from " + request + ": " + error);
+            answers.put(response.get("id").getAsLong(),
+                RpcResponse.failure(request, error.toString()));
+          } else {
+            answers.put(response.get("id").getAsLong(),
+                RpcResponse.success(request, response.get("result")));
+          }
+        }
+      } catch (JsonParseException | IllegalStateException
+          | UnsupportedOperationException ex) {
+        Logger.getLogger(HttpRpcBackend.class.getName()).log(Level.SEVERE, null, ex);
+        failure = "unparseable response";
+      }
+    }
+
+    List<RpcResponse> responses = new ArrayList<>(chunk.size());
+    for (Map.Entry<Long, RpcRequest> entry : byId.entrySet()) {
+      RpcResponse response = answers.get(entry.getKey());
+      responses.add(response != null
+          ? response : RpcResponse.failure(entry.getValue(), failure));
+    }
+    return responses;
+  }
+
+  private JsonObject toJson(long id, RpcRequest rpcRequest) {
+    JsonObject request = new JsonObject();
+    request.addProperty("jsonrpc", "1.0");
+    request.addProperty("id", id);
+    request.addProperty("method", rpcRequest.getMethod());
+    JsonArray array = new JsonArray();
+    for (Object param : rpcRequest.getParams()) {
+      array.add(gson.toJsonTree(param));
+    }
+    request.add("params", array);
+    return request;
+  }
+
+  /**
+   * @return the most requests sent to the daemon in a single POST
+   */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * @param maxBatchSize the most requests to send to the daemon in a single
+   * POST. Larger batches are split up.
+   */
+  public void setMaxBatchSize(int maxBatchSize) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("maxBatchSize must be at least 1");
+    }
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * POST a JSON payload to the daemon.
+   *
+   * @param payload the JSON-RPC request
+   * @return the response body, or null if the request failed.
+   */
+  String post(String payload) {
+    HLogger.log(Level.FINEST, "Sending RPC request: \n{0}", payload);
+    String s = null;
+    try {
+      connections.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    try {
+      // the body must be read completely and the stream closed for the
+      // socket to go back into the keep-alive cache
+      s = readFully(send(payload));
+    } catch (IOException ex) {
+      Logger.getLogger(HttpRpcBackend.class.getName()).log(Level.SEVERE, null, ex);
+    } finally {
+      connections.release();
+    }
+    HLogger.log(Level.FINEST, "Received RPC response: \n{0}", s);
+    return s;
+  }
+
+  /**
+   * Streams the JSON-RPC response object. The connection slot is held until
+   * the returned Reader is closed.
+   */
+  @Override
+  public Reader stream(String method, Object... params) throws IOException {
+    String payload = toJson(nextId.incrementAndGet(),
+        new RpcRequest(method, params)).toString();
+    HLogger.log(Level.FINEST, "Streaming RPC request: \n{0}", payload);
+    try {
+      connections.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    InputStream in;
+    try {
+      in = send(payload);
+    } catch (IOException | RuntimeException ex) {
+      connections.release();
+      throw ex;
+    }
+    return new InputStreamReader(in, StandardCharsets.UTF_8) {
+      private boolean closed;
+
+      @Override
+      public void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          try {
+            super.close();
+          } finally {
+            connections.release();
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * POST a payload and open the response body.
+   *
+   * @return the response body, which the caller must close
+   * @throws IOException if the request fails or there's no body
+   */
+  private InputStream send(String payload) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setUseCaches(false);
+    conn.setConnectTimeout(timeout);
+    conn.setReadTimeout(timeout);
+    conn.setRequestProperty("Authorization", authorization);
+    conn.setRequestProperty("Content-Type", "application/json");
+    conn.setRequestProperty("Connection", "keep-alive");
+    byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+    conn.setFixedLengthStreamingMode(bytes.length);
+    try (OutputStream out = conn.getOutputStream()) {
+      out.write(bytes);
+    }
+    // the daemon reports rpc errors with a 500 and a normal JSON-RPC body
+    InputStream in = conn.getResponseCode() < 400
+        ? conn.getInputStream() : conn.getErrorStream();
+    if (in == null) {
+      throw new IOException("RPC request failed with HTTP " + conn.getResponseCode());
+    }
+    return in;
+  }
+
+  private static String readFully(InputStream in) throws IOException {
+    try (InputStream is = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int n;
+      while ((n = is.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.rpc;
+
+import com.clothcat.hat.util.HLogger;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * RpcBackend which runs every command by starting a new hyperstaked process
+ * with the command on its command line and reading what it prints.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class ProcessRpcBackend implements RpcBackend {
+
+  /**
+   * The stub of the cmdline to use.
+   *
+   * <strong>FIXME:</strong> Make this generic and move the various options to a
+   * configuration file! Also create a build script that will build and move the
+   * files to the correct places when new wallet builds happen.
+   */
+  String[] cmdline = new String[]{"/home/hyp/.Hyperpool/wallet/hyperstaked",
+    "-rpcport=20000",
+    "-conf=/home/hyp/.Hyperpool/wallet/HyperStake.conf",
+    "-datadir=/home/hyp/.Hyperpool/wallet/"
+  };
+
+  @Override
+  public String call(String method, Object... params) {
+    return runCommand(command(method, params));
+  }
+
+  @Override
+  public Reader stream(String method, Object... params) throws IOException {
+    List<String> command = command(method, params);
+    HLogger.log(Level.FINEST, "Streaming RPC command: \n{0}", command);
+    ProcessBuilder ps = new ProcessBuilder(command);
+    ps.redirectErrorStream(true);
+    final Process pr = ps.start();
+    return new InputStreamReader(pr.getInputStream(), StandardCharsets.UTF_8) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+          pr.waitFor(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        } finally {
+          pr.destroy();
+        }
+      }
+    };
+  }
+
+  private List<String> command(String method, Object... params) {
+    List<String> cmd = new ArrayList<>();
+    cmd.addAll(Arrays.asList(cmdline));
+    cmd.add(method);
+    for (Object param : params) {
+      cmd.add(String.valueOf(param));
+    }
+    return cmd;
+  }
+
+  /**
+   * There's no way to batch commands on the command line, so this just runs
+   * them one after the other.
+   */
+  @Override
+  public List<RpcResponse> batch(List<RpcRequest> requests) {
+    List<RpcResponse> responses = new ArrayList<>(requests.size());
+    for (RpcRequest request : requests) {
+      String s = call(request.getMethod(), request.getParams());
+      if (s.isEmpty() || s.startsWith("error:")) {
+        responses.add(RpcResponse.failure(request, s.isEmpty() ? "no response" : s));
+        continue;
+      }
+      JsonElement result;
+      try {
+        result = new JsonParser().parse(s);
+      } catch (JsonParseException ex) {
+        // plain strings are printed without quotes
+        result = new JsonPrimitive(s);
+      }
+      responses.add(RpcResponse.success(request, result));
+    }
+    return responses;
+  }
+
+  private String runCommand(List<String> command) {
+    String s = "";
+    HLogger.log(Level.FINEST, "Running RPC command: \n{0}", command);
+    try {
+      ProcessBuilder ps = new ProcessBuilder(command);
+      ps.redirectErrorStream(true);
+      Process pr = ps.start();
+      BufferedReader in = new BufferedReader(new InputStreamReader(pr.getInputStream()));
+      StringBuilder sb = new StringBuilder();
+      String line;
+      while ((line = in.readLine()) != null) {
+        sb.append(line);
+      }
+      pr.waitFor(5, TimeUnit.SECONDS);
+      s = sb.toString().trim();
+    } catch (IOException | InterruptedException ex) {
+      Logger.getLogger(ProcessRpcBackend.class.getName()).log(Level.SEVERE, null, ex);
+    }
+    HLogger.log(Level.FINEST, "Received RPC response: \n{0}", s);
+    return s;
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.rpc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * Something that can run a wallet rpc command and hand back the JSON it
+ * produced. RpcHelper delegates to one of these so the transport (spawning the
+ * daemon binary or talking JSON-RPC over HTTP) can be chosen at construction
+ * time without changing any of the RpcHelper methods.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public interface RpcBackend {
+
+  /**
+   * Run an rpc command.
+   *
+   * @param method the rpc method name, eg cclistcoins
+   * @param params any parameters the method takes
+   * @return The JSON result of the command as a String, or an empty String if
+   * the command could not be run.
+   */
+  String call(String method, Object... params);
+
+  /**
+   * Run an rpc command and read its output as it arrives rather than waiting
+   * for all of it. The output is either the bare result (as the command line
+   * prints it) or a JSON-RPC response object containing the result.
+   *
+   * @param method the rpc method name, eg cclistcoins
+   * @param params any parameters the method takes
+   * @return a Reader over the output, which the caller must close.
+   * @throws IOException if the command can't be run
+   */
+  Reader stream(String method, Object... params) throws IOException;
+
+  /**
+   * Run several rpc commands together. Backends which can will send them in as
+   * few round trips to the daemon as possible.
+   *
+   * @param requests the commands to run
+   * @return one response per request, in the same order as the requests. A
+   * request failing does not stop the others from being run.
+   */
+  List<RpcResponse> batch(List<RpcRequest> requests);
+}
@@ -23,56 +23,46 @@
  */
 package com.clothcat.hat.rpc;
 
-import com.clothcat.hat.util.HLogger;
-import java.io.BufferedReader;
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.metrics.Metrics;
+import com.clothcat.hat.metrics.Timer;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Runs the rpc commands we use against the wallet daemon. How the commands
+ * actually reach the daemon is down to the RpcBackend in use; by default a new
+ * hyperstaked process is run for each command.
  *
  * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
  */
 public class RpcHelper {
 
+  private static final Timer CHECKWALLET = Metrics.timer("rpc.checkwallet");
+  private static final Timer CCLISTCOINS = Metrics.timer("rpc.cclistcoins");
+  private static final Timer CCLISTCOINS_STREAM
+      = Metrics.timer("rpc.cclistcoins.stream");
+  private static final Timer GETTRANSACTION
+      = Metrics.timer("rpc.gettransaction");
+  private static final Timer BATCH = Metrics.timer("rpc.batch");
+  private static final Timer GETBLOCKCOUNT = Metrics.timer("rpc.getblockcount");
+
+  private final RpcBackend backend;
+
+  public RpcHelper() {
+    this(new ProcessRpcBackend());
+  }
+
   /**
-   * The stub of the cmdline to use.
-   *
-   * <strong>FIXME:</strong> Make this generic and move the various options to a
-   * configuration file! Also create a build script that will build and move the
-   * files to the correct places when new wallet builds happen.
+   * @param backend the backend used to reach the daemon
    */
-  String[] cmdline = new String[]{"/home/hyp/.Hyperpool/wallet/hyperstaked",
-    "-rpcport=20000",
-    "-conf=/home/hyp/.Hyperpool/wallet/HyperStake.conf",
-    "-datadir=/home/hyp/.Hyperpool/wallet/"
-  };
-
-  private String runCommand(List<String> command) {
-    String s = "";
-    HLogger.log(Level.FINEST, "Running RPC command: \n" + Arrays.toString(command.toArray()));
-    try {
-      ProcessBuilder ps = new ProcessBuilder(command);
-      ps.redirectErrorStream(true);
-      Process pr = ps.start();
-      BufferedReader in = new BufferedReader(new InputStreamReader(pr.getInputStream()));
-      s = "";
-      String line;
-      while ((line = in.readLine()) != null) {
-        s += line;
-      }
-      pr.waitFor(5, TimeUnit.SECONDS);
-      s = s.trim();
-    } catch (IOException | InterruptedException ex) {
-      Logger.getLogger(RpcHelper.class.getName()).log(Level.SEVERE, null, ex);
-    }
-    HLogger.log(Level.FINEST, "Received RPC response: \n" + s);
-    return s;
+  public RpcHelper(RpcBackend backend) {
+    this.backend = backend;
   }
 
   /**
@@ -81,11 +71,9 @@ public class RpcHelper {
    * @return The JSON string returned by running the checkwallet command.
    */
   public String checkwallet() {
-    List<String> cmd = new ArrayList<>();
-    cmd.addAll(Arrays.asList(cmdline));
-    cmd.add("checkwallet");
-
-    return runCommand(cmd);
+    try (Timer.Context ctx = CHECKWALLET.time()) {
+      return backend.call("checkwallet");
+    }
   }
 
   /**
@@ -94,11 +82,101 @@ public class RpcHelper {
    * @return The json returned by running the cclistcoins command.
    */
   public String cclistcoins() {
-    List<String> cmd = new ArrayList<>();
-    cmd.addAll(Arrays.asList(cmdline));
-    cmd.add("cclistcoins");
+    try (Timer.Context ctx = CCLISTCOINS.time()) {
+      return backend.call("cclistcoins");
+    }
+  }
 
-    return runCommand(cmd);
+  /**
+   * Run the cclistcoins rpc command, handing each coin to the handler as a
+   * CoinHeap as soon as it has been read. Unlike cclistcoins() this never holds
+   * the whole response in memory.
+   *
+   * @param handler receives the heaps in the order the daemon lists them
+   * @return the number of heaps read, or -1 if the command failed or the
+   * daemon returned an error (in which case the handler may have seen only
+   * some of the heaps).
+   */
+  public int cclistcoins(CoinListParser.Handler handler) {
+    try (Timer.Context ctx = CCLISTCOINS_STREAM.time()) {
+      final int[] count = new int[1];
+      final CoinListParser.Handler h = handler;
+      try (Reader in = backend.stream("cclistcoins")) {
+        CoinListParser.parse(in, new CoinListParser.Handler() {
+          @Override
+          public void handle(CoinHeap heap) {
+            h.handle(heap);
+            count[0]++;
+          }
+        });
+      } catch (IOException | RuntimeException ex) {
+        Logger.getLogger(RpcHelper.class.getName()).log(Level.SEVERE, null, ex);
+        return -1;
+      }
+      return count[0];
+    }
+  }
+
+  /**
+   * Run the getblockcount rpc command.
+   *
+   * @return the height of the best block, or -1 if the command failed
+   */
+  public long getblockcount() {
+    try (Timer.Context ctx = GETBLOCKCOUNT.time()) {
+      String reply = backend.call("getblockcount").trim();
+      if (reply.isEmpty()) {
+        // the backend has already said why
+        return -1;
+      }
+      try {
+        return Long.parseLong(reply);
+      } catch (NumberFormatException ex) {
+        Logger.getLogger(RpcHelper.class.getName()).log(Level.WARNING,
+            "getblockcount gave " + reply, ex);
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Run the gettransaction rpc command.
+   *
+   * @param txId the transaction to look up
+   * @return The json returned by running the gettransaction command.
+   */
+  public String gettransaction(String txId) {
+    try (Timer.Context ctx = GETTRANSACTION.time()) {
+      return backend.call("gettransaction", txId);
+    }
+  }
+
+  /**
+   * Run gettransaction for each of several transactions in as few round trips
+   * as the backend allows.
+   *
+   * @param txIds the transactions to look up
+   * @return one response per txId, in the same order as txIds.
+   */
+  public List<RpcResponse> gettransactions(Collection<String> txIds) {
+    List<RpcRequest> requests = new ArrayList<>(txIds.size());
+    for (String txId : txIds) {
+      requests.add(new RpcRequest("gettransaction", txId));
+    }
+    return batch(requests);
+  }
+
+  /**
+   * Run several rpc commands together.
+   *
+   * @param requests the commands to run
+   * @return one response per request, in the same order as the requests. Check
+   * each response with isError() as they succeed or fail individually.
+   */
+  public List<RpcResponse> batch(List<RpcRequest> requests) {
+    try (Timer.Context ctx = BATCH.time()) {
+      return backend.batch(requests);
+    }
   }
 
 }
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.rpc;
+
+import java.util.Arrays;
+
+/**
+ * A single rpc command and its parameters, used when sending several commands
+ * to the daemon in one batch.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class RpcRequest {
+
+  private final String method;
+  private final Object[] params;
+
+  /**
+   * @param method the rpc method name, eg gettransaction
+   * @param params any parameters the method takes
+   */
+  public RpcRequest(String method, Object... params) {
+    this.method = method;
+    this.params = params;
+  }
+
+  /**
+   * @return the method
+   */
+  public String getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the params
+   */
+  public Object[] getParams() {
+    return params;
+  }
+
+  @Override
+  public String toString() {
+    return method + Arrays.toString(params);
+  }
+}
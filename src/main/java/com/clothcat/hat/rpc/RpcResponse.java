@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.rpc;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+/**
+ * The outcome of one RpcRequest in a batch. Each request in a batch succeeds or
+ * fails on its own, so check isError() before using the result.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class RpcResponse {
+
+  private final RpcRequest request;
+  private final JsonElement result;
+  private final String error;
+
+  private RpcResponse(RpcRequest request, JsonElement result, String error) {
+    this.request = request;
+    this.result = result;
+    this.error = error;
+  }
+
+  static RpcResponse success(RpcRequest request, JsonElement result) {
+    return new RpcResponse(request, result, null);
+  }
+
+  static RpcResponse failure(RpcRequest request, String error) {
+    return new RpcResponse(request, null, error);
+  }
+
+  /**
+   * @return the request this is the response to
+   */
+  public RpcRequest getRequest() {
+    return request;
+  }
+
+  /**
+   * @return true if the daemon returned an error (or nothing at all) for this
+   * request
+   */
+  public boolean isError() {
+    return error != null;
+  }
+
+  /**
+   * @return the error reported for this request, or null if it succeeded
+   */
+  public String getError() {
+    return error;
+  }
+
+  /**
+   * @return the parsed JSON result, or null if the request failed
+   */
+  public JsonElement getResultJson() {
+    return result;
+  }
+
+  /**
+   * @return the result as the JSON string the command line would print, or an
+   * empty string if the request failed
+   */
+  public String getResult() {
+    if (result == null || result.isJsonNull()) {
+      return "";
+    }
+    if (result.isJsonPrimitive() && result.getAsJsonPrimitive().isString()) {
+      return result.getAsString();
+    }
+    return new Gson().toJson(result);
+  }
+}
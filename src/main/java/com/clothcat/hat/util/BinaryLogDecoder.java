@@ -0,0 +1,201 @@
+package com.clothcat.hat.util;
+
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Turns log files written by BinaryLogHandler back into the same text the
+ * normal log files have. Run it with the files to decode, oldest first, eg
+ * <pre>java -cp HAT.jar com.clothcat.hat.util.BinaryLogDecoder Hyperpool_1.hlb Hyperpool_0.hlb</pre>
+ * and the text goes to standard output. A file cut short (eg because the
+ * program was killed) is decoded up to the last complete record.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class BinaryLogDecoder {
+
+  private final Formatter formatter;
+
+  /**
+   * @param formatter how to turn the records back into text
+   */
+  public BinaryLogDecoder(Formatter formatter) {
+    this.formatter = formatter;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: BinaryLogDecoder file.hlb...");
+      System.exit(1);
+    }
+    // must be set before SimpleFormatter is loaded
+    System.setProperty("java.util.logging.SimpleFormatter.format",
+        HLogger.FORMAT);
+    BinaryLogDecoder decoder = new BinaryLogDecoder(new SimpleFormatter());
+    for (String file : args) {
+      try (InputStream in = new FileInputStream(file)) {
+        decoder.decode(in, System.out);
+      }
+    }
+    System.out.flush();
+  }
+
+  /**
+   * Decode one file.
+   *
+   * @param in the binary log
+   * @param out where the text goes
+   * @return how many records were decoded
+   * @throws IOException if it can't be read or isn't a binary log
+   */
+  public int decode(InputStream in, PrintStream out) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != BinaryLogHandler.MAGIC) {
+      throw new IOException("Not a binary log");
+    }
+    int version = data.readUnsignedByte();
+    if (version != BinaryLogHandler.VERSION) {
+      throw new IOException("Unknown binary log version " + version);
+    }
+    long millis = data.readLong();
+    List<String[]> sites = new ArrayList<>();
+    int records = 0;
+    try {
+      int tag;
+      while ((tag = data.read()) >= 0) {
+        switch (tag) {
+          case BinaryLogHandler.TAG_SITE:
+            int id = (int) readVarint(data);
+            String[] site = {readString(data), readString(data),
+              readString(data)};
+            while (sites.size() <= id) {
+              sites.add(null);
+            }
+            sites.set(id, site);
+            break;
+          case BinaryLogHandler.TAG_RECORD:
+            millis += unzigzag(readVarint(data));
+            Level level = Level.parse(Long.toString(unzigzag(readVarint(data))));
+            String[] s = sites.get((int) readVarint(data));
+            Object[] params = new Object[(int) readVarint(data)];
+            for (int i = 0; i < params.length; i++) {
+              params[i] = readString(data);
+            }
+            String thrown = readString(data);
+            out.print(formatter.format(toRecord(millis, level, s, params,
+                thrown)));
+            records++;
+            break;
+          default:
+            throw new IOException("Bad record tag " + tag);
+        }
+      }
+    } catch (EOFException ex) {
+      // the last record was only partly written
+    }
+    return records;
+  }
+
+  // setMillis is deprecated from Java 9 but setInstant doesn't exist in 8,
+  // which is what we build for
+  @SuppressWarnings("deprecation")
+  private static LogRecord toRecord(long millis, Level level, String[] site,
+      Object[] params, String thrown) {
+    LogRecord record;
+    if (site[2] == null) {
+      record = new LogRecord(level, (String) params[0]);
+    } else {
+      record = new LogRecord(level, site[2]);
+      record.setParameters(params);
+    }
+    record.setMillis(millis);
+    record.setSourceClassName(site[0]);
+    record.setSourceMethodName(site[1]);
+    if (thrown != null) {
+      record.setThrown(new Recorded(thrown));
+    }
+    return record;
+  }
+
+  static long unzigzag(long n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  static long readVarint(DataInputStream in) throws IOException {
+    long n = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      n |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return n;
+      }
+    }
+    throw new IOException("Bad varint");
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    long length = readVarint(in);
+    if (length == 0) {
+      return null;
+    }
+    byte[] bytes = new byte[(int) (length - 1)];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Stands in for the original exception, printing its recorded stack trace.
+   */
+  private static class Recorded extends Throwable {
+
+    private final String text;
+
+    Recorded(String text) {
+      super(null, null, false, false);
+      this.text = text;
+    }
+
+    @Override
+    public void printStackTrace(PrintWriter pw) {
+      // the recorded text starts with the line break SimpleFormatter adds
+      pw.print(text.startsWith(System.lineSeparator())
+          ? text.substring(System.lineSeparator().length()) : text);
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package com.clothcat.hat.util;
+
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler which writes compact binary records instead of text. Most of
+ * a text log line is the same timestamp and source over and over, so instead
+ * each record holds:
+ * <ul>
+ * <li>the time since the previous record</li>
+ * <li>the level</li>
+ * <li>a call site id, standing for the source class and method and the
+ * message pattern, which is written out in full only the first time it's
+ * used in each file</li>
+ * <li>the message parameters (or the whole message if it has none)</li>
+ * <li>the exception, if any, as text</li>
+ * </ul>
+ * Messages logged with parameters, eg HLogger.log(Level.FINEST, "Got {0}",
+ * response), get the most out of this as the pattern is only stored once.
+ *
+ * Files rotate like FileHandler's: when the current file reaches the limit
+ * it becomes _1, _1 becomes _2 and so on, and a new _0 is started. They also
+ * rotate when the handler is created, so a restart never overwrites what the
+ * last run logged.
+ * BinaryLogDecoder turns the files back into the usual text.
+ *
+ * A file starts with MAGIC, VERSION and the time (ms) of the first record.
+ * Integers are unsigned LEB128 varints (signed ones zig-zag encoded first) and
+ * strings are a varint of their UTF-8 length plus one (0 for null) followed
+ * by the UTF-8.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class BinaryLogHandler extends Handler {
+
+  static final int MAGIC = 0x48415442; // "HATB"
+  static final int VERSION = 1;
+  static final int TAG_SITE = 1;
+  static final int TAG_RECORD = 2;
+
+  private final String pattern;
+  private final long limit;
+  private final int count;
+  private final Map<CallSite, Integer> sites = new HashMap<>();
+  private DataOutputStream out;
+  private long lastMillis;
+
+  /**
+   * @param pattern file name pattern, with %g for the rotation number
+   * @param limit roughly how many bytes to write to a file before rotating
+   * @param count how many files to keep
+   * @throws IOException if the first file can't be opened
+   */
+  public BinaryLogHandler(String pattern, long limit, int count)
+      throws IOException {
+    if (!pattern.contains("%g") || count < 1) {
+      throw new IllegalArgumentException("Bad pattern or count: " + pattern
+          + ", " + count);
+    }
+    this.pattern = pattern;
+    this.limit = limit;
+    this.count = count;
+    if (file(0).length() > 0) {
+      shift();
+    }
+    open();
+  }
+
+  private File file(int generation) {
+    return new File(pattern.replace("%g", Integer.toString(generation)));
+  }
+
+  private void open() throws IOException {
+    File f = file(0);
+    if (f.getParentFile() != null) {
+      f.getParentFile().mkdirs();
+    }
+    out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(f), 64 * 1024));
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    lastMillis = System.currentTimeMillis();
+    out.writeLong(lastMillis);
+    sites.clear();
+  }
+
+  private void rotate() throws IOException {
+    out.close();
+    shift();
+    open();
+  }
+
+  /**
+   * Move each file up one generation, dropping the oldest.
+   */
+  private void shift() {
+    for (int i = count - 1; i > 0; i--) {
+      File from = file(i - 1);
+      File to = file(i);
+      if (from.exists()) {
+        to.delete();
+        from.renameTo(to);
+      }
+    }
+    if (count == 1) {
+      file(0).delete();
+    }
+  }
+
+  @Override
+  public synchronized void publish(LogRecord record) {
+    if (out == null || !isLoggable(record)) {
+      return;
+    }
+    try {
+      if (limit > 0 && out.size() >= limit) {
+        rotate();
+      }
+      Object[] params = record.getParameters();
+      boolean hasParams = params != null && params.length > 0;
+      CallSite site = new CallSite(record.getSourceClassName(),
+          record.getSourceMethodName(), hasParams ? record.getMessage() : null);
+      Integer id = sites.get(site);
+      if (id == null) {
+        id = sites.size();
+        sites.put(site, id);
+        out.writeByte(TAG_SITE);
+        writeVarint(out, id);
+        writeString(out, site.className);
+        writeString(out, site.methodName);
+        writeString(out, site.pattern);
+      }
+      out.writeByte(TAG_RECORD);
+      writeVarint(out, zigzag(record.getMillis() - lastMillis));
+      lastMillis = record.getMillis();
+      writeVarint(out, zigzag(record.getLevel().intValue()));
+      writeVarint(out, id);
+      if (hasParams) {
+        writeVarint(out, params.length);
+        for (Object param : params) {
+          writeString(out, String.valueOf(param));
+        }
+      } else {
+        writeVarint(out, 1);
+        writeString(out, record.getMessage());
+      }
+      writeString(out, thrownText(record.getThrown()));
+    } catch (IOException | RuntimeException ex) {
+      reportError(null, ex, ErrorManager.WRITE_FAILURE);
+    }
+  }
+
+  @Override
+  public synchronized void flush() {
+    if (out != null) {
+      try {
+        out.flush();
+      } catch (IOException ex) {
+        reportError(null, ex, ErrorManager.FLUSH_FAILURE);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException ex) {
+        reportError(null, ex, ErrorManager.CLOSE_FAILURE);
+      }
+      out = null;
+    }
+  }
+
+  /**
+   * @return the exception as SimpleFormatter would print it, or null
+   */
+  private static String thrownText(Throwable t) {
+    if (t == null) {
+      return null;
+    }
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    pw.println();
+    t.printStackTrace(pw);
+    pw.close();
+    return sw.toString();
+  }
+
+  static long zigzag(long n) {
+    return (n << 1) ^ (n >> 63);
+  }
+
+  static void writeVarint(DataOutputStream out, long n) throws IOException {
+    while ((n & ~0x7FL) != 0) {
+      out.writeByte((int) ((n & 0x7F) | 0x80));
+      n >>>= 7;
+    }
+    out.writeByte((int) n);
+  }
+
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      writeVarint(out, 0);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, bytes.length + 1L);
+    out.write(bytes);
+  }
+
+  private static class CallSite {
+
+    private final String className;
+    private final String methodName;
+    private final String pattern;
+
+    CallSite(String className, String methodName, String pattern) {
+      this.className = className;
+      this.methodName = methodName;
+      this.pattern = pattern;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CallSite)) {
+        return false;
+      }
+      CallSite c = (CallSite) o;
+      return eq(className, c.className) && eq(methodName, c.methodName)
+          && eq(pattern, c.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+      int h = className == null ? 0 : className.hashCode();
+      h = h * 31 + (methodName == null ? 0 : methodName.hashCode());
+      return h * 31 + (pattern == null ? 0 : pattern.hashCode());
+    }
+
+    private static boolean eq(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+}
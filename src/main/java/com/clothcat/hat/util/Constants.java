@@ -66,6 +66,11 @@ public class Constants {
    * <pre>Hyperpool_n.log</pre> where n is a rotating digit
    */
   public static final String LOGGFILE_PATTERN = FILE_BASE + APPNAME + "_%g.log";
+  /**
+   * Binary log files (see BinaryLogHandler) are called
+   * <pre>Hyperpool_n.hlb</pre> where n is a rotating digit
+   */
+  public static final String BINLOG_PATTERN = FILE_BASE + APPNAME + "_%g.hlb";
 
   /**
    * How many microHyp there is in one Hyp
@@ -79,6 +84,15 @@ public class Constants {
   public static final long SECS_IN_HOUR = 60 * SECS_IN_MINUTE;
   public static final long SECS_IN_DAY = 24 * SECS_IN_HOUR;
   public static final int MEBIBYTES = 1024 * 1024;
+  /**
+   * How old (in seconds) coins must be before they can stake (8.8 days)
+   */
+  public static final long STAKE_MIN_AGE = 88 * SECS_IN_DAY / 10;
+  /**
+   * How many confirmations coins in a filling pool need before they start
+   * maturing
+   */
+  public static final int MATURING_CONFIRMATIONS = 6;
 
   /* FTP details at byethost */
   public static final String FTP_HOSTNAME = "ftp.byethost11.com";
@@ -24,24 +24,114 @@ package com.clothcat.hat.util;
  * THE SOFTWARE.
  */
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
 /**
  * Singleton logger class. Yeah, I know singletons are evil blah blah blah...
  *
+ * Logging is asynchronous: messages go into a bounded buffer and a background
+ * thread writes them to the log files, flushing once enough have been written
+ * or enough time has passed, so callers never wait on the disk. Messages below
+ * the log level are thrown away before anything is built, and the Supplier
+ * versions of log() don't even build the message unless it will be logged.
+ * Use those (or check isLoggable() first) for anything expensive.
+ *
+ * Where each message came from is only worked out if the log format uses it,
+ * and then the logging thread only captures its stack; turning that into
+ * class and method names, which is most of the cost, is left to the writer.
+ *
+ * It can be configured with these system properties:
+ * <ul>
+ * <li>hat.log.level - the lowest level logged (default INFO)</li>
+ * <li>hat.log.buffer - how many messages can be waiting (default 8192)</li>
+ * <li>hat.log.overflow - what to do when the buffer is full: BLOCK until
+ * there's room, DROP the message, or CALLER_RUNS to write it straight away on
+ * the calling thread (default BLOCK)</li>
+ * <li>hat.log.flush_records - flush after this many messages (default
+ * 256)</li>
+ * <li>hat.log.flush_ms - flush no later than this after the first message
+ * which hasn't been flushed (default 1000)</li>
+ * <li>hat.log.format - text, or binary to write much smaller files with
+ * BinaryLogHandler which BinaryLogDecoder turns back into text (default
+ * text)</li>
+ * </ul>
+ *
  * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
  */
 public class HLogger {
 
-  private static HLogger instance;
-  private Logger logger;
-  private FileHandler fileHandler;
+  public static final String PROP_LEVEL = "hat.log.level";
+  public static final String PROP_BUFFER = "hat.log.buffer";
+  public static final String PROP_OVERFLOW = "hat.log.overflow";
+  public static final String PROP_FLUSH_RECORDS = "hat.log.flush_records";
+  public static final String PROP_FLUSH_MS = "hat.log.flush_ms";
+  public static final String PROP_FORMAT = "hat.log.format";
+
+  /**
+   * The log line format (see SimpleFormatter)
+   */
+  static final String FORMAT = "%1$tc %2$s%n%4$s: %5$s%6$s%n";
+
+  private final Handler handler;
+  private final boolean needsCaller;
+  private final Level level;
+  private final Overflow overflow;
+  private final BlockingQueue<LogRecord> buffer;
+  private final int flushRecords;
+  private final long flushMillis;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong queued = new AtomicLong();
+  private volatile long written;
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  /**
+   * What to do with a message when the buffer is full
+   */
+  public static enum Overflow {
+
+    /**
+     * wait for the writer to make room
+     */
+    BLOCK,
+    /**
+     * throw the message away (and say how many went once there's room)
+     */
+    DROP,
+    /**
+     * write the message on the calling thread
+     */
+    CALLER_RUNS,
+  }
+
+  HLogger(Handler handler, Level level, int capacity, Overflow overflow,
+      int flushRecords, long flushMillis) {
+    this.handler = handler;
+    this.needsCaller = needsCaller(handler);
+    this.level = level;
+    this.overflow = overflow;
+    this.buffer = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    this.flushRecords = Math.max(1, flushRecords);
+    this.flushMillis = Math.max(1, flushMillis);
+    writer = new Thread(this::drain, "HLogger-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
 
-  private HLogger() {
+  private static HLogger create() {
+    Handler fileHandler = null;
     try {
       // disable the console logger completely
       Logger globalLogger = Logger.getLogger("global");
@@ -57,48 +147,316 @@ public class HLogger {
        * (4$) and the log message (5$) followed with the throwable and its 
        * backtrace (6$), if any */
       System.getProperties().setProperty(
-          "java.util.logging.SimpleFormatter.format",
-          "%1$tc %2$s%n%4$s: %5$s%6$s%n");
-
-      logger = Logger.getLogger("HLogger");
-      fileHandler = new FileHandler(Constants.LOGGFILE_PATTERN,
-          5 * Constants.MEBIBYTES, 3, true);
-      SimpleFormatter format = new SimpleFormatter();
-      fileHandler.setFormatter(format);
+          "java.util.logging.SimpleFormatter.format", FORMAT);
 
-      // set the logging level to ALL - this may change later to remove
-      // debugging stuff not needed normally
+      if ("binary".equalsIgnoreCase(System.getProperty(PROP_FORMAT, "text"))) {
+        fileHandler = new BinaryLogHandler(Constants.BINLOG_PATTERN,
+            5 * Constants.MEBIBYTES, 3);
+      } else {
+        fileHandler = new FileHandler(Constants.LOGGFILE_PATTERN,
+            5 * Constants.MEBIBYTES, 3, true);
+        SimpleFormatter format = new SimpleFormatter();
+        fileHandler.setFormatter(format);
+      }
       fileHandler.setLevel(Level.ALL);
-      logger.addHandler(fileHandler);
-
-      logger.info("Constructed new HLogger.");
     } catch (IOException | SecurityException ex) {
       Logger.getLogger(HLogger.class.getName()).log(Level.SEVERE, null,
           ex);
     }
+    final HLogger logger = new HLogger(fileHandler,
+        Level.parse(System.getProperty(PROP_LEVEL, "INFO").trim()),
+        Integer.getInteger(PROP_BUFFER, 8192),
+        Overflow.valueOf(System.getProperty(PROP_OVERFLOW, "BLOCK").trim()),
+        Integer.getInteger(PROP_FLUSH_RECORDS, 256),
+        Long.getLong(PROP_FLUSH_MS, 1000));
+    Runtime.getRuntime().addShutdownHook(new Thread(logger::close,
+        "HLogger-shutdown"));
+    logger.publish(new Pending(Level.INFO, "Constructed new HLogger."), 1);
+    return logger;
+  }
+
+  /**
+   * Holds the singleton, which the JVM creates the first time it's used
+   * without callers ever taking a lock after that.
+   */
+  private static class Holder {
+
+    static final HLogger INSTANCE = create();
   }
 
   private static HLogger getInstance() {
-    if (instance == null) {
-      instance = new HLogger();
+    return Holder.INSTANCE;
+  }
+
+  /**
+   * @return false only if the handler certainly never looks at where a
+   * message came from
+   */
+  private static boolean needsCaller(Handler handler) {
+    if (handler == null) {
+      return false;
     }
-    return instance;
+    if (handler instanceof BinaryLogHandler
+        || !(handler.getFormatter() instanceof SimpleFormatter)) {
+      return true;
+    }
+    String format = System.getProperty(
+        "java.util.logging.SimpleFormatter.format", FORMAT);
+    return format.contains("%2$");
+  }
+
+  /**
+   * @param level a log level
+   * @return true if messages at that level are logged
+   */
+  public static boolean isLoggable(Level level) {
+    return getInstance().accepts(level);
   }
 
   /**
    * Log message with level INFO
    */
   public static void log(String message) {
-    log(Level.INFO, message, null);
+    getInstance().log(Level.INFO, message, null, 2);
   }
 
   public static void log(Level level, String message) {
-    log(Level.INFO, message, null);
+    getInstance().log(level, message, null, 2);
   }
 
   public static void log(Level level, String message, Throwable t) {
-    getInstance().logger.log(level, message, t);
-    getInstance().fileHandler.flush();
+    getInstance().log(level, message, t, 2);
+  }
+
+  /**
+   * Log a message with parameters, which are only formatted into it (with
+   * MessageFormat, eg "Got {0} from {1}") when it's written.
+   *
+   * @param level the message level
+   * @param pattern the message
+   * @param params the parameters
+   */
+  public static void log(Level level, String pattern, Object... params) {
+    HLogger logger = getInstance();
+    if (logger.accepts(level)) {
+      Pending record = new Pending(level, pattern);
+      record.setParameters(params);
+      logger.publish(record, 2);
+    }
+  }
+
+  /**
+   * Log a message which is only built if it will be logged.
+   *
+   * @param level the message level
+   * @param message builds the message
+   */
+  public static void log(Level level, Supplier<String> message) {
+    HLogger logger = getInstance();
+    if (logger.accepts(level)) {
+      logger.log(level, message.get(), null, 2);
+    }
+  }
+
+  /**
+   * Log a message and exception where the message is only built if it will be
+   * logged.
+   *
+   * @param level the message level
+   * @param t the exception
+   * @param message builds the message
+   */
+  public static void log(Level level, Throwable t, Supplier<String> message) {
+    HLogger logger = getInstance();
+    if (logger.accepts(level)) {
+      logger.log(level, message.get(), t, 2);
+    }
+  }
+
+  /**
+   * Wait until everything logged so far has been written and flushed.
+   */
+  public static void flush() {
+    getInstance().sync();
+  }
+
+  /**
+   * Log to this logger rather than the singleton.
+   */
+  void logTo(Level level, String message) {
+    log(level, message, null, 2);
+  }
+
+  boolean accepts(Level level) {
+    return level.intValue() >= this.level.intValue()
+        && this.level != Level.OFF;
+  }
+
+  long getDropped() {
+    return dropped.get();
+  }
+
+  private void log(Level level, String message, Throwable t, int depth) {
+    if (!accepts(level)) {
+      return;
+    }
+    Pending record = new Pending(level, message);
+    record.setThrown(t);
+    publish(record, depth + 1);
+  }
+
+  private void publish(Pending record, int depth) {
+    if (needsCaller) {
+      // the writer thread can't tell where the message came from, so capture
+      // the stack here for it to look at
+      record.site = new Throwable();
+      record.depth = depth;
+    } else {
+      // stop LogRecord guessing, which on the writer would only find itself
+      record.setSourceClassName(null);
+      record.setSourceMethodName(null);
+    }
+    if (!running || handler == null) {
+      write(record);
+      return;
+    }
+    if (buffer.offer(record)) {
+      queued.incrementAndGet();
+      return;
+    }
+    switch (overflow) {
+      case BLOCK:
+        try {
+          buffer.put(record);
+          queued.incrementAndGet();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          dropped.incrementAndGet();
+        }
+        break;
+      case DROP:
+        dropped.incrementAndGet();
+        break;
+      case CALLER_RUNS:
+        write(record);
+        break;
+    }
+  }
+
+  private void write(LogRecord record) {
+    if (record instanceof Pending) {
+      ((Pending) record).resolve();
+    }
+    if (handler != null) {
+      handler.publish(record);
+    }
   }
 
+  private void drain() {
+    List<LogRecord> batch = new ArrayList<>(flushRecords);
+    int unflushed = 0;
+    // when whatever is unflushed has to be flushed by
+    long deadline = 0;
+    while (running || !buffer.isEmpty()) {
+      try {
+        long wait = unflushed == 0 ? flushMillis
+            : Math.max(1, deadline - System.currentTimeMillis());
+        LogRecord first = buffer.poll(wait, TimeUnit.MILLISECONDS);
+        if (first != null) {
+          batch.add(first);
+          buffer.drainTo(batch, flushRecords - 1);
+        }
+      } catch (InterruptedException ex) {
+        // close() wants us to finish up
+      }
+      int count = batch.size();
+      long lost = dropped.getAndSet(0);
+      if (lost > 0) {
+        write(new LogRecord(Level.WARNING, "Log buffer full, dropped " + lost
+            + " messages"));
+        count++;
+      }
+      for (LogRecord record : batch) {
+        write(record);
+      }
+      long now = System.currentTimeMillis();
+      if (unflushed == 0 && count > 0) {
+        deadline = now + flushMillis;
+      }
+      unflushed += count;
+      if (unflushed > 0 && (unflushed >= flushRecords || now >= deadline)) {
+        if (handler != null) {
+          handler.flush();
+        }
+        unflushed = 0;
+      }
+      if (!batch.isEmpty()) {
+        synchronized (this) {
+          written += batch.size();
+          notifyAll();
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  void sync() {
+    long target = queued.get();
+    synchronized (this) {
+      while (writer.isAlive() && written < target) {
+        try {
+          wait(flushMillis);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+    if (handler != null) {
+      handler.flush();
+    }
+  }
+
+  /**
+   * A record whose source is still to be filled in from the stack captured
+   * where it was logged.
+   */
+  private static class Pending extends LogRecord {
+
+    private Throwable site;
+    private int depth;
+
+    Pending(Level level, String message) {
+      super(level, message);
+    }
+
+    void resolve() {
+      if (site == null) {
+        return;
+      }
+      StackTraceElement[] stack = site.getStackTrace();
+      if (stack.length > depth) {
+        setSourceClassName(stack[depth].getClassName());
+        setSourceMethodName(stack[depth].getMethodName());
+      }
+      site = null;
+    }
+  }
+
+  /**
+   * Write out whatever is waiting and stop the writer. Anything logged after
+   * this is written straight away.
+   */
+  void close() {
+    running = false;
+    writer.interrupt();
+    try {
+      writer.join(5000);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    if (handler != null) {
+      handler.flush();
+    }
+  }
 }
@@ -0,0 +1,189 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: holds items until a given tick and hands them
+ * back when the wheel is advanced past it. Scheduling is O(1) and advancing
+ * only touches the items which are due (plus, now and then, moving a slot of
+ * far off items down to a finer wheel), however many are waiting.
+ *
+ * A tick is just a number which never goes backwards, eg a time in minutes or
+ * a block height. The lowest wheel has one slot per tick, each wheel above it
+ * has slots as wide as the whole wheel below, so levels wheels of 2^bits slots
+ * cover 2^(bits * levels) ticks. Anything further off than that waits in an
+ * overflow list until it comes in range.
+ *
+ * Items can't be cancelled. If an item may no longer be wanted by the time
+ * it's due check that when it comes back.
+ *
+ * Not thread safe.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ * @param <T> what is being scheduled
+ */
+public class TimingWheel<T> {
+
+  private final int bits;
+  private final int mask;
+  private final List<Entry<T>>[][] wheels;
+  private final List<Entry<T>> overflow = new ArrayList<>();
+  private final List<T> ready = new ArrayList<>();
+  private long current;
+  private int size;
+
+  /**
+   * @param start the current tick
+   * @param bits each wheel has 2^bits slots
+   * @param levels how many wheels
+   */
+  @SuppressWarnings("unchecked")
+  public TimingWheel(long start, int bits, int levels) {
+    if (bits < 1 || levels < 1 || bits * levels > 62) {
+      throw new IllegalArgumentException("Bad wheel size " + bits + "x" + levels);
+    }
+    this.bits = bits;
+    this.mask = (1 << bits) - 1;
+    this.wheels = new List[levels][1 << bits];
+    this.current = start;
+  }
+
+  /**
+   * @return the tick the wheel has been advanced to
+   */
+  public long getCurrent() {
+    return current;
+  }
+
+  /**
+   * @return how many items are waiting
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Hold an item until the wheel reaches a tick. If that tick has already
+   * been reached it is handed back by the next call to advance().
+   *
+   * @param item the item
+   * @param due the tick at which it's wanted
+   */
+  public void schedule(T item, long due) {
+    size++;
+    insert(new Entry<>(item, due));
+  }
+
+  /**
+   * Move the wheel on.
+   *
+   * @param now the tick to move to. If it's not after the current tick only
+   * items already due are returned.
+   * @return every item due by now
+   */
+  public List<T> advance(long now) {
+    List<T> due = new ArrayList<>(ready);
+    ready.clear();
+    while (current < now) {
+      if (size == due.size()) {
+        // nothing left waiting, so no need to walk the slots
+        current = now;
+        break;
+      }
+      tick(due);
+    }
+    if (!overflow.isEmpty()) {
+      List<Entry<T>> waiting = new ArrayList<>(overflow);
+      overflow.clear();
+      for (Entry<T> e : waiting) {
+        insert(e);
+      }
+      due.addAll(ready);
+      ready.clear();
+    }
+    size -= due.size();
+    return due;
+  }
+
+  private void tick(List<T> due) {
+    current++;
+    // when a wheel comes round, spread the next slot of the one above it
+    for (int level = 1; level < wheels.length; level++) {
+      if ((current & ((1L << (bits * level)) - 1)) != 0) {
+        break;
+      }
+      int slot = (int) ((current >>> (bits * level)) & mask);
+      List<Entry<T>> entries = wheels[level][slot];
+      if (entries != null) {
+        wheels[level][slot] = null;
+        for (Entry<T> e : entries) {
+          insert(e);
+        }
+      }
+    }
+    int slot = (int) (current & mask);
+    List<Entry<T>> entries = wheels[0][slot];
+    if (entries != null) {
+      wheels[0][slot] = null;
+      for (Entry<T> e : entries) {
+        due.add(e.item);
+      }
+    }
+    due.addAll(ready);
+    ready.clear();
+  }
+
+  private void insert(Entry<T> e) {
+    long delta = e.due - current;
+    if (delta <= 0) {
+      ready.add(e.item);
+      return;
+    }
+    for (int level = 0; level < wheels.length; level++) {
+      if (delta < (1L << (bits * (level + 1)))) {
+        int slot = (int) ((e.due >>> (bits * level)) & mask);
+        if (wheels[level][slot] == null) {
+          wheels[level][slot] = new ArrayList<>();
+        }
+        wheels[level][slot].add(e);
+        return;
+      }
+    }
+    overflow.add(e);
+  }
+
+  private static class Entry<T> {
+
+    private final T item;
+    private final long due;
+
+    Entry(T item, long due) {
+      this.item = item;
+      this.due = due;
+    }
+  }
+}
@@ -1,5 +1,5 @@
 CREATE TABLE IF NOT EXISTS ADDRESSES (
     ADDRESS TEXT,
-    ADDRESS_TYPE TEXT,
+    ADDRESS_TYPE INTEGER, -- AddressType ordinal
     PRIMARY KEY (ADDRESS)
 )
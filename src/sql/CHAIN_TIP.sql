@@ -0,0 +1,6 @@
+-- the best block height, which heap confirmations are worked out from
+CREATE TABLE IF NOT EXISTS CHAIN_TIP (
+    ID INTEGER PRIMARY KEY CHECK (ID=0), -- only ever the one row
+    HEIGHT INTEGER,
+    UPDATED_TIME INTEGER -- UNIX timestamp
+)
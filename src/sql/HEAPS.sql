@@ -1,10 +1,11 @@
 CREATE TABLE IF NOT EXISTS HEAPS (
     NAME TEXT,
-    BLOCK_HASH TEXT,
+    BLOCK_HASH BLOB, -- 32 bytes if it is a 64 hex char hash, see Codec
     BLOCK_INDEX INTEGER,
     AMOUNT INTEGER,
     CONFIRMATIONS INTEGER,
     TIME_CREATED INTEGER,
-    STATUS TEXT,
+    STATUS INTEGER, -- HeapStatus ordinal
+    HEIGHT INTEGER, -- block it was confirmed in, NULL if not known yet
     PRIMARY KEY (BLOCK_HASH, BLOCK_INDEX)
 )
@@ -0,0 +1,12 @@
+-- OBSOLETE heaps moved out of HEAPS by Archiver, same columns as HEAPS
+CREATE TABLE IF NOT EXISTS HEAPS_ARCHIVE (
+    NAME TEXT,
+    BLOCK_HASH BLOB,
+    BLOCK_INDEX INTEGER,
+    AMOUNT INTEGER,
+    CONFIRMATIONS INTEGER,
+    TIME_CREATED INTEGER,
+    STATUS INTEGER,
+    HEIGHT INTEGER,
+    PRIMARY KEY (BLOCK_HASH, BLOCK_INDEX)
+)
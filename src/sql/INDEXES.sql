@@ -0,0 +1,11 @@
+-- only unprocessed transactions are indexed; queries must use PROCESSED_TIME=0
+CREATE INDEX IF NOT EXISTS TRANSACTIONS_UNPROCESSED
+    ON TRANSACTIONS (TX_TIMESTAMP) WHERE PROCESSED_TIME=0;
+CREATE INDEX IF NOT EXISTS HEAPS_NAME ON HEAPS (NAME);
+CREATE INDEX IF NOT EXISTS HEAPS_STATUS ON HEAPS (STATUS, TIME_CREATED);
+CREATE INDEX IF NOT EXISTS HEAPS_HEIGHT ON HEAPS (HEIGHT);
+CREATE INDEX IF NOT EXISTS ADDRESSES_TYPE ON ADDRESSES (ADDRESS_TYPE, ADDRESS);
+CREATE INDEX IF NOT EXISTS HEAPS_ARCHIVE_NAME ON HEAPS_ARCHIVE (NAME);
+CREATE INDEX IF NOT EXISTS TRANSACTIONS_ADDRESS ON TRANSACTIONS (ADDRESS);
+CREATE INDEX IF NOT EXISTS TRANSACTIONS_ARCHIVE_ADDRESS
+    ON TRANSACTIONS_ARCHIVE (ADDRESS);
@@ -1,6 +1,6 @@
 CREATE TABLE IF NOT EXISTS POOLS (
     NAME TEXT,
-    TYPE TEXT,
+    TYPE INTEGER, -- PoolType ordinal
     FILL_AMOUNT INTEGER,
     MINT_AMOUNT INTEGER,
     BONUS_AMOUNT INTEGER,
@@ -0,0 +1,6 @@
+CREATE TABLE IF NOT EXISTS SCHEMA_VERSION (
+    VERSION INTEGER, -- schema version a migration brought the database to
+    DESCRIPTION TEXT,
+    APPLIED_TIME INTEGER, -- UNIX timestamp
+    PRIMARY KEY (VERSION)
+)
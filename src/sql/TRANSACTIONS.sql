@@ -1,9 +1,10 @@
 CREATE TABLE IF NOT EXISTS TRANSACTIONS (
-    TX_ID TEXT, -- output hash
+    TX_ID BLOB, -- output hash, 32 bytes (see Codec)
     TX_INDEX INTEGER, -- output hash block ID
     TX_TIMESTAMP INTEGER, -- UNIX timestamp (seconds since epoch)
-    TX_TYPE TEXT, -- one of SEND, RECV, MINT, MOVE
+    TX_TYPE INTEGER, -- TxType ordinal: SEND, RECV, MINT, MOVE
     PROCESSED_TIME INTEGER, -- when it was processed (0 implies not yet 
                             -- processed) UNIX TIMESTAMP
+    ADDRESS TEXT, -- wallet address it was to or from (NULL if not known)
     PRIMARY KEY (TX_ID, TX_INDEX)
 );
@@ -0,0 +1,11 @@
+-- long processed transactions moved out of TRANSACTIONS by Archiver, same
+-- columns as TRANSACTIONS
+CREATE TABLE IF NOT EXISTS TRANSACTIONS_ARCHIVE (
+    TX_ID BLOB,
+    TX_INDEX INTEGER,
+    TX_TIMESTAMP INTEGER,
+    TX_TYPE INTEGER,
+    PROCESSED_TIME INTEGER,
+    ADDRESS TEXT,
+    PRIMARY KEY (TX_ID, TX_INDEX)
+)
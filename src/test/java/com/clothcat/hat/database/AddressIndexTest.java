@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.database.Address.AddressType;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class AddressIndexTest extends TestCase {
+
+  public AddressIndexTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM ADDRESSES WHERE ADDRESS LIKE 'IDXTEST%'");
+    }
+    Address.getCache().invalidateAll();
+    super.tearDown();
+  }
+
+  private static Address address(String name, AddressType type) {
+    Address a = new Address();
+    a.setAddress(name);
+    a.setType(type);
+    return a;
+  }
+
+  /**
+   * Test that every address added is found with its type and others aren't.
+   */
+  public void test1() {
+    AddressType[] types = AddressType.values();
+    AddressIndex.Builder builder = new AddressIndex.Builder();
+    for (int i = 0; i < 10000; i++) {
+      builder.add("IDXTEST" + i, types[i % types.length]);
+    }
+    builder.add("IDXTEST\u00e9", AddressType.BONUS);
+    builder.add("IDXTESTNONE", null);
+    AddressIndex index = builder.build();
+
+    assertEquals(10001, index.size());
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(types[i % types.length], index.get("IDXTEST" + i));
+    }
+    assertEquals(AddressType.BONUS, index.get("IDXTEST\u00e9"));
+    assertNull(index.get("IDXTEST10000"));
+    assertNull(index.get("IDXTEST"));
+    assertNull(index.get("IDXTESTNONE"));
+    assertNull(AddressIndex.EMPTY.get("IDXTEST0"));
+  }
+
+  /**
+   * Test that writes are seen straight away and then by the rebuilt index.
+   */
+  public void test2() throws Exception {
+    List<Address> addresses = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      addresses.add(address("IDXTEST" + i, AddressType.INVESTOR_PAID));
+    }
+    Address.storeAll(addresses);
+    LiveAddressIndex index = new LiveAddressIndex();
+    assertNull(index.get("IDXTEST0"));
+    assertTrue(index.load());
+    assertEquals(1, index.getRebuilds());
+    assertEquals(AddressType.INVESTOR_PAID, index.get("IDXTEST19"));
+    assertNull(index.get("IDXTEST20"));
+
+    Address a = address("IDXTEST20", AddressType.LOTTERY);
+    assertTrue(a.storeAddress());
+    index.put(a.getAddress(), a.getType());
+    assertEquals(AddressType.LOTTERY, index.get("IDXTEST20"));
+    for (int i = 0; i < 100 && index.getRebuilds() < 2; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(2, index.getRebuilds());
+    assertTrue(index.toString().contains("recent=0"));
+    assertEquals(AddressType.LOTTERY, index.get("IDXTEST20"));
+  }
+}
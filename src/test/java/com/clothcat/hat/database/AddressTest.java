@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class AddressTest extends TestCase {
+
+  private final List<Address> stored = new ArrayList<>();
+
+  public AddressTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    for (int i = 0; i < 25; i++) {
+      Address a = new Address();
+      a.setAddress(String.format("TESTADDR%02d", i));
+      a.setType(i % 3 == 0 ? Address.AddressType.LOTTERY
+          : Address.AddressType.INVESTOR_PAID);
+      stored.add(a);
+    }
+    Address.storeAll(stored);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM ADDRESSES WHERE ADDRESS LIKE 'TESTADDR%'");
+    }
+    Address.getCache().invalidateAll();
+    super.tearDown();
+  }
+
+  /**
+   * Test that paging through the addresses visits each one once, in order.
+   */
+  public void test1() {
+    List<String> seen = new ArrayList<>();
+    String after = "TESTADDR";
+    List<Address> page;
+    do {
+      page = Address.listAddresses(after, 10);
+      for (Address a : page) {
+        if (a.getAddress().startsWith("TESTADDR")) {
+          seen.add(a.getAddress());
+        }
+      }
+      if (!page.isEmpty()) {
+        after = page.get(page.size() - 1).getAddress();
+      }
+    } while (page.size() == 10);
+    assertEquals(25, seen.size());
+    for (int i = 0; i < 25; i++) {
+      assertEquals(String.format("TESTADDR%02d", i), seen.get(i));
+    }
+  }
+
+  /**
+   * Test that pages can be restricted to one address type
+   */
+  public void test2() {
+    List<Address> page = Address.listAddresses("TESTADDR", 4,
+        Address.AddressType.LOTTERY);
+    assertEquals(4, page.size());
+    assertEquals("TESTADDR00", page.get(0).getAddress());
+    assertEquals("TESTADDR09", page.get(3).getAddress());
+    page = Address.listAddresses("TESTADDR09", 10, Address.AddressType.LOTTERY);
+    assertEquals("TESTADDR12", page.get(0).getAddress());
+    for (Address a : page) {
+      assertEquals(Address.AddressType.LOTTERY, a.getType());
+    }
+  }
+
+  /**
+   * Test that classification is cached, including for unknown addresses, and
+   * that storing an address updates the cache.
+   */
+  public void test3() {
+    AddressCache cache = Address.getCache();
+    assertEquals(Address.AddressType.LOTTERY, Address.classify("TESTADDR03"));
+    long misses = cache.getMisses();
+    long hits = cache.getHits();
+    assertEquals(Address.AddressType.LOTTERY, Address.classify("TESTADDR03"));
+    assertEquals("TESTADDR03", Address.getAddress("TESTADDR03").getAddress());
+    assertEquals(hits + 2, cache.getHits());
+    assertEquals(misses, cache.getMisses());
+
+    assertNull(Address.classify("TESTADDRXX"));
+    assertNull(Address.getAddress("TESTADDRXX"));
+    assertEquals(misses + 1, cache.getMisses());
+
+    Address a = new Address();
+    a.setAddress("TESTADDRXX");
+    a.setType(Address.AddressType.BONUS);
+    assertEquals(SaveResult.INSERTED, a.save());
+    assertEquals(Address.AddressType.BONUS, Address.classify("TESTADDRXX"));
+    a.setType(Address.AddressType.ENDOWMENT);
+    assertTrue(a.storeAddress());
+    assertEquals(Address.AddressType.ENDOWMENT, Address.classify("TESTADDRXX"));
+    assertEquals(misses + 1, cache.getMisses());
+  }
+}
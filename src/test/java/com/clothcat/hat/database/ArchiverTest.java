@@ -0,0 +1,121 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.Transaction.TxType;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class ArchiverTest extends TestCase {
+
+  public ArchiverTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      for (String table : new String[]{"HEAPS", "HEAPS_ARCHIVE"}) {
+        c.createStatement().executeUpdate("DELETE FROM " + table
+            + " WHERE BLOCK_HASH LIKE 'ARCHTEST%'");
+      }
+      for (String table : new String[]{"TRANSACTIONS", "TRANSACTIONS_ARCHIVE"}) {
+        c.createStatement().executeUpdate("DELETE FROM " + table
+            + " WHERE TX_ID LIKE 'ARCHTEST%'");
+      }
+    }
+    super.tearDown();
+  }
+
+  private static CoinHeap heap(int i, HeapStatus status) {
+    CoinHeap heap = new CoinHeap();
+    heap.setName("ARCHTESTPOOL");
+    heap.setBlockHash("ARCHTEST" + i);
+    heap.setAmount(100);
+    heap.setTimeCreated(1000 + i);
+    heap.setStatus(status);
+    return heap;
+  }
+
+  private static Transaction transaction(int i, long processedTime) {
+    Transaction t = new Transaction();
+    t.setTxId("ARCHTEST" + i);
+    t.setTxTimestamp(1000 + i);
+    t.setTxType(TxType.RECV);
+    t.setProcessedTime(processedTime);
+    t.setAddress("ARCHTESTADDR");
+    return t;
+  }
+
+  /**
+   * Test that only OBSOLETE heaps are archived and history still finds them.
+   */
+  public void test1() {
+    List<CoinHeap> heaps = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      heaps.add(heap(i, i < 3 ? HeapStatus.OBSOLETE : HeapStatus.POOL_FILLING));
+    }
+    CoinHeap.storeAll(heaps);
+    assertTrue(Archiver.archiveHeaps(2) >= 3);
+
+    assertNull(CoinHeap.getHeap("ARCHTEST0", 0));
+    assertNotNull(CoinHeap.getHeap("ARCHTEST3", 0));
+    List<CoinHeap> history = CoinHeap.getHistory("ARCHTESTPOOL");
+    assertEquals(5, history.size());
+    assertEquals("ARCHTEST0", history.get(0).getBlockHash());
+    assertEquals(HeapStatus.OBSOLETE, history.get(0).getStatus());
+
+    // one back from the dead after a re-org is only listed once
+    heaps.get(1).setStatus(HeapStatus.INCOMING);
+    assertTrue(heaps.get(1).storeHeap());
+    assertEquals(5, CoinHeap.getHistory("ARCHTESTPOOL").size());
+  }
+
+  /**
+   * Test that old processed transactions are archived and stay processed.
+   */
+  public void test2() {
+    long now = System.currentTimeMillis() / 1000;
+    Transaction.storeAll(Arrays.asList(transaction(0, now - 100000),
+        transaction(1, now - 100000), transaction(2, now), transaction(3, 0)));
+    assertTrue(Archiver.archiveTransactions(now - 1000, 1) >= 2);
+
+    assertNull(Transaction.getTransaction("ARCHTEST0", 0));
+    assertNotNull(Transaction.getTransaction("ARCHTEST2", 0));
+    assertNotNull(Transaction.getTransaction("ARCHTEST3", 0));
+    assertEquals(4, Transaction.getHistory("ARCHTESTADDR").size());
+
+    // the wallet reporting it again doesn't make it unprocessed
+    assertTrue(Transaction.storeAllNew(Arrays.asList(transaction(0, 0)))[0]);
+    assertNull(Transaction.getTransaction("ARCHTEST0", 0));
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.database;
+
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class ChainTipTest extends TestCase {
+
+  private long tip;
+
+  public ChainTipTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tip = ChainTip.load();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ChainTip.setHeight(tip);
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM HEAPS WHERE BLOCK_HASH LIKE 'TIPTEST%'");
+    }
+    super.tearDown();
+  }
+
+  private static CoinHeap heap(int i, int height, int confirmations) {
+    CoinHeap heap = new CoinHeap();
+    heap.setName("TIPTESTPOOL");
+    heap.setBlockHash("TIPTEST" + i);
+    heap.setAmount(100);
+    heap.setHeight(height);
+    heap.setConfirmations(confirmations);
+    heap.setStatus(HeapStatus.POOL_FILLING);
+    return heap;
+  }
+
+  /**
+   * Test that confirmations follow the tip once a heap has a height.
+   */
+  public void test1() {
+    assertTrue(ChainTip.setHeight(5000000));
+    CoinHeap heap = heap(0, 4999991, 3);
+    assertTrue(heap.storeHeap());
+    assertEquals(10, CoinHeap.getHeap("TIPTEST0", 0).getConfirmations());
+
+    assertTrue(ChainTip.setHeight(5000004));
+    assertEquals(14, CoinHeap.getHeap("TIPTEST0", 0).getConfirmations());
+    assertEquals(14, heap.getConfirmations());
+
+    // no height yet, so what the wallet last said
+    assertTrue(heap(1, 0, 3).storeHeap());
+    assertEquals(0, CoinHeap.getHeap("TIPTEST1", 0).getHeight());
+    assertEquals(3, CoinHeap.getHeap("TIPTEST1", 0).getConfirmations());
+  }
+
+  /**
+   * Test that heaps are found by confirmations without those lacking a height.
+   */
+  public void test2() {
+    assertTrue(ChainTip.setHeight(5000000));
+    List<CoinHeap> heaps = new ArrayList<>();
+    heaps.add(heap(0, 4999990, 0));
+    heaps.add(heap(1, 4999995, 0));
+    heaps.add(heap(2, 0, 50));
+    CoinHeap.storeAll(heaps);
+
+    List<String> found = new ArrayList<>();
+    for (CoinHeap heap : CoinHeap.getConfirmedHeaps(10)) {
+      if (heap.getBlockHash().startsWith("TIPTEST")) {
+        found.add(heap.getBlockHash());
+      }
+    }
+    assertEquals(1, found.size());
+    assertEquals("TIPTEST0", found.get(0));
+  }
+}
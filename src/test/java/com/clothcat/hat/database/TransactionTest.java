@@ -23,6 +23,9 @@
  */
 package com.clothcat.hat.database;
 
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
 import junit.framework.TestCase;
 
 /**
@@ -87,4 +90,136 @@ public class TransactionTest extends TestCase {
     // reuse the tx from test2 since we're going to have to delete it anyway
     assertTrue(Transaction.deleteTransaction("TEST2", 1));
   }
+
+  /**
+   * Test that storeAll stores every row across several chunks, with a repeated
+   * key updating the earlier row rather than failing.
+   */
+  public void test4() {
+    List<Transaction> list = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      Transaction t = new Transaction();
+      t.setTxId("TEST4");
+      t.setTxIndex(i == 7 ? 3 : i);
+      t.setTxType(Transaction.TxType.RECV);
+      t.setTxTimestamp(i);
+      list.add(t);
+    }
+    boolean[] stored = Transaction.storeAll(list, 4);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(stored[i]);
+    }
+    for (int i = 0; i < 10; i++) {
+      if (i != 7) {
+        assertEquals(i == 3 ? 7 : i,
+            Transaction.getTransaction("TEST4", i).getTxTimestamp());
+        assertTrue(Transaction.deleteTransaction("TEST4", i));
+      }
+    }
+  }
+
+  /**
+   * Test that saving reports inserts, updates and no-ops correctly and that
+   * storing the same transaction twice is fine.
+   */
+  public void test5() {
+    Transaction t = new Transaction();
+    t.setTxId("TEST5");
+    t.setTxIndex(0);
+    t.setTxType(Transaction.TxType.MINT);
+    t.setTxTimestamp(100);
+    assertEquals(SaveResult.INSERTED, t.save());
+    assertEquals(SaveResult.UNCHANGED, t.save());
+    assertTrue(t.storeTransaction());
+    t.setProcessedTime(200);
+    assertEquals(SaveResult.UPDATED, t.save());
+    assertEquals(200, Transaction.getTransaction("TEST5", 0).getProcessedTime());
+    assertTrue(Transaction.deleteTransaction("TEST5", 0));
+  }
+
+  /**
+   * Test that unprocessed transactions stream out oldest first in batches and
+   * that marking a batch processed as we go doesn't upset the stream.
+   */
+  public void test6() {
+    List<Transaction> list = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      Transaction t = new Transaction();
+      t.setTxId("TEST6");
+      t.setTxIndex(i);
+      t.setTxType(Transaction.TxType.RECV);
+      t.setTxTimestamp(1000 - i);
+      list.add(t);
+    }
+    Transaction.storeAll(list);
+    // other tests may leave unprocessed rows behind, so only count ours
+    final int[] mine = new int[1];
+    final long[] last = new long[]{Long.MIN_VALUE};
+    Transaction.forEachUnprocessed(10, new Transaction.BatchHandler() {
+      @Override
+      public boolean handle(List<Transaction> batch) {
+        assertTrue(batch.size() <= 10);
+        for (Transaction t : batch) {
+          assertTrue(t.getTxTimestamp() >= last[0]);
+          last[0] = t.getTxTimestamp();
+          if (t.getTxId().equals("TEST6")) {
+            mine[0]++;
+          }
+        }
+        Transaction.markProcessed(batch, 12345);
+        return true;
+      }
+    });
+    assertEquals(25, mine[0]);
+    for (Transaction t : Transaction.getUnprocessed()) {
+      assertFalse(t.getTxId().equals("TEST6"));
+    }
+    assertEquals(12345, Transaction.getTransaction("TEST6", 4).getProcessedTime());
+    for (int i = 0; i < 25; i++) {
+      Transaction.deleteTransaction("TEST6", i);
+    }
+  }
+
+  /**
+   * Test that save() tells an insert from an update whatever the connection
+   * last inserted, in this table or another.
+   */
+  public void test7() throws Exception {
+    clearTest7();
+    Transaction t = new Transaction();
+    t.setTxId("TEST8");
+    t.setTxType(Transaction.TxType.RECV);
+    assertEquals(SaveResult.INSERTED, t.save());
+
+    CoinHeap heap = new CoinHeap();
+    heap.setBlockHash("TEST8");
+    heap.setStatus(CoinHeap.HeapStatus.INCOMING);
+    assertEquals(SaveResult.INSERTED, heap.save());
+    Address a = new Address();
+    a.setAddress("TEST8ADDR");
+    a.setType(Address.AddressType.UNKNOWN);
+    assertEquals(SaveResult.INSERTED, a.save());
+    heap.setAmount(5);
+    assertEquals(SaveResult.UPDATED, heap.save());
+
+    // a new row which gets the rowid of the one last inserted
+    assertTrue(Transaction.deleteTransaction("TEST8", 0));
+    t.setTxIndex(1);
+    assertEquals(SaveResult.INSERTED, t.save());
+
+    assertTrue(Transaction.deleteTransaction("TEST8", 1));
+    clearTest7();
+  }
+
+  private void clearTest7() throws Exception {
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM TRANSACTIONS WHERE TX_ID='TEST8'");
+      c.createStatement().executeUpdate(
+          "DELETE FROM HEAPS WHERE BLOCK_HASH='TEST8'");
+      c.createStatement().executeUpdate(
+          "DELETE FROM ADDRESSES WHERE ADDRESS='TEST8ADDR'");
+    }
+    Address.getCache().invalidateAll();
+  }
 }
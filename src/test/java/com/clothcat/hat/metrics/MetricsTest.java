@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.metrics;
+
+import com.clothcat.hat.database.Transaction;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class MetricsTest extends TestCase {
+
+  public MetricsTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Test that percentiles come out within the histogram's precision.
+   */
+  public void test1() {
+    Histogram h = new Histogram();
+    for (long v = 1; v <= 100000; v++) {
+      h.record(v * 1000);
+    }
+    Histogram.Snapshot s = h.snapshot();
+    assertEquals(100000, s.getCount());
+    assertEquals(100000000, s.getMax());
+    assertEquals(50000500.0, s.getMean(), 1);
+    long p50 = s.getPercentile(50);
+    long p99 = s.getPercentile(99);
+    assertTrue("p50 " + p50, Math.abs(p50 - 50000000) < 50000000 * 0.04);
+    assertTrue("p99 " + p99, Math.abs(p99 - 99000000) < 99000000 * 0.04);
+    assertEquals(s.getMax(), s.getPercentile(100));
+
+    // every value lands in a bucket whose top is at or just above it
+    Random r = new Random(3);
+    for (int i = 0; i < 10000; i++) {
+      long v = (r.nextLong() >>> 1) >>> r.nextInt(63);
+      long top = Histogram.highest(Histogram.index(v));
+      assertTrue(top >= v);
+      assertTrue(top - v <= v / 32 + 1);
+    }
+  }
+
+  /**
+   * Test that DAO calls are timed and show up in JMX and the dump.
+   */
+  public void test2() throws Exception {
+    Timer timer = Metrics.timer("db.Transaction.getTransaction");
+    long before = timer.getCount();
+    Transaction.getTransaction("DOES NOT EXIST", 0);
+    assertEquals(before + 1, timer.getCount());
+
+    Object count = ManagementFactory.getPlatformMBeanServer().getAttribute(
+        new ObjectName("com.clothcat.hat:type=Timer,name="
+            + ObjectName.quote("db.Transaction.getTransaction")), "Count");
+    assertEquals(before + 1, ((Long) count).longValue());
+
+    Metrics.counter("test.counter").add(3);
+    StringWriter sw = new StringWriter();
+    Metrics.write(new PrintWriter(sw));
+    assertTrue(sw.toString().contains("db.Transaction.getTransaction"));
+    assertTrue(sw.toString().matches("(?s).*test\\.counter +3.*"));
+  }
+}
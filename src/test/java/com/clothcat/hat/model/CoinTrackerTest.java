@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.DatabaseHelper;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class CoinTrackerTest extends TestCase {
+
+  public CoinTrackerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM HEAPS WHERE BLOCK_HASH LIKE 'TRACKERTEST%'");
+    }
+    super.tearDown();
+  }
+
+  private static CoinHeap heap(int i, HeapStatus status, long amount) {
+    CoinHeap heap = new CoinHeap();
+    heap.setBlockHash("TRACKERTEST" + i);
+    heap.setBlockIndex(0);
+    heap.setAmount(amount);
+    heap.setStatus(status);
+    heap.setTimeCreated(1000 + i);
+    return heap;
+  }
+
+  /**
+   * Test that totals follow heaps as they are added and change status.
+   */
+  public void test1() {
+    CoinTracker tracker = CoinTracker.load();
+    long incoming = tracker.getAmount(HeapStatus.INCOMING);
+    long filling = tracker.getAmount(HeapStatus.POOL_FILLING);
+    int count = tracker.getCount(HeapStatus.INCOMING);
+
+    List<CoinHeap> heaps = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      heaps.add(heap(i, HeapStatus.INCOMING, 100 * (i + 1)));
+    }
+    assertTrue(tracker.updateAll(heaps));
+    assertEquals(incoming + 600, tracker.getAmount(HeapStatus.INCOMING));
+    assertEquals(count + 3, tracker.getCount(HeapStatus.INCOMING));
+
+    CoinHeap h = tracker.getHeap("TRACKERTEST1", 0);
+    h.setStatus(HeapStatus.POOL_FILLING);
+    h.setName("TRACKERTESTPOOL");
+    assertTrue(tracker.update(h));
+    assertEquals(incoming + 400, tracker.getAmount(HeapStatus.INCOMING));
+    assertEquals(filling + 200, tracker.getAmount(HeapStatus.POOL_FILLING));
+    assertEquals(1, tracker.getHeaps("TRACKERTESTPOOL").size());
+
+    // a fresh load from the database agrees with the index
+    CoinTracker reloaded = CoinTracker.load();
+    assertEquals(tracker.getAmount(HeapStatus.INCOMING),
+        reloaded.getAmount(HeapStatus.INCOMING));
+    assertEquals(tracker.getAmount(HeapStatus.POOL_FILLING),
+        reloaded.getAmount(HeapStatus.POOL_FILLING));
+  }
+
+  /**
+   * Test that obsolete heaps drop out and returned heaps are copies.
+   */
+  public void test2() {
+    CoinTracker tracker = CoinTracker.load();
+    assertTrue(tracker.update(heap(9, HeapStatus.FLOAT, 500)));
+    int size = tracker.size();
+
+    // changing a returned heap doesn't touch the index
+    tracker.getHeap("TRACKERTEST9", 0).setAmount(1);
+    assertEquals(500, tracker.getHeap("TRACKERTEST9", 0).getAmount());
+
+    CoinHeap h = tracker.getHeap("TRACKERTEST9", 0);
+    h.setStatus(HeapStatus.OBSOLETE);
+    assertTrue(tracker.update(h));
+    assertNull(tracker.getHeap("TRACKERTEST9", 0));
+    assertEquals(size - 1, tracker.size());
+    assertEquals(0, tracker.getCount(HeapStatus.OBSOLETE));
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.DatabaseHelper;
+import com.clothcat.hat.util.Constants;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class HeapSchedulerTest extends TestCase {
+
+  public HeapSchedulerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM HEAPS WHERE BLOCK_HASH LIKE 'SCHEDTEST%'");
+    }
+    super.tearDown();
+  }
+
+  /**
+   * Test that a filling heap matures on confirmations and then stakes on age,
+   * and that nothing moves before it's due.
+   */
+  public void test1() {
+    long now = 1400000000L;
+    CoinTracker tracker = CoinTracker.load();
+    CoinHeap heap = new CoinHeap();
+    heap.setBlockHash("SCHEDTEST1");
+    heap.setBlockIndex(0);
+    heap.setAmount(100);
+    heap.setConfirmations(2);
+    heap.setTimeCreated(now);
+    heap.setStatus(HeapStatus.LOTTERY_FILLING);
+    List<CoinHeap> heaps = new ArrayList<>();
+    heaps.add(heap);
+    assertTrue(tracker.updateAll(heaps));
+
+    HeapScheduler scheduler = new HeapScheduler(tracker, now, 1000);
+    int wait = Constants.MATURING_CONFIRMATIONS - 2;
+    assertTrue(scheduler.tick(now, 1000 + wait - 1).isEmpty());
+    // synced as the blocks came in
+    heap.setConfirmations(Constants.MATURING_CONFIRMATIONS);
+    assertTrue(tracker.updateAll(heaps));
+    List<CoinHeap> moved = scheduler.tick(now, 1000 + wait);
+    assertEquals(1, moved.size());
+    assertEquals(HeapStatus.LOTTERY_MATURING,
+        CoinHeap.getHeap("SCHEDTEST1", 0).getStatus());
+
+    long staking = now + Constants.STAKE_MIN_AGE;
+    assertTrue(scheduler.tick(staking - 1, 2000).isEmpty());
+    moved = scheduler.tick(staking, 2000);
+    assertEquals(1, moved.size());
+    assertEquals(HeapStatus.LOTTERY_STAKING,
+        tracker.getHeap("SCHEDTEST1", 0).getStatus());
+    assertEquals(HeapStatus.LOTTERY_STAKING,
+        CoinHeap.getHeap("SCHEDTEST1", 0).getStatus());
+  }
+
+  /**
+   * Test that a heap which comes due before its confirmations have caught up
+   * waits rather than maturing.
+   */
+  public void test2() {
+    long now = 1400000000L;
+    CoinTracker tracker = CoinTracker.load();
+    CoinHeap unplaced = new CoinHeap();
+    unplaced.setBlockHash("SCHEDTEST2");
+    unplaced.setBlockIndex(0);
+    unplaced.setAmount(100);
+    unplaced.setConfirmations(2);
+    unplaced.setTimeCreated(now);
+    unplaced.setStatus(HeapStatus.POOL_FILLING);
+    CoinHeap placed = new CoinHeap(unplaced);
+    placed.setBlockHash("SCHEDTEST3");
+    placed.setHeight(1000);
+    List<CoinHeap> heaps = new ArrayList<>();
+    heaps.add(unplaced);
+    heaps.add(placed);
+    assertTrue(tracker.updateAll(heaps));
+
+    HeapScheduler scheduler = new HeapScheduler(tracker, now, 1000);
+    // the wallet hasn't reported any more confirmations, and a reorg has
+    // moved the other heap's block 5 later
+    placed.setHeight(1005);
+    assertTrue(tracker.update(placed));
+    int wait = Constants.MATURING_CONFIRMATIONS - 2;
+    assertTrue(scheduler.tick(now, 1000 + wait).isEmpty());
+    assertTrue(scheduler.tick(now, 1000 + Constants.MATURING_CONFIRMATIONS)
+        .isEmpty());
+    assertEquals(HeapStatus.POOL_FILLING,
+        CoinHeap.getHeap("SCHEDTEST2", 0).getStatus());
+    assertEquals(HeapStatus.POOL_FILLING,
+        CoinHeap.getHeap("SCHEDTEST3", 0).getStatus());
+    assertEquals(2, scheduler.size());
+
+    unplaced.setConfirmations(Constants.MATURING_CONFIRMATIONS);
+    assertTrue(tracker.update(unplaced));
+    List<CoinHeap> moved = scheduler.tick(now, 1000 + 2 * wait);
+    assertEquals(1, moved.size());
+    assertEquals("SCHEDTEST2", moved.get(0).getBlockHash());
+    moved = scheduler.tick(now, 1005 + Constants.MATURING_CONFIRMATIONS - 1);
+    assertEquals(1, moved.size());
+    assertEquals(HeapStatus.POOL_MATURING,
+        CoinHeap.getHeap("SCHEDTEST3", 0).getStatus());
+  }
+}
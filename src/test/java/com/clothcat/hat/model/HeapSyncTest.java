@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.ChainTip;
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.DatabaseHelper;
+import com.clothcat.hat.rpc.HttpRpcBackend;
+import com.clothcat.hat.rpc.RpcBackend;
+import com.clothcat.hat.rpc.RpcHelper;
+import com.clothcat.hat.rpc.StubRpcServer;
+import java.sql.Connection;
+import java.util.Collections;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class HeapSyncTest extends TestCase {
+
+  private StubRpcServer server;
+  private RpcHelper rpc;
+  private long tip;
+
+  public HeapSyncTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    tip = ChainTip.load();
+    server = new StubRpcServer();
+    rpc = new RpcHelper(new HttpRpcBackend("127.0.0.1", server.getPort(),
+        "user", "password", 2, 5000));
+    CoinHeap heap = new CoinHeap();
+    heap.setBlockHash("SYNCTEST1");
+    heap.setAmount(100);
+    heap.setStatus(HeapStatus.INCOMING);
+    assertTrue(heap.storeHeap());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+    ChainTip.setHeight(tip);
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM HEAPS WHERE BLOCK_HASH LIKE 'SYNCTEST%'");
+    }
+    super.tearDown();
+  }
+
+  /**
+   * Test that an rpc error leaves the heaps alone.
+   */
+  public void test1() {
+    // the stub answers cclistcoins with an error until given a result
+    assertNull(HeapSync.sync(rpc));
+    assertEquals(HeapStatus.INCOMING,
+        CoinHeap.getHeap("SYNCTEST1", 0).getStatus());
+  }
+
+  /**
+   * Test that an empty wallet only obsoletes the live heaps when forced.
+   */
+  public void test2() {
+    server.setResult("cclistcoins", "[]");
+    assertNull(HeapSync.sync(rpc));
+    assertEquals(HeapStatus.INCOMING,
+        CoinHeap.getHeap("SYNCTEST1", 0).getStatus());
+    assertNull(HeapSync.sync(Collections.<CoinHeap>emptyList()));
+
+    HeapSync.Result result = HeapSync.sync(rpc, true);
+    assertNotNull(result);
+    assertEquals(HeapStatus.OBSOLETE,
+        CoinHeap.getHeap("SYNCTEST1", 0).getStatus());
+  }
+
+  /**
+   * Gives a new chain tip each time it's asked.
+   */
+  private static class MovingTip extends RpcHelper {
+
+    private long next;
+
+    MovingTip(RpcBackend backend, long first) {
+      super(backend);
+      next = first;
+    }
+
+    @Override
+    public long getblockcount() {
+      return next++;
+    }
+  }
+
+  /**
+   * Test that heights are left alone when a block is found mid sync.
+   */
+  public void test3() throws Exception {
+    server.setResult("cclistcoins", "[{\"Output Hash\":\"SYNCTEST1\","
+        + "\"blockIndex\":0,\"Value\":0.0001,\"Confirmations\":12},"
+        + "{\"Output Hash\":\"SYNCTEST2\",\"blockIndex\":0,"
+        + "\"Value\":1,\"Confirmations\":3}]");
+    RpcHelper moving = new MovingTip(new HttpRpcBackend("127.0.0.1",
+        server.getPort(), "user", "password", 2, 5000), 6000100);
+    HeapSync.Result result = HeapSync.sync(moving);
+    assertEquals(1, result.getInserted().size());
+    assertTrue(result.getConfirmed().isEmpty());
+    assertEquals(0, CoinHeap.getHeap("SYNCTEST1", 0).getHeight());
+    assertEquals(0, CoinHeap.getHeap("SYNCTEST2", 0).getHeight());
+    assertEquals(3, CoinHeap.getHeap("SYNCTEST2", 0).getConfirmations());
+    assertEquals(6000101, ChainTip.getHeight());
+
+    server.setResult("getblockcount", "6000101");
+    result = HeapSync.sync(rpc);
+    assertEquals(2, result.getConfirmed().size());
+    assertEquals(6000090, CoinHeap.getHeap("SYNCTEST1", 0).getHeight());
+    assertEquals(12, CoinHeap.getHeap("SYNCTEST1", 0).getConfirmations());
+  }
+}
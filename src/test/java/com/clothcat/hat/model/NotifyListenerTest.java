@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.DatabaseHelper;
+import com.clothcat.hat.database.Transaction;
+import com.clothcat.hat.database.Transaction.TxType;
+import com.clothcat.hat.rpc.HttpRpcBackend;
+import com.clothcat.hat.rpc.RpcHelper;
+import com.clothcat.hat.rpc.StubRpcServer;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class NotifyListenerTest extends TestCase {
+
+  private StubRpcServer server;
+  private CoinTracker tracker;
+  private NotifyListener listener;
+
+  public NotifyListenerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new StubRpcServer();
+    RpcHelper rpc = new RpcHelper(new HttpRpcBackend("127.0.0.1",
+        server.getPort(), "user", "password", 2, 5000));
+    tracker = CoinTracker.load();
+    listener = new NotifyListener(tracker, rpc, null, 0, 200);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    listener.close();
+    server.stop();
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM HEAPS WHERE BLOCK_HASH LIKE 'NOTIFYTEST%'");
+      c.createStatement().executeUpdate(
+          "DELETE FROM TRANSACTIONS WHERE TX_ID LIKE 'NOTIFYTEST%'");
+    }
+    super.tearDown();
+  }
+
+  private void send(String lines) throws Exception {
+    try (Socket s = new Socket(InetAddress.getLoopbackAddress(),
+        listener.getPort())) {
+      OutputStream out = s.getOutputStream();
+      out.write(lines.getBytes(StandardCharsets.US_ASCII));
+    }
+  }
+
+  private void awaitSyncs(int n) throws InterruptedException {
+    for (int i = 0; i < 100 && listener.getSyncs() < n; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(n, listener.getSyncs());
+  }
+
+  private void transaction(String txId, int confirmations) {
+    server.setResult("gettransaction", txId, "{\"txid\":\"" + txId + "\","
+        + "\"confirmations\":" + confirmations + ",\"time\":1400000000,"
+        + "\"details\":[{\"address\":\"NOTIFYADDR\",\"category\":\"receive\","
+        + "\"amount\":1.5,\"vout\":1}]}");
+  }
+
+  /**
+   * Test that a burst of notifications is synced with one batch of lookups.
+   */
+  public void test1() throws Exception {
+    transaction("NOTIFYTEST1", 0);
+    transaction("NOTIFYTEST2", 0);
+    send("tx NOTIFYTEST1\ntx NOTIFYTEST2\nNOTIFYTEST1\n");
+    awaitSyncs(1);
+    assertEquals(1, server.getBatchCount());
+
+    CoinHeap heap = tracker.getHeap("NOTIFYTEST2", 1);
+    assertEquals(HeapStatus.INCOMING, heap.getStatus());
+    assertEquals(1500000, heap.getAmount());
+    Transaction tx = Transaction.getTransaction("NOTIFYTEST2", 1);
+    assertEquals(TxType.RECV, tx.getTxType());
+    assertEquals("NOTIFYADDR", tx.getAddress());
+    assertEquals(0, tx.getProcessedTime());
+  }
+
+  /**
+   * Test that a new block looks again at heaps without a height, and that
+   * those with one follow the chain tip.
+   */
+  public void test2() throws Exception {
+    transaction("NOTIFYTEST3", 0);
+    send("tx NOTIFYTEST3\n");
+    awaitSyncs(1);
+    assertEquals(0, tracker.getHeap("NOTIFYTEST3", 1).getConfirmations());
+
+    transaction("NOTIFYTEST3", 2);
+    server.setResult("getblockcount", "3000001");
+    send("block 00ab\nblock 00cd\n");
+    awaitSyncs(2);
+    assertEquals(3000000, tracker.getHeap("NOTIFYTEST3", 1).getHeight());
+    assertEquals(2, tracker.getHeap("NOTIFYTEST3", 1).getConfirmations());
+    assertEquals(2, CoinHeap.getHeap("NOTIFYTEST3", 1).getConfirmations());
+
+    // the wallet isn't asked again, the tip is enough
+    int batches = server.getBatchCount();
+    server.setResult("getblockcount", "3000004");
+    send("block 00ef\n");
+    awaitSyncs(3);
+    assertEquals(batches, server.getBatchCount());
+    assertEquals(5, CoinHeap.getHeap("NOTIFYTEST3", 1).getConfirmations());
+  }
+
+  /**
+   * Test that a spend falls back to a full sync, which obsoletes what it
+   * spent.
+   */
+  public void test3() throws Exception {
+    CoinHeap spent = new CoinHeap();
+    spent.setBlockHash("NOTIFYTEST5");
+    spent.setAmount(2000000);
+    spent.setStatus(HeapStatus.INCOMING);
+    assertTrue(tracker.updateAll(Arrays.asList(spent)));
+
+    server.setResult("gettransaction", "NOTIFYTEST6", "{\"txid\":"
+        + "\"NOTIFYTEST6\",\"confirmations\":0,\"time\":1400000000,"
+        + "\"details\":[{\"address\":\"NOTIFYOTHER\",\"category\":\"send\","
+        + "\"amount\":-1.5,\"vout\":1},{\"address\":\"NOTIFYADDR\","
+        + "\"category\":\"receive\",\"amount\":0.5,\"vout\":0}]}");
+    server.setResult("cclistcoins", "[{\"Output Hash\":\"NOTIFYTEST6\","
+        + "\"blockIndex\":0,\"Value\":0.5,\"Confirmations\":0}]");
+    send("tx NOTIFYTEST6\n");
+    awaitSyncs(1);
+
+    assertNull(tracker.getHeap("NOTIFYTEST5", 0));
+    assertEquals(HeapStatus.OBSOLETE,
+        CoinHeap.getHeap("NOTIFYTEST5", 0).getStatus());
+    assertEquals(500000, tracker.getHeap("NOTIFYTEST6", 0).getAmount());
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.DatabaseHelper;
+import com.clothcat.hat.database.Pool;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class PoolFillerTest extends TestCase {
+
+  public PoolFillerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM HEAPS WHERE BLOCK_HASH LIKE 'FILLERTEST%'");
+      c.createStatement().executeUpdate(
+          "DELETE FROM POOLS WHERE NAME LIKE 'FILLERTEST%'");
+    }
+    super.tearDown();
+  }
+
+  private static CoinHeap heap(int i, long amount) {
+    CoinHeap heap = new CoinHeap();
+    heap.setBlockHash("FILLERTEST" + i);
+    heap.setBlockIndex(0);
+    heap.setAmount(amount);
+    heap.setStatus(HeapStatus.INCOMING);
+    return heap;
+  }
+
+  private static long total(List<CoinHeap> heaps) {
+    long total = 0;
+    for (CoinHeap heap : heaps) {
+      total += heap.getAmount();
+    }
+    return total;
+  }
+
+  /**
+   * Test the choices on small sets where the best answer is obvious.
+   */
+  public void test1() {
+    List<CoinHeap> heaps = new ArrayList<>();
+    long[] amounts = {50, 30, 20, 7, 5};
+    for (int i = 0; i < amounts.length; i++) {
+      heaps.add(heap(i, amounts[i]));
+    }
+    // an exact fit
+    assertEquals(57, total(PoolFiller.choose(heaps, 57)));
+    // one heap beats several which add up to the same
+    List<CoinHeap> chosen = PoolFiller.choose(heaps, 50);
+    assertEquals(1, chosen.size());
+    assertEquals(50, chosen.get(0).getAmount());
+    // 50+30 rather than the 50+20+7+5 plain first fit would give
+    chosen = PoolFiller.choose(heaps, 79);
+    assertEquals(80, total(chosen));
+    assertEquals(2, chosen.size());
+    // not enough to go round so everything is taken
+    assertEquals(5, PoolFiller.choose(heaps, 1000).size());
+  }
+
+  /**
+   * Test that a large set of candidates is handled quickly, never falls
+   * short and overshoots by no more than the smallest heap.
+   */
+  public void test2() {
+    Random r = new Random(42);
+    List<CoinHeap> heaps = new ArrayList<>();
+    for (int i = 0; i < 50000; i++) {
+      heaps.add(heap(i, 1000 + r.nextInt(1000000)));
+    }
+    long start = System.nanoTime();
+    List<CoinHeap> chosen = PoolFiller.choose(heaps, 123456789L);
+    long elapsed = System.nanoTime() - start;
+    assertTrue(total(chosen) >= 123456789L);
+    assertTrue(total(chosen) - 123456789L < 1000000);
+    assertTrue("took " + elapsed + "ns", elapsed < 1000000000L);
+  }
+
+  /**
+   * Test that filling a pool moves the chosen heaps into it and that a full
+   * pool takes nothing more.
+   */
+  public void test3() {
+    CoinTracker tracker = CoinTracker.load();
+    List<CoinHeap> heaps = new ArrayList<>();
+    heaps.add(heap(100, 60));
+    heaps.add(heap(101, 40));
+    heaps.add(heap(102, 25));
+    assertTrue(tracker.updateAll(heaps));
+
+    Pool pool = new Pool();
+    pool.setName("FILLERTESTPOOL");
+    pool.setType(Pool.PoolType.POOL);
+    pool.setFillAmount(100);
+    assertTrue(pool.storePool());
+
+    List<CoinHeap> chosen = PoolFiller.fill(tracker, pool);
+    assertNotNull(chosen);
+    assertEquals(100, total(chosen));
+    assertEquals(2, tracker.getHeaps("FILLERTESTPOOL").size());
+    CoinHeap stored = CoinHeap.getHeap("FILLERTEST100", 0);
+    assertEquals(HeapStatus.POOL_FILLING, stored.getStatus());
+    assertEquals("FILLERTESTPOOL", stored.getName());
+    assertEquals(HeapStatus.INCOMING,
+        CoinHeap.getHeap("FILLERTEST102", 0).getStatus());
+
+    assertTrue(PoolFiller.fill(tracker, pool).isEmpty());
+  }
+}
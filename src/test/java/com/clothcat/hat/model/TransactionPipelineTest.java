@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.model;
+
+import com.clothcat.hat.database.Address;
+import com.clothcat.hat.database.Address.AddressType;
+import com.clothcat.hat.database.CoinHeap;
+import com.clothcat.hat.database.CoinHeap.HeapStatus;
+import com.clothcat.hat.database.DatabaseHelper;
+import com.clothcat.hat.database.Transaction;
+import com.clothcat.hat.database.Transaction.TxType;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class TransactionPipelineTest extends TestCase {
+
+  public TransactionPipelineTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Address a = new Address();
+    a.setAddress("PIPETESTADDR");
+    a.setType(AddressType.BONUS);
+    assertTrue(a.storeAddress());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try (Connection c = DatabaseHelper.getInstance().getConnection()) {
+      c.createStatement().executeUpdate(
+          "DELETE FROM HEAPS WHERE BLOCK_HASH LIKE 'PIPETEST%'");
+      c.createStatement().executeUpdate(
+          "DELETE FROM TRANSACTIONS WHERE TX_ID LIKE 'PIPETEST%'");
+      c.createStatement().executeUpdate(
+          "DELETE FROM ADDRESSES WHERE ADDRESS LIKE 'PIPETEST%'");
+    }
+    Address.getCache().invalidateAll();
+    super.tearDown();
+  }
+
+  private static List<Transaction> receive(CoinTracker tracker, int n) {
+    List<CoinHeap> heaps = new ArrayList<>();
+    List<Transaction> txs = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      CoinHeap heap = new CoinHeap();
+      heap.setBlockHash("PIPETEST" + i);
+      heap.setAmount(100);
+      heap.setStatus(HeapStatus.INCOMING);
+      heaps.add(heap);
+      Transaction tx = new Transaction();
+      tx.setTxId("PIPETEST" + i);
+      // later than anything else in the test database, so they come last
+      tx.setTxTimestamp(4000000000L + i);
+      tx.setTxType(TxType.RECV);
+      tx.setAddress(i % 2 == 0 ? "PIPETESTADDR" : "PIPETESTNOWHERE");
+      txs.add(tx);
+    }
+    assertTrue(tracker.updateAll(heaps));
+    return txs;
+  }
+
+  /**
+   * Test that fetched transactions are stored, applied and marked processed.
+   */
+  public void test1() {
+    CoinTracker tracker = CoinTracker.load();
+    final List<Transaction> txs = receive(tracker, 7);
+    TransactionPipeline pipeline = new TransactionPipeline(tracker,
+        TransactionPipeline.NAME_INCOMING, 2, 1);
+    assertTrue(pipeline.process(() -> txs) >= 7);
+
+    for (int i = 0; i < 7; i++) {
+      assertTrue(Transaction.getTransaction("PIPETEST" + i, 0)
+          .getProcessedTime() > 0);
+      String name = i % 2 == 0 ? "PIPETESTADDR" : null;
+      assertEquals(name, tracker.getHeap("PIPETEST" + i, 0).getName());
+    }
+    // the database agrees with the tracker
+    assertEquals(4, CoinTracker.load().getHeaps("PIPETESTADDR").size());
+  }
+
+  /**
+   * Test that a failure stops the run, leaving the rest unprocessed.
+   */
+  public void test2() {
+    CoinTracker tracker = CoinTracker.load();
+    final List<Transaction> txs = receive(tracker, 6);
+    TransactionPipeline pipeline = new TransactionPipeline(tracker,
+        (tx, type, heaps) -> {
+          if (tx.getTxId().equals("PIPETEST4")) {
+            throw new IllegalStateException("test");
+          }
+          TransactionPipeline.NAME_INCOMING.apply(tx, type, heaps);
+        }, 2, 1);
+    assertEquals(-1, pipeline.process(() -> txs));
+
+    assertTrue(Transaction.getTransaction("PIPETEST2", 0).getProcessedTime() > 0);
+    assertEquals("PIPETESTADDR", tracker.getHeap("PIPETEST2", 0).getName());
+    for (int i = 4; i < 6; i++) {
+      assertEquals(0, Transaction.getTransaction("PIPETEST" + i, 0)
+          .getProcessedTime());
+    }
+    assertNull(tracker.getHeap("PIPETEST4", 0).getName());
+  }
+
+  /**
+   * Test that with several lanes each address is still applied in order.
+   */
+  public void test3() {
+    CoinTracker tracker = CoinTracker.load();
+    final List<Transaction> txs = receive(tracker, 40);
+    for (Transaction tx : txs) {
+      tx.setAddress("PIPETESTADDR" + tx.getTxTimestamp() % 5);
+    }
+    final Map<String, List<Long>> seen = new ConcurrentHashMap<>();
+    TransactionPipeline pipeline = new TransactionPipeline(tracker,
+        (tx, type, heaps) -> {
+          if (tx.getTxId().startsWith("PIPETEST")) {
+            seen.computeIfAbsent(tx.getAddress(), a -> new ArrayList<Long>())
+                .add(tx.getTxTimestamp());
+          }
+        }, 7, 2, 4);
+    assertTrue(pipeline.process(() -> txs) >= 40);
+
+    assertEquals(5, seen.size());
+    for (List<Long> times : seen.values()) {
+      assertEquals(8, times.size());
+      for (int i = 1; i < times.size(); i++) {
+        assertTrue(times.get(i - 1) < times.get(i));
+      }
+    }
+    for (int i = 0; i < 40; i++) {
+      assertTrue(Transaction.getTransaction("PIPETEST" + i, 0)
+          .getProcessedTime() > 0);
+    }
+  }
+
+  /**
+   * Test that running twice over the same fetched transactions applies each
+   * one once.
+   */
+  public void test4() {
+    CoinTracker tracker = CoinTracker.load();
+    final List<Transaction> txs = receive(tracker, 5);
+    final Map<String, Integer> applied = new ConcurrentHashMap<>();
+    TransactionPipeline pipeline = new TransactionPipeline(tracker,
+        (tx, type, heaps) -> {
+          if (tx.getTxId().startsWith("PIPETEST")) {
+            applied.merge(tx.getTxId(), 1, Integer::sum);
+          }
+        }, 2, 1);
+    assertTrue(pipeline.process(() -> txs) >= 5);
+    long processed = Transaction.getTransaction("PIPETEST0", 0)
+        .getProcessedTime();
+    assertTrue(pipeline.process(() -> txs) >= 0);
+
+    assertEquals(5, applied.size());
+    for (int count : applied.values()) {
+      assertEquals(1, count);
+    }
+    assertEquals(processed, Transaction.getTransaction("PIPETEST0", 0)
+        .getProcessedTime());
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.rpc;
+
+import com.clothcat.hat.database.CoinHeap;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class HttpRpcBackendTest extends TestCase {
+
+  private StubRpcServer server;
+  private HttpRpcBackend backend;
+  private RpcHelper rpc;
+
+  public HttpRpcBackendTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new StubRpcServer();
+    backend = new HttpRpcBackend("127.0.0.1", server.getPort(), "user",
+        "password", 2, 5000);
+    rpc = new RpcHelper(backend);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+
+  /**
+   * Test that a result comes back as the same JSON the command line would give
+   */
+  public void test1() {
+    server.setResult("cclistcoins", "[{\"Output Hash\":\"abc\",\"blockIndex\":1}]");
+    assertEquals("[{\"Output Hash\":\"abc\",\"blockIndex\":1}]", rpc.cclistcoins());
+  }
+
+  /**
+   * Test that an rpc error gives an empty string rather than an exception
+   */
+  public void test2() {
+    assertEquals("", rpc.checkwallet());
+  }
+
+  /**
+   * Test that repeated calls reuse the same connection rather than opening a
+   * new one each time.
+   */
+  public void test3() {
+    server.setResult("checkwallet", "{\"wallet check passed\":true}");
+    for (int i = 0; i < 20; i++) {
+      assertEquals("{\"wallet check passed\":true}", rpc.checkwallet());
+    }
+    assertEquals(20, server.getRequestCount());
+    assertTrue(server.getConnectionCount() <= 2);
+  }
+
+  /**
+   * Test that a batch is split by maxBatchSize, comes back in order and that
+   * one failing request doesn't spoil the rest.
+   */
+  public void test4() {
+    List<String> txIds = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      txIds.add("tx" + i);
+      if (i != 7) {
+        server.setResult("gettransaction", "tx" + i, "{\"txid\":\"tx" + i + "\"}");
+      }
+    }
+    backend.setMaxBatchSize(10);
+    List<RpcResponse> responses = rpc.gettransactions(txIds);
+    assertEquals(25, responses.size());
+    assertEquals(3, server.getBatchCount());
+    for (int i = 0; i < 25; i++) {
+      RpcResponse r = responses.get(i);
+      assertEquals("tx" + i, r.getRequest().getParams()[0]);
+      if (i == 7) {
+        assertTrue(r.isError());
+        assertEquals("", r.getResult());
+      } else {
+        assertFalse(r.isError());
+        assertEquals("tx" + i, r.getResultJson().getAsJsonObject().get("txid").getAsString());
+      }
+    }
+  }
+
+  /**
+   * Test that cclistcoins can be streamed into CoinHeaps
+   */
+  public void test5() {
+    server.setResult("cclistcoins", "[{\"Address\":\"HAddr1\",\"Output Hash\":\"aa\","
+        + "\"blockIndex\":1,\"Value\":12.345678,\"Confirmations\":3,"
+        + "\"Age (days)\":1.5,\"Weight\":0},"
+        + "{\"Output Hash\":\"bb\",\"blockIndex\":0,\"Value\":0.000001,"
+        + "\"Confirmations\":150,\"Age (days)\":10}]");
+    final List<CoinHeap> heaps = new ArrayList<>();
+    long now = System.currentTimeMillis() / 1000;
+    int n = rpc.cclistcoins(new CoinListParser.Handler() {
+      @Override
+      public void handle(CoinHeap heap) {
+        heaps.add(heap);
+      }
+    });
+    assertEquals(2, n);
+    assertEquals("aa", heaps.get(0).getBlockHash());
+    assertEquals(1, heaps.get(0).getBlockIndex());
+    assertEquals(12345678, heaps.get(0).getAmount());
+    assertEquals(3, heaps.get(0).getConfirmations());
+    assertTrue(Math.abs(now - 129600 - heaps.get(0).getTimeCreated()) <= 2);
+    assertEquals("bb", heaps.get(1).getBlockHash());
+    assertEquals(1, heaps.get(1).getAmount());
+    assertEquals(150, heaps.get(1).getConfirmations());
+  }
+
+  /**
+   * Test that an rpc error from cclistcoins is a failure, not an empty wallet
+   */
+  public void test6() {
+    // the stub answers anything it hasn't been given with an error
+    final List<CoinHeap> heaps = new ArrayList<>();
+    int n = rpc.cclistcoins(new CoinListParser.Handler() {
+      @Override
+      public void handle(CoinHeap heap) {
+        heaps.add(heap);
+      }
+    });
+    assertEquals(-1, n);
+    assertTrue(heaps.isEmpty());
+  }
+}
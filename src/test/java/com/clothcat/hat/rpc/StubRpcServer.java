@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.rpc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny JSON-RPC server that stands in for the wallet daemon in tests. Canned
+ * results are registered per method; anything else gets a "Method not found"
+ * error just like the daemon would give.
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class StubRpcServer {
+
+  private final HttpServer server;
+  private final Map<String, JsonElement> results = new ConcurrentHashMap<>();
+  private final Set<Integer> clientPorts
+      = Collections.synchronizedSet(new HashSet<Integer>());
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger batches = new AtomicInteger();
+
+  public StubRpcServer() throws IOException {
+    server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange);
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  /**
+   * Set what the stub returns for an rpc method called with a particular first
+   * parameter, eg gettransaction for one txid.
+   *
+   * @param method the rpc method
+   * @param param the first parameter
+   * @param json the JSON result to return
+   */
+  public void setResult(String method, String param, String json) {
+    setResult(method + " " + param, json);
+  }
+
+  /**
+   * Set what the stub returns for an rpc method.
+   *
+   * @param method the rpc method
+   * @param json the JSON result to return
+   */
+  public void setResult(String method, String json) {
+    results.put(method, new JsonParser().parse(json));
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * @return how many HTTP requests have been served
+   */
+  public int getRequestCount() {
+    return requests.get();
+  }
+
+  /**
+   * @return how many of the HTTP requests were JSON-RPC batches
+   */
+  public int getBatchCount() {
+    return batches.get();
+  }
+
+  /**
+   * @return how many distinct client sockets have made requests
+   */
+  public int getConnectionCount() {
+    return clientPorts.size();
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  JsonObject answer(JsonObject request) {
+    String method = request.get("method").getAsString();
+    JsonObject response = new JsonObject();
+    JsonArray params = request.getAsJsonArray("params");
+    JsonElement result = null;
+    if (params != null && params.size() > 0) {
+      result = results.get(method + " " + params.get(0).getAsString());
+    }
+    if (result == null) {
+      result = results.get(method);
+    }
+    if (result == null) {
+      JsonObject error = new JsonObject();
+      error.addProperty("code", -32601);
+      error.addProperty("message", "Method not found");
+      response.add("result", JsonNull.INSTANCE);
+      response.add("error", error);
+    } else {
+      response.add("result", result);
+      response.add("error", JsonNull.INSTANCE);
+    }
+    response.add("id", request.get("id"));
+    return response;
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    clientPorts.add(exchange.getRemoteAddress().getPort());
+    String body;
+    try (InputStream in = exchange.getRequestBody()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+      body = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+    JsonElement request = new JsonParser().parse(body);
+    JsonElement response;
+    int status = 200;
+    if (request.isJsonArray()) {
+      batches.incrementAndGet();
+      JsonArray array = new JsonArray();
+      for (JsonElement e : request.getAsJsonArray()) {
+        array.add(answer(e.getAsJsonObject()));
+      }
+      response = array;
+    } else {
+      response = answer(request.getAsJsonObject());
+      if (!response.getAsJsonObject().get("error").isJsonNull()) {
+        status = 500;
+      }
+    }
+    byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
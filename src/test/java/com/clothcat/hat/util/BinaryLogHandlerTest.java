@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class BinaryLogHandlerTest extends TestCase {
+
+  private File dir;
+
+  public BinaryLogHandlerTest(String testName) {
+    super(testName);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty("java.util.logging.SimpleFormatter.format",
+        HLogger.FORMAT);
+    dir = new File(System.getProperty("java.io.tmpdir"),
+        "hlb-test-" + System.nanoTime());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+    super.tearDown();
+  }
+
+  // setMillis is deprecated from Java 9 but setInstant doesn't exist in 8
+  @SuppressWarnings("deprecation")
+  private static LogRecord record(Level level, String message, long millis,
+      Object... params) {
+    LogRecord r = new LogRecord(level, message);
+    r.setMillis(millis);
+    r.setSourceClassName("com.example.Source");
+    r.setSourceMethodName("method");
+    if (params.length > 0) {
+      r.setParameters(params);
+    }
+    return r;
+  }
+
+  private String decode(File f) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream in = new FileInputStream(f)) {
+      new BinaryLogDecoder(new SimpleFormatter()).decode(in,
+          new PrintStream(bytes, true, "UTF-8"));
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Test that decoding gives exactly what SimpleFormatter would have written.
+   */
+  public void test1() throws IOException {
+    List<LogRecord> records = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 20; i++) {
+      records.add(record(Level.FINEST, "Got {0} from {1}", now + i * 7,
+          "response " + i, "host"));
+    }
+    records.add(record(Level.WARNING, "plain message é", now - 5));
+    LogRecord thrown = record(Level.SEVERE, null, now + 1000);
+    thrown.setThrown(new IllegalStateException("broken"));
+    records.add(thrown);
+
+    BinaryLogHandler handler = new BinaryLogHandler(
+        new File(dir, "t_%g.hlb").getPath(), 0, 1);
+    StringBuilder expected = new StringBuilder();
+    SimpleFormatter formatter = new SimpleFormatter();
+    for (LogRecord r : records) {
+      handler.publish(r);
+      expected.append(formatter.format(r));
+    }
+    handler.close();
+    File f = new File(dir, "t_0.hlb");
+    assertEquals(expected.toString(), decode(f));
+    // the repeated pattern and source are only stored once
+    assertTrue(f.length() < expected.length());
+  }
+
+  /**
+   * Test that files rotate and each one decodes on its own.
+   */
+  public void test2() throws IOException {
+    BinaryLogHandler handler = new BinaryLogHandler(
+        new File(dir, "r_%g.hlb").getPath(), 200, 3);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) {
+      handler.publish(record(Level.INFO, "message {0}", now + i, i));
+    }
+    handler.close();
+    assertTrue(new File(dir, "r_1.hlb").exists());
+    assertTrue(new File(dir, "r_2.hlb").exists());
+    assertFalse(new File(dir, "r_3.hlb").exists());
+    String text = decode(new File(dir, "r_0.hlb"));
+    assertTrue(text.contains("INFO: message 99"));
+    assertTrue(decode(new File(dir, "r_1.hlb")).startsWith(
+        new SimpleFormatter().format(record(Level.INFO, "message {0}",
+            now + 99, 99)).substring(0, 10)));
+
+    // a restart keeps what was logged
+    new BinaryLogHandler(new File(dir, "r_%g.hlb").getPath(), 200, 3).close();
+    assertEquals(text, decode(new File(dir, "r_1.hlb")));
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class HLoggerTest extends TestCase {
+
+  public HLoggerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Collects what's written, optionally holding the writer up until let go.
+   */
+  private static class Capture extends Handler {
+
+    private final List<LogRecord> records = new ArrayList<>();
+    private final CountDownLatch gate;
+    private int flushes;
+
+    Capture(CountDownLatch gate) {
+      this.gate = gate;
+    }
+
+    @Override
+    public synchronized void publish(LogRecord record) {
+      try {
+        gate.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      records.add(record);
+    }
+
+    @Override
+    public synchronized void flush() {
+      flushes++;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Test that levels are respected, suppliers below the level aren't called
+   * and records keep their level and the caller as their source.
+   */
+  public void test1() {
+    Capture capture = new Capture(new CountDownLatch(0));
+    HLogger logger = new HLogger(capture, Level.FINE, 100,
+        HLogger.Overflow.BLOCK, 10, 50);
+    try {
+      assertTrue(logger.accepts(Level.FINE));
+      assertFalse(logger.accepts(Level.FINEST));
+      logger.logTo(Level.WARNING, "warned");
+      logger.logTo(Level.FINEST, "hidden");
+      logger.sync();
+      assertEquals(1, capture.records.size());
+      LogRecord r = capture.records.get(0);
+      assertEquals(Level.WARNING, r.getLevel());
+      assertEquals("warned", r.getMessage());
+      assertEquals(HLoggerTest.class.getName(), r.getSourceClassName());
+      assertTrue(capture.flushes > 0);
+    } finally {
+      logger.close();
+    }
+  }
+
+  /**
+   * Test that DROP throws messages away when the writer can't keep up and
+   * says how many it lost once it catches up.
+   */
+  public void test2() {
+    CountDownLatch gate = new CountDownLatch(1);
+    Capture capture = new Capture(gate);
+    HLogger logger = new HLogger(capture, Level.ALL, 5,
+        HLogger.Overflow.DROP, 10, 50);
+    try {
+      for (int i = 0; i < 50; i++) {
+        logger.logTo(Level.INFO, "message " + i);
+      }
+      assertTrue(logger.getDropped() > 0);
+      gate.countDown();
+      logger.sync();
+      // the loss is reported with whatever is written next
+      logger.logTo(Level.INFO, "after");
+      logger.sync();
+      assertTrue(capture.records.size() < 51);
+      boolean reported = false;
+      for (LogRecord r : capture.records) {
+        reported |= r.getMessage().startsWith("Log buffer full");
+      }
+      assertTrue(reported);
+    } finally {
+      logger.close();
+    }
+  }
+
+  /**
+   * Test that a few messages logged close together are flushed once, when
+   * flush_ms is up, rather than one at a time.
+   */
+  public void test3() throws Exception {
+    Capture capture = new Capture(new CountDownLatch(0));
+    HLogger logger = new HLogger(capture, Level.ALL, 100,
+        HLogger.Overflow.BLOCK, 100, 500);
+    try {
+      for (int i = 0; i < 20; i++) {
+        logger.logTo(Level.INFO, "message " + i);
+        Thread.sleep(5);
+      }
+      for (int i = 0; i < 100 && written(capture) < 20; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(20, written(capture));
+      assertTrue(flushes(capture) <= 1);
+      for (int i = 0; i < 200 && flushes(capture) == 0; i++) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(100);
+      assertEquals(1, flushes(capture));
+    } finally {
+      logger.close();
+    }
+  }
+
+  private static int written(Capture capture) {
+    synchronized (capture) {
+      return capture.records.size();
+    }
+  }
+
+  private static int flushes(Capture capture) {
+    synchronized (capture) {
+      return capture.flushes;
+    }
+  }
+}
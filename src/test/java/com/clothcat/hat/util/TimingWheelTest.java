@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2014 Stephen Stafford <clothcat@gmail.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.clothcat.hat.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Stephen Stafford &lt;clothcat@gmail.com&gt;
+ */
+public class TimingWheelTest extends TestCase {
+
+  public TimingWheelTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * Test that items come back on exactly the tick they're due, across every
+   * level of the wheel and the overflow.
+   */
+  public void test1() {
+    TimingWheel<Long> wheel = new TimingWheel<>(1000, 3, 3);
+    Random r = new Random(7);
+    List<Long> dues = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      // up to 2000 ticks ahead, well past the 512 the wheels cover
+      long due = 1000 + r.nextInt(2000);
+      dues.add(due);
+      wheel.schedule(due, due);
+    }
+    List<Long> seen = new ArrayList<>();
+    for (long now = 1000; now <= 3000; now += 1 + r.nextInt(5)) {
+      for (long due : wheel.advance(now)) {
+        assertTrue(due <= now);
+        assertTrue(due > now - 6);
+        seen.add(due);
+      }
+    }
+    seen.addAll(wheel.advance(3000));
+    assertEquals(0, wheel.size());
+    Collections.sort(dues);
+    Collections.sort(seen);
+    assertEquals(dues, seen);
+  }
+
+  /**
+   * Test that anything scheduled in the past comes straight back.
+   */
+  public void test2() {
+    TimingWheel<String> wheel = new TimingWheel<>(100, 6, 2);
+    wheel.schedule("late", 50);
+    wheel.schedule("later", 101);
+    assertEquals(Collections.singletonList("late"), wheel.advance(100));
+    assertEquals(1, wheel.size());
+    assertEquals(Collections.singletonList("later"), wheel.advance(1000));
+  }
+}